@@ -0,0 +1,259 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nullable;
+
+import org.sonatype.goodies.common.ComponentSupport;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.annotations.VisibleForTesting;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Limits the Azure requests of one blob store in flight at once, adapting the limit AIMD style.
+ *
+ * Every successful request raises the limit by {@code 1/limit}, i.e. by one per round of requests, up to the
+ * configured maximum. A request failing with 500 or 503 (Azure's ServerBusy and OperationTimedOut), or a latency
+ * sensitive request taking more than {@link #LATENCY_TOLERANCE} times the usual latency, halves the limit, at most
+ * once per {@link #DECREASE_INTERVAL_NANOS}, so that a burst of throttled responses does not collapse it to one.
+ *
+ * Callers over the limit wait in a bounded queue for a bounded time and are otherwise rejected with a
+ * {@link LimitExceededException}. The limit, requests in flight, queued callers, rejections and throttled responses
+ * are published as {@code org.sonatype.nexus.blobstore.azure.internal.AzureClient.<blobStoreName>.limiter.*}.
+ */
+public class AdaptiveConcurrencyLimiter
+    extends ComponentSupport
+{
+  private static final double DECREASE_FACTOR = 0.5;
+
+  @VisibleForTesting
+  static final double LATENCY_TOLERANCE = 4.0;
+
+  private static final double LATENCY_SMOOTHING = 0.05;
+
+  @VisibleForTesting
+  static final long DECREASE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final String blobStoreName;
+
+  private final int maxLimit;
+
+  private final int maxQueued;
+
+  private final long maxWaitNanos;
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  private final Condition available = lock.newCondition();
+
+  private double limit;
+
+  private int inFlight;
+
+  private int queued;
+
+  private double smoothedLatencyNanos;
+
+  private long lastDecreaseNanos;
+
+  private final Meter rejections = new Meter();
+
+  private final Meter throttled = new Meter();
+
+  private final MetricRegistry registry;
+
+  private final String metricsPrefix;
+
+  public AdaptiveConcurrencyLimiter(final String blobStoreName,
+                                    final int maxLimit,
+                                    final int maxQueued,
+                                    final long maxWait,
+                                    final TimeUnit unit,
+                                    final MetricRegistry registry)
+  {
+    checkArgument(maxLimit > 0, "Max limit must be > 0");
+    checkArgument(maxQueued >= 0, "Max queued must be >= 0");
+    this.blobStoreName = blobStoreName;
+    this.maxLimit = maxLimit;
+    this.maxQueued = maxQueued;
+    this.maxWaitNanos = unit.toNanos(maxWait);
+    this.limit = maxLimit;
+    this.lastDecreaseNanos = System.nanoTime() - DECREASE_INTERVAL_NANOS;
+
+    this.registry = registry;
+    this.metricsPrefix = name(AzureClient.class, blobStoreName, "limiter");
+    register(registry, name(metricsPrefix, "limit"), (Gauge<Integer>) this::getLimit);
+    register(registry, name(metricsPrefix, "inFlight"), (Gauge<Integer>) this::getInFlight);
+    register(registry, name(metricsPrefix, "queued"), (Gauge<Integer>) this::getQueued);
+    register(registry, name(metricsPrefix, "rejections"), rejections);
+    register(registry, name(metricsPrefix, "throttled"), throttled);
+  }
+
+  /**
+   * Removes the metrics of this limiter from the registry.
+   */
+  public void removeMetrics() {
+    registry.removeMatching((metricName, metric) -> metricName.startsWith(metricsPrefix + "."));
+  }
+
+  private static void register(final MetricRegistry registry, final String name, final Metric metric) {
+    registry.remove(name);
+    registry.register(name, metric);
+  }
+
+  /**
+   * Waits until the request may proceed.
+   *
+   * @return the start time to pass to {@link #release}
+   * @throws LimitExceededException when the queue is full or the wait timed out
+   */
+  public long acquire() {
+    lock.lock();
+    try {
+      if (inFlight < (int) limit) {
+        inFlight++;
+        return System.nanoTime();
+      }
+      if (queued >= maxQueued) {
+        throw reject("queue full");
+      }
+      queued++;
+      try {
+        long remaining = maxWaitNanos;
+        while (inFlight >= (int) limit) {
+          if (remaining <= 0) {
+            throw reject("timed out waiting");
+          }
+          remaining = available.awaitNanos(remaining);
+        }
+        inFlight++;
+        return System.nanoTime();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new LimitExceededException("Interrupted waiting for an Azure request slot of blob store " +
+            blobStoreName);
+      }
+      finally {
+        queued--;
+      }
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Completes a request started with {@link #acquire()} and adapts the limit to its outcome.
+   *
+   * @param sampleLatency whether the request is small enough for its latency to indicate congestion
+   * @param failure       the error the request failed with, if any
+   */
+  public void release(final long start, final boolean sampleLatency, @Nullable final Throwable failure) {
+    long now = System.nanoTime();
+    boolean isThrottled = failure != null && AzureErrors.isThrottled(failure);
+    if (isThrottled) {
+      throttled.mark();
+    }
+    lock.lock();
+    try {
+      inFlight--;
+      boolean congested = isThrottled;
+      if (sampleLatency && failure == null) {
+        long latency = now - start;
+        if (smoothedLatencyNanos == 0) {
+          smoothedLatencyNanos = latency;
+        }
+        congested = latency > LATENCY_TOLERANCE * smoothedLatencyNanos;
+        smoothedLatencyNanos += LATENCY_SMOOTHING * (latency - smoothedLatencyNanos);
+      }
+      if (congested) {
+        if (now - lastDecreaseNanos >= DECREASE_INTERVAL_NANOS) {
+          lastDecreaseNanos = now;
+          limit = Math.max(1, limit * DECREASE_FACTOR);
+          log.debug("Lowered Azure concurrency limit of blob store {} to {}", blobStoreName, (int) limit);
+        }
+      }
+      else if (failure == null && limit < maxLimit) {
+        limit = Math.min(maxLimit, limit + 1 / limit);
+      }
+      if (inFlight < (int) limit) {
+        available.signal();
+      }
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  private LimitExceededException reject(final String reason) {
+    rejections.mark();
+    return new LimitExceededException("Azure request of blob store " + blobStoreName + " rejected, " + reason +
+        " at concurrency limit " + (int) limit);
+  }
+
+  public int getLimit() {
+    lock.lock();
+    try {
+      return (int) limit;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  public int getInFlight() {
+    lock.lock();
+    try {
+      return inFlight;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  public int getQueued() {
+    lock.lock();
+    try {
+      return queued;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  public long getRejections() {
+    return rejections.getCount();
+  }
+
+  /**
+   * Raised when a request cannot be admitted within the limit.
+   */
+  public static class LimitExceededException
+      extends RuntimeException
+  {
+    public LimitExceededException(final String message) {
+      super(message);
+    }
+  }
+}
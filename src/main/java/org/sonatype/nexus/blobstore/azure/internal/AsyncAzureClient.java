@@ -0,0 +1,649 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import javax.annotation.Nullable;
+
+import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.blobstore.StreamMetrics;
+import org.sonatype.nexus.blobstore.azure.internal.AzureOperationTrace.Step;
+
+import com.azure.core.http.rest.PagedResponse;
+import com.azure.core.util.FluxUtil;
+import com.azure.core.util.polling.AsyncPollResponse;
+import com.azure.core.util.polling.LongRunningOperationStatus;
+import com.azure.storage.blob.BlobAsyncClient;
+import com.azure.storage.blob.BlobContainerAsyncClient;
+import com.azure.storage.blob.BlobServiceAsyncClient;
+import com.azure.storage.blob.models.AppendBlobItem;
+import com.azure.storage.blob.models.BlobCopyInfo;
+import com.azure.storage.blob.models.BlobDownloadAsyncResponse;
+import com.azure.storage.blob.models.BlobItem;
+import com.azure.storage.blob.models.BlobProperties;
+import com.azure.storage.blob.models.BlobRange;
+import com.azure.storage.blob.models.BlobRequestConditions;
+import com.azure.storage.blob.models.BlobStorageException;
+import com.azure.storage.blob.models.ListBlobsOptions;
+import com.azure.storage.blob.sas.BlobSasPermission;
+import com.azure.storage.blob.sas.BlobServiceSasSignatureValues;
+import com.azure.storage.blob.specialized.AppendBlobAsyncClient;
+import com.azure.storage.blob.specialized.BlockBlobAsyncClient;
+import com.azure.storage.common.StorageSharedKeyCredential;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureTransactionAccounting.TransactionClass.LIST;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureTransactionAccounting.TransactionClass.OTHER;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureTransactionAccounting.TransactionClass.READ;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureTransactionAccounting.TransactionClass.WRITE;
+
+/**
+ * {@link AzureClient} on the non-blocking azure-storage-blob v12 SDK.
+ *
+ * Uploads read the content on the calling thread and stage up to {@code parallelism} blocks at once, reusing that
+ * many chunk buffers. Every streamed block carries the MD5 the service validates it against, hashed while the block
+ * is read together with the SHA-1 of the content when it is {@link #createMeasured measured}.
+ * Downloads fetch up to {@code parallelism} ranges at once on the Netty event loops and hand the
+ * content to the reader through a bounded {@link FluxInputStream}, so no thread is held while waiting on Azure.
+ */
+public class AsyncAzureClient
+    extends ComponentSupport
+    implements AzureClient
+{
+  private static final int HTTP_NOT_FOUND = 404;
+
+  private static final int HTTP_CONFLICT = 409;
+
+  /**
+   * Number of downloaded buffers handed to the reader ahead of it.
+   */
+  private static final int DOWNLOAD_PREFETCH = 32;
+
+  /**
+   * Largest blob Copy From URL accepts.
+   */
+  private static final long SYNC_COPY_LIMIT = 256L * 1024 * 1024;
+
+  /**
+   * Largest block Put Block From URL accepts.
+   */
+  private static final long COPY_BLOCK_SIZE = 100L * 1024 * 1024;
+
+  private static final Duration COPY_POLL_INTERVAL = Duration.ofMillis(200);
+
+  private static final long COPY_SAS_VALIDITY_MINUTES = 60;
+
+  private final BlobContainerAsyncClient containerClient;
+
+  private final StorageSharedKeyCredential credential;
+
+  private final int chunkSize;
+
+  private final int parallelism;
+
+  private final AzureTransactionAccounting accounting;
+
+  private final AzureBufferPool bufferPool;
+
+  @Nullable
+  private final Disposable connections;
+
+  public AsyncAzureClient(final BlobServiceAsyncClient serviceClient,
+                          final StorageSharedKeyCredential credential,
+                          final int chunkSize,
+                          final int parallelism,
+                          final String containerName,
+                          final AzureTransactionAccounting accounting)
+  {
+    this(serviceClient, credential, chunkSize, parallelism, containerName, accounting, null);
+  }
+
+  /**
+   * @param credential  signs the source URLs of copies
+   * @param connections the connection pool of the service client, disposed when this client is closed
+   */
+  public AsyncAzureClient(final BlobServiceAsyncClient serviceClient,
+                          final StorageSharedKeyCredential credential,
+                          final int chunkSize,
+                          final int parallelism,
+                          final String containerName,
+                          final AzureTransactionAccounting accounting,
+                          @Nullable final Disposable connections)
+  {
+    this.containerClient = checkNotNull(serviceClient).getBlobContainerAsyncClient(checkNotNull(containerName));
+    this.credential = checkNotNull(credential);
+    checkArgument(chunkSize > 0, "Chunk size must be > 0");
+    this.chunkSize = chunkSize;
+    this.bufferPool = new AzureBufferPool(chunkSize, AzureBufferPool.DEFAULT_RETAINED);
+    checkArgument(parallelism > 0, "Parallelism must be > 0");
+    this.parallelism = parallelism;
+    this.accounting = checkNotNull(accounting);
+    this.connections = connections;
+  }
+
+  @Override
+  public void create(final String path, final InputStream data) {
+    upload(path, data, null);
+  }
+
+  @Override
+  public StreamMetrics createMeasured(final String path, final InputStream data) {
+    Hasher sha1 = Hashing.sha1().newHasher();
+    long size = upload(path, data, sha1);
+    return new StreamMetrics(size, sha1.hash().toString());
+  }
+
+  /**
+   * Uploads the stream, hashing the content with SHA-1 as well if a hasher is given.
+   *
+   * @return the size of the content
+   */
+  private long upload(final String path, final InputStream data, @Nullable final Hasher sha1) {
+    log.debug("Creating blob {}", path);
+    BlockBlobAsyncClient blob = containerClient.getBlobAsyncClient(path).getBlockBlobAsyncClient();
+    BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<>(parallelism);
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    List<CompletableFuture<Void>> staged = new ArrayList<>();
+    List<String> blockIds = new ArrayList<>();
+    int allocated = 0;
+    long totalBytes = 0;
+    long start = System.nanoTime();
+    try {
+      while (failure.get() == null) {
+        byte[] buffer = buffers.poll();
+        if (buffer == null) {
+          if (allocated < parallelism) {
+            buffer = bufferPool.acquire();
+            allocated++;
+          }
+          else {
+            // wait for a block in flight to complete and take over its buffer
+            buffer = buffers.take();
+          }
+        }
+        Hasher md5 = Hashing.md5().newHasher();
+        int length = readChunk(data, buffer, md5, sha1);
+        byte[] contentMd5 = md5.hash().asBytes();
+        if (length < buffer.length && blockIds.isEmpty()) {
+          // the whole content fits into one chunk, which a single Put Blob stores
+          blob.uploadWithResponse(Flux.just(ByteBuffer.wrap(buffer, 0, length)), length, null, null, null, contentMd5,
+              null).block();
+          AzureOperationTrace trace = AzureOperationTrace.current();
+          trace.add(Step.BLOCK_UPLOAD, System.nanoTime() - start);
+          trace.addBytes(length);
+          accounting.recordTransaction(WRITE);
+          accounting.recordBytesIn(length);
+          buffers.offer(buffer);
+          return length;
+        }
+        if (length == 0) {
+          buffers.offer(buffer);
+          break;
+        }
+        String blockId = createBase64BlockId();
+        blockIds.add(blockId);
+        totalBytes += length;
+        byte[] blockBuffer = buffer;
+        staged.add(blob.stageBlockWithResponse(blockId, Flux.just(ByteBuffer.wrap(buffer, 0, length)), length,
+            contentMd5, null)
+            .doOnError(e -> failure.compareAndSet(null, e))
+            .doFinally(signal -> buffers.offer(blockBuffer))
+            .toFuture());
+      }
+      CompletableFuture.allOf(staged.toArray(new CompletableFuture[0])).join();
+
+      AzureOperationTrace trace = AzureOperationTrace.current();
+      trace.add(Step.BLOCK_UPLOAD, System.nanoTime() - start);
+      trace.addBytes(totalBytes);
+      trace.addBlocks(blockIds.size());
+      accounting.recordTransactions(WRITE, blockIds.size());
+      accounting.recordBytesIn(totalBytes);
+
+      log.debug("Blocks committed for {} -> {}", path, blockIds.size());
+      start = System.nanoTime();
+      blob.commitBlockList(blockIds).block();
+      trace.add(Step.BLOCK_COMMIT, System.nanoTime() - start);
+      accounting.recordTransaction(WRITE);
+      return totalBytes;
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+    catch (IOException | CompletionException e) {
+      throw new RuntimeException(e);
+    }
+    finally {
+      // buffers of blocks still in flight after a failure are left to the garbage collector
+      buffers.forEach(bufferPool::release);
+    }
+  }
+
+  /**
+   * Uploads the file in blocks of {@code chunkSize}, staging up to {@code parallelism} at once straight from
+   * memory-mapped regions of the file. The blocks carry no MD5, which would take a pass over the file of its own.
+   */
+  @Override
+  public void create(final String path, final Path file, final long size) throws IOException {
+    log.debug("Creating blob {} from {}", path, file);
+    BlockBlobAsyncClient blob = containerClient.getBlobAsyncClient(path).getBlockBlobAsyncClient();
+    int blocks = (int) ((size + chunkSize - 1) / chunkSize);
+    List<String> blockIds = new ArrayList<>();
+    for (int i = 0; i < blocks; i++) {
+      blockIds.add(createBase64BlockId());
+    }
+    AzureOperationTrace trace = AzureOperationTrace.current();
+    long start = System.nanoTime();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      Flux.range(0, blocks)
+          .flatMap(i -> {
+            long offset = (long) i * chunkSize;
+            int length = (int) Math.min(chunkSize, size - offset);
+            return Mono.fromCallable(() -> channel.map(MapMode.READ_ONLY, offset, length))
+                // a retry subscribes again and must read the region from its start
+                .flatMap(region -> blob.stageBlockWithResponse(blockIds.get(i),
+                    Flux.defer(() -> Flux.just(region.duplicate())), length, null, null));
+          }, parallelism)
+          .then()
+          .block();
+    }
+    trace.add(Step.BLOCK_UPLOAD, System.nanoTime() - start);
+    trace.addBytes(size);
+    trace.addBlocks(blocks);
+    accounting.recordTransactions(WRITE, blocks);
+    accounting.recordBytesIn(size);
+
+    start = System.nanoTime();
+    blob.commitBlockList(blockIds).block();
+    trace.add(Step.BLOCK_COMMIT, System.nanoTime() - start);
+    accounting.recordTransaction(WRITE);
+  }
+
+  /**
+   * Fills the buffer from the stream, short only at the end of the stream, and hashes each read with both digests
+   * as it arrives, while the bytes are still in cache, so the block is not read again to hash it.
+   */
+  private static int readChunk(final InputStream data,
+                               final byte[] buffer,
+                               final Hasher md5,
+                               @Nullable final Hasher sha1) throws IOException
+  {
+    int totalRead = 0;
+    int bytesRead;
+    while (totalRead < buffer.length && (bytesRead = data.read(buffer, totalRead, buffer.length - totalRead)) != -1) {
+      md5.putBytes(buffer, totalRead, bytesRead);
+      if (sha1 != null) {
+        sha1.putBytes(buffer, totalRead, bytesRead);
+      }
+      totalRead += bytesRead;
+    }
+    return totalRead;
+  }
+
+  private static String createBase64BlockId() {
+    UUID uuid = UUID.randomUUID();
+    ByteBuffer bb = ByteBuffer.wrap(new byte[16]);
+    bb.putLong(uuid.getMostSignificantBits());
+    bb.putLong(uuid.getLeastSignificantBits());
+    return Base64.getEncoder().encodeToString(bb.array());
+  }
+
+  @Override
+  public InputStream get(final String path) {
+    log.debug("Getting blob {}", path);
+    BlobAsyncClient blob = containerClient.getBlobAsyncClient(path);
+    BlobProperties properties = blob.getProperties().block();
+    accounting.recordTransaction(READ);
+
+    long size = properties.getBlobSize();
+    // pin the ranges to the version whose size was read, should the blob be overwritten meanwhile
+    BlobRequestConditions conditions = new BlobRequestConditions().setIfMatch(properties.getETag());
+    int ranges = (int) ((size + chunkSize - 1) / chunkSize);
+    Flux<ByteBuffer> content = Flux.range(0, ranges)
+        .flatMapSequential(range -> {
+          long offset = (long) range * chunkSize;
+          return blob.downloadWithResponse(new BlobRange(offset, Math.min(chunkSize, size - offset)), null,
+              conditions, false)
+              .flatMapMany(BlobDownloadAsyncResponse::getValue);
+        }, parallelism);
+    return accounting.meterDownload(new FluxInputStream(content, DOWNLOAD_PREFETCH), chunkSize);
+  }
+
+  @Override
+  public InputStream get(final String path, final long offset, final long length) {
+    log.debug("Getting {} bytes of blob {} at {}", length, path, offset);
+    if (length == 0) {
+      return new ByteArrayInputStream(new byte[0]);
+    }
+    // wait for the response, so a missing blob fails here rather than on the first read, as callers fall back on it
+    BlobDownloadAsyncResponse response = containerClient.getBlobAsyncClient(path)
+        .downloadWithResponse(new BlobRange(offset, length), null, null, false)
+        .block();
+    Flux<ByteBuffer> content = response.getValue();
+    // one ranged read, counted as the content is consumed
+    return accounting.meterDownload(new FluxInputStream(content, DOWNLOAD_PREFETCH), length);
+  }
+
+  @Override
+  public Versioned getVersioned(final String path) {
+    log.debug("Getting blob {} with its ETag", path);
+    Versioned versioned;
+    try {
+      versioned = containerClient.getBlobAsyncClient(path)
+          .downloadWithResponse(null, null, null, false)
+          .flatMap(response -> FluxUtil.collectBytesInByteBufferStream(response.getValue())
+              .map(content -> new Versioned(content, response.getDeserializedHeaders().getETag())))
+          .onErrorResume(e -> statusCode(e) == HTTP_NOT_FOUND, e -> Mono.empty())
+          .block();
+    }
+    finally {
+      // on the calling thread, whose repository the transaction is attributed to, rather than a Netty thread
+      accounting.recordTransaction(READ);
+    }
+    if (versioned != null) {
+      accounting.recordBytesOut(versioned.getContent().length);
+    }
+    return versioned;
+  }
+
+  @Override
+  public String createIfMatch(final String path, final byte[] data, @Nullable final String eTag) {
+    log.debug("Creating blob {} if it matches {}", path, eTag);
+    BlobRequestConditions conditions = eTag != null
+        ? new BlobRequestConditions().setIfMatch(eTag)
+        : new BlobRequestConditions().setIfNoneMatch("*");
+    String stored;
+    try {
+      stored = containerClient.getBlobAsyncClient(path).getBlockBlobAsyncClient()
+          .uploadWithResponse(Flux.just(ByteBuffer.wrap(data)), data.length, null, null, null,
+              Hashing.md5().hashBytes(data).asBytes(), conditions)
+          .map(response -> response.getValue().getETag())
+          .onErrorResume(AzureErrors::isConditionNotMet, e -> Mono.empty())
+          .block();
+    }
+    finally {
+      accounting.recordTransaction(WRITE);
+    }
+    if (stored == null) {
+      log.debug("Blob {} changed since {}", path, eTag);
+      return null;
+    }
+    accounting.recordBytesIn(data.length);
+    return stored;
+  }
+
+  @Override
+  public long append(final String path, final byte[] data, final int length) {
+    log.debug("Appending {} bytes to blob {}", length, path);
+    AppendBlobAsyncClient blob = containerClient.getBlobAsyncClient(path).getAppendBlobAsyncClient();
+    Mono<AppendBlobItem> appendBlock = Mono.defer(
+        () -> blob.appendBlock(Flux.just(ByteBuffer.wrap(data, 0, length)), length));
+    AtomicBoolean created = new AtomicBoolean();
+    AppendBlobItem appended;
+    try {
+      appended = appendBlock
+          .onErrorResume(e -> statusCode(e) == HTTP_NOT_FOUND, e -> blob
+              .createWithResponse(null, null, new BlobRequestConditions().setIfNoneMatch("*"))
+              .doOnSubscribe(subscription -> created.set(true))
+              // another writer created it first
+              .onErrorResume(conflict -> statusCode(conflict) == HTTP_CONFLICT, conflict -> Mono.empty())
+              .then(appendBlock))
+          .block();
+    }
+    finally {
+      // the create is counted here, on the calling thread whose repository it is attributed to
+      if (created.get()) {
+        accounting.recordTransaction(WRITE);
+      }
+    }
+    accounting.recordTransaction(WRITE);
+    accounting.recordBytesIn(length);
+    return Long.parseLong(appended.getBlobAppendOffset());
+  }
+
+  @Override
+  public boolean exists(final String path) {
+    boolean exists = containerClient.getBlobAsyncClient(path).exists().block();
+    accounting.recordTransaction(READ);
+    log.debug("{} exists? -> {}", path, exists);
+    return exists;
+  }
+
+  @Override
+  public String touch(final String path) {
+    log.debug("Touching blob {}", path);
+    try {
+      // storing the metadata again, none, answers with the new ETag
+      return containerClient.getBlobAsyncClient(path).setMetadataWithResponse(Collections.emptyMap(), null)
+          .map(response -> response.getHeaders().getValue("ETag"))
+          .block();
+    }
+    catch (RuntimeException e) {
+      if (!AzureErrors.isNotFound(e)) {
+        throw e;
+      }
+      return null;
+    }
+    finally {
+      accounting.recordTransaction(WRITE);
+    }
+  }
+
+  @Override
+  public boolean deleteIfMatch(final String path, final String eTag) {
+    log.debug("Deleting blob {} if it matches {}", path, eTag);
+    try {
+      containerClient.getBlobAsyncClient(path)
+          .deleteWithResponse(null, new BlobRequestConditions().setIfMatch(eTag))
+          .block();
+      return true;
+    }
+    catch (RuntimeException e) {
+      if (!AzureErrors.isConditionNotMet(e)) {
+        throw e;
+      }
+      log.debug("Blob {} changed since {}", path, eTag);
+      return false;
+    }
+    finally {
+      accounting.recordTransaction(OTHER);
+    }
+  }
+
+  @Override
+  public void delete(final String path) {
+    log.debug("Deleting blob {}", path);
+    containerClient.getBlobAsyncClient(path).delete().block();
+    accounting.recordTransaction(OTHER);
+  }
+
+  /**
+   * Starts a server side copy and polls it until the service completed it.
+   */
+  @Override
+  public void copy(final String sourcePath, final String destination) {
+    log.debug("Copying blob {} => {}", sourcePath, destination);
+    BlobAsyncClient src = containerClient.getBlobAsyncClient(sourcePath);
+    BlobAsyncClient dest = containerClient.getBlobAsyncClient(destination);
+    AsyncPollResponse<BlobCopyInfo, Void> last = dest.beginCopy(src.getBlobUrl(), COPY_POLL_INTERVAL).last().block();
+    accounting.recordTransaction(WRITE);
+    if (last.getStatus() != LongRunningOperationStatus.SUCCESSFULLY_COMPLETED) {
+      throw new RuntimeException("Copy to " + destination + " " + last.getStatus() + ": " +
+          last.getValue().getCopyStatus());
+    }
+  }
+
+  /**
+   * Copies synchronously: with Copy From URL for blobs up to {@value #SYNC_COPY_LIMIT} bytes, otherwise by staging
+   * up to {@code parallelism} blocks at once with Put Block From URL and committing them.
+   */
+  @Override
+  public void copy(final String sourcePath, final String destination, final long size) {
+    log.debug("Copying blob {} => {} ({} bytes)", sourcePath, destination, size);
+    String source = readableUrl(sourcePath);
+    BlobAsyncClient dest = containerClient.getBlobAsyncClient(destination);
+    AzureOperationTrace trace = AzureOperationTrace.current();
+    long start = System.nanoTime();
+    if (size <= SYNC_COPY_LIMIT) {
+      dest.copyFromUrl(source).block();
+      trace.add(Step.BLOCK_UPLOAD, System.nanoTime() - start);
+      accounting.recordTransaction(WRITE);
+      return;
+    }
+
+    BlockBlobAsyncClient blob = dest.getBlockBlobAsyncClient();
+    int blocks = (int) ((size + COPY_BLOCK_SIZE - 1) / COPY_BLOCK_SIZE);
+    List<String> blockIds = new ArrayList<>();
+    for (int i = 0; i < blocks; i++) {
+      blockIds.add(createBase64BlockId());
+    }
+    Flux.range(0, blocks)
+        .flatMap(i -> {
+          long offset = i * COPY_BLOCK_SIZE;
+          return blob.stageBlockFromUrl(blockIds.get(i), source,
+              new BlobRange(offset, Math.min(COPY_BLOCK_SIZE, size - offset)));
+        }, parallelism)
+        .then()
+        .block();
+    trace.add(Step.BLOCK_UPLOAD, System.nanoTime() - start);
+    trace.addBlocks(blocks);
+    accounting.recordTransactions(WRITE, blocks);
+
+    start = System.nanoTime();
+    blob.commitBlockList(blockIds).block();
+    trace.add(Step.BLOCK_COMMIT, System.nanoTime() - start);
+    accounting.recordTransaction(WRITE);
+  }
+
+  /**
+   * Returns the URL of the blob with a short lived read-only SAS, which the copies from URL require of the source
+   * even within the same storage account.
+   */
+  private String readableUrl(final String path) {
+    BlobServiceSasSignatureValues values = new BlobServiceSasSignatureValues()
+        .setExpiryTime(OffsetDateTime.now().plusMinutes(COPY_SAS_VALIDITY_MINUTES))
+        .setPermissions(new BlobSasPermission().setReadPermission(true))
+        .setContainerName(containerClient.getBlobContainerName())
+        .setBlobName(path);
+    return containerClient.getBlobAsyncClient(path).getBlobUrl() + "?" +
+        values.generateSasQueryParameters(credential).encode();
+  }
+
+  @Override
+  public Stream<String> listFiles(final String contentPrefix) {
+    return accountedListing(containerClient.listBlobs(listOptions(contentPrefix)).byPage())
+        .map(BlobItem::getName);
+  }
+
+  @Override
+  public Stream<String> listFiles(final String contentPrefix, final Predicate<String> blobSuffixFilter) {
+    return listFiles(contentPrefix)
+        .filter(blobSuffixFilter);
+  }
+
+  @Override
+  public Stream<Entry<String, Long>> listFileSizes(final String contentPrefix) {
+    return accountedListing(containerClient.listBlobs(listOptions(contentPrefix)).byPage())
+        .<Entry<String, Long>>map(
+            blob -> new SimpleImmutableEntry<>(blob.getName(), blob.getProperties().getContentLength()));
+  }
+
+  @Override
+  public Stream<String> listChildren(final String prefix) {
+    return accountedListing(containerClient.listBlobsByHierarchy("/", listOptions(prefix)).byPage())
+        .map(BlobItem::getName);
+  }
+
+  private static ListBlobsOptions listOptions(final String prefix) {
+    return new ListBlobsOptions().setPrefix(prefix.isEmpty() ? null : prefix);
+  }
+
+  /**
+   * Streams a listing page by page as the consumer advances, counting one list transaction per page.
+   */
+  private Stream<BlobItem> accountedListing(final Flux<PagedResponse<BlobItem>> pages) {
+    return pages.toStream(1)
+        .peek(page -> accounting.recordTransaction(LIST))
+        .flatMap(page -> page.getValue().stream());
+  }
+
+  @Override
+  public void createContainer() {
+    containerClient.create()
+        .onErrorResume(e -> statusCode(e) == HTTP_CONFLICT, e -> Mono.empty())
+        .block();
+    accounting.recordTransaction(LIST);
+  }
+
+  @Override
+  public void deleteContainer() {
+    containerClient.delete()
+        .onErrorResume(e -> statusCode(e) == HTTP_NOT_FOUND, e -> Mono.empty())
+        .block();
+    accounting.recordTransaction(OTHER);
+  }
+
+  @Override
+  public boolean containerExists() {
+    boolean exists = containerClient.exists().block();
+    accounting.recordTransaction(OTHER);
+    return exists;
+  }
+
+  private static int statusCode(final Throwable e) {
+    return e instanceof BlobStorageException ? ((BlobStorageException) e).getStatusCode() : -1;
+  }
+
+  @Override
+  public void close() {
+    if (connections != null) {
+      connections.dispose();
+    }
+  }
+
+  @Override
+  public String getContainerName() {
+    return containerClient.getBlobContainerName();
+  }
+}
@@ -15,12 +15,45 @@ package org.sonatype.nexus.blobstore.azure.internal;
 import java.io.IOException;
 import java.util.Map;
 
+import javax.annotation.Nullable;
+
 import org.sonatype.nexus.blobstore.BlobAttributesSupport;
 import org.sonatype.nexus.blobstore.api.BlobMetrics;
 
 public class AzureBlobAttributes
     extends BlobAttributesSupport<AzurePropertiesFile>
 {
+  /**
+   * SHA-1 of the shared content of a deduplicated blob, absent when the blob has content of its own.
+   */
+  public static final String CONTENT_KEY_ATTRIBUTE = "contentKey";
+
+  /**
+   * Name of the pack holding the content of a packed blob, together with {@link #PACK_OFFSET_ATTRIBUTE}.
+   */
+  public static final String PACK_KEY_ATTRIBUTE = "packKey";
+
+  public static final String PACK_OFFSET_ATTRIBUTE = "packOffset";
+
+  /**
+   * Codec the content is compressed with, together with {@link #STORED_SIZE_ATTRIBUTE}, absent when stored as is.
+   */
+  public static final String CODEC_ATTRIBUTE = "codec";
+
+  public static final String STORED_SIZE_ATTRIBUTE = "storedSize";
+
+  @Nullable
+  private String contentKey;
+
+  @Nullable
+  private String packKey;
+
+  private long packOffset;
+
+  @Nullable
+  private String codec;
+
+  private long storedSize;
 
   public AzureBlobAttributes(final AzureClient azureClient, final String key) {
     super(new AzurePropertiesFile(azureClient, key), null, null);
@@ -31,17 +64,116 @@ public class AzureBlobAttributes
     super(new AzurePropertiesFile(azureClient, key), headers, metrics);
   }
 
+  /**
+   * Loads the attributes in a single request, remembering their version for {@link #storeIfMatch(String)}.
+   *
+   * @return false if the blob has no attributes
+   */
   public boolean load() throws IOException {
-    if (!propertiesFile.exists()) {
+    if (!propertiesFile.loadVersioned()) {
       return false;
     }
-    propertiesFile.load();
     readFrom(propertiesFile);
+    contentKey = propertiesFile.getProperty(CONTENT_KEY_ATTRIBUTE);
+    packKey = propertiesFile.getProperty(PACK_KEY_ATTRIBUTE);
+    packOffset = Long.parseLong(propertiesFile.getProperty(PACK_OFFSET_ATTRIBUTE, "0"));
+    codec = propertiesFile.getProperty(CODEC_ATTRIBUTE);
+    storedSize = Long.parseLong(propertiesFile.getProperty(STORED_SIZE_ATTRIBUTE, "0"));
     return true;
   }
 
   public void store() throws IOException {
-    writeTo(propertiesFile);
+    writeProperties();
     propertiesFile.store();
   }
+
+  /**
+   * Stores the attributes only if they still have the ETag, or when the ETag is null only if there are none yet.
+   *
+   * @return false if another node changed them, in which case nothing was stored
+   */
+  public boolean storeIfMatch(@Nullable final String eTag) throws IOException {
+    writeProperties();
+    return propertiesFile.storeIfMatch(eTag);
+  }
+
+  /**
+   * Returns the ETag of the attributes as last loaded or conditionally stored.
+   */
+  @Nullable
+  public String getETag() {
+    return propertiesFile.getETag();
+  }
+
+  private void writeProperties() throws IOException {
+    writeTo(propertiesFile);
+    if (contentKey != null) {
+      propertiesFile.setProperty(CONTENT_KEY_ATTRIBUTE, contentKey);
+    }
+    else {
+      propertiesFile.remove(CONTENT_KEY_ATTRIBUTE);
+    }
+    if (packKey != null) {
+      propertiesFile.setProperty(PACK_KEY_ATTRIBUTE, packKey);
+      propertiesFile.setProperty(PACK_OFFSET_ATTRIBUTE, Long.toString(packOffset));
+    }
+    else {
+      propertiesFile.remove(PACK_KEY_ATTRIBUTE);
+      propertiesFile.remove(PACK_OFFSET_ATTRIBUTE);
+    }
+    if (codec != null) {
+      propertiesFile.setProperty(CODEC_ATTRIBUTE, codec);
+      propertiesFile.setProperty(STORED_SIZE_ATTRIBUTE, Long.toString(storedSize));
+    }
+    else {
+      propertiesFile.remove(CODEC_ATTRIBUTE);
+      propertiesFile.remove(STORED_SIZE_ATTRIBUTE);
+    }
+  }
+
+  @Nullable
+  public String getContentKey() {
+    return contentKey;
+  }
+
+  public void setContentKey(@Nullable final String contentKey) {
+    this.contentKey = contentKey;
+  }
+
+  @Nullable
+  public String getPackKey() {
+    return packKey;
+  }
+
+  public long getPackOffset() {
+    return packOffset;
+  }
+
+  /**
+   * Locates the content of a packed blob, or clears the location when the pack key is null.
+   */
+  public void setPackLocation(@Nullable final String packKey, final long packOffset) {
+    this.packKey = packKey;
+    this.packOffset = packOffset;
+  }
+
+  @Nullable
+  public String getCodec() {
+    return codec;
+  }
+
+  /**
+   * Returns the number of bytes the content takes in Azure, which is less than its size when compressed.
+   */
+  public long getStoredSize() {
+    return codec != null ? storedSize : getMetrics().getContentSize();
+  }
+
+  /**
+   * Records the codec the content is compressed with, or that it is stored as is when the codec is null.
+   */
+  public void setEncoding(@Nullable final String codec, final long storedSize) {
+    this.codec = codec;
+    this.storedSize = storedSize;
+  }
 }
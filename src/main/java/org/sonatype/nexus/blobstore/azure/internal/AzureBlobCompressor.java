@@ -0,0 +1,244 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Locale;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+import net.jpountz.lz4.LZ4BlockInputStream;
+import net.jpountz.lz4.LZ4BlockOutputStream;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Compresses blob content on its way to Azure and decompresses it on the way back. Text formats are compressed going
+ * by their content type, formats which are compressed already, such as archives and images, are stored as is, and
+ * other content is compressed when a sample of it shrinks to at most {@value #MAX_SAMPLE_RATIO} of its size.
+ *
+ * Content is compressed with LZ4 in the block format of {@link LZ4BlockOutputStream}, which trades some ratio for
+ * compressing and decompressing at several hundred megabytes per second.
+ */
+public class AzureBlobCompressor
+{
+  public static final String LZ4_CODEC = "lz4";
+
+  /**
+   * Bytes read from content of no telling content type to decide whether it is compressed.
+   */
+  static final int SAMPLE_BYTES = 64 * 1024;
+
+  private static final double MAX_SAMPLE_RATIO = 0.8;
+
+  private static final int BLOCK_BYTES = 64 * 1024;
+
+  private static final List<String> COMPRESSIBLE_TYPES = ImmutableList.of(
+      "text/", "application/xml", "application/json", "application/javascript", "application/x-javascript",
+      "application/x-sh", "+xml", "+json");
+
+  private static final List<String> COMPRESSED_TYPES = ImmutableList.of(
+      "application/zip", "application/java-archive", "application/x-java-archive", "application/gzip",
+      "application/x-gzip", "application/x-tgz", "application/x-bzip2", "application/x-xz", "application/zstd",
+      "application/x-7z-compressed", "application/x-rar-compressed", "application/x-rpm", "application/vnd.debian",
+      "application/x-debian-package", "image/", "audio/", "video/");
+
+  private final LZ4Factory factory = LZ4Factory.fastestInstance();
+
+  /**
+   * Whether content of the type may be worth compressing, the type permitting.
+   */
+  public boolean mayCompress(@Nullable final String contentType) {
+    return contentType == null || !matches(contentType, COMPRESSED_TYPES);
+  }
+
+  /**
+   * Selects the codec for content, given its first bytes.
+   *
+   * @return the codec, null to store the content as is
+   */
+  @Nullable
+  public String select(@Nullable final String contentType, final byte[] sample, final int length) {
+    if (length == 0 || !mayCompress(contentType)) {
+      return null;
+    }
+    if (contentType != null && matches(contentType, COMPRESSIBLE_TYPES)) {
+      return LZ4_CODEC;
+    }
+    LZ4Compressor compressor = factory.fastCompressor();
+    byte[] compressed = new byte[compressor.maxCompressedLength(length)];
+    int compressedLength = compressor.compress(sample, 0, length, compressed, 0, compressed.length);
+    return compressedLength <= length * MAX_SAMPLE_RATIO ? LZ4_CODEC : null;
+  }
+
+  /**
+   * Returns a stream of the compressed content.
+   */
+  public CompressingInputStream compress(final InputStream content) {
+    return new CompressingInputStream(content);
+  }
+
+  /**
+   * Returns a stream of the content stored with the codec.
+   *
+   * @param codec the codec recorded for the content, null when stored as is
+   */
+  public static InputStream decompress(@Nullable final String codec, final InputStream stored) throws IOException {
+    if (codec == null) {
+      return stored;
+    }
+    if (LZ4_CODEC.equals(codec)) {
+      return new LZ4BlockInputStream(stored, LZ4Factory.fastestInstance().fastDecompressor());
+    }
+    stored.close();
+    throw new IOException("Unsupported codec: " + codec);
+  }
+
+  private static boolean matches(final String contentType, final List<String> types) {
+    String type = contentType.toLowerCase(Locale.ENGLISH);
+    int parameters = type.indexOf(';');
+    if (parameters >= 0) {
+      type = type.substring(0, parameters).trim();
+    }
+    for (String candidate : types) {
+      if (candidate.endsWith("/") ? type.startsWith(candidate) :
+          candidate.startsWith("+") ? type.endsWith(candidate) : type.equals(candidate)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * How the content of a blob is stored.
+   */
+  public interface Encoding
+  {
+    String getCodec();
+
+    /**
+     * Returns the number of bytes stored in Azure.
+     */
+    long getStoredSize();
+
+    static Encoding of(final String codec, final long storedSize) {
+      checkNotNull(codec);
+      return new Encoding()
+      {
+        @Override
+        public String getCodec() {
+          return codec;
+        }
+
+        @Override
+        public long getStoredSize() {
+          return storedSize;
+        }
+      };
+    }
+  }
+
+  /**
+   * Compresses the content as it is read, one block at a time, and counts the compressed bytes.
+   */
+  public class CompressingInputStream
+      extends InputStream
+      implements Encoding
+  {
+    private final InputStream content;
+
+    private final Output output = new Output();
+
+    private final LZ4BlockOutputStream encoder;
+
+    private final byte[] chunk = new byte[BLOCK_BYTES];
+
+    private int position;
+
+    private boolean finished;
+
+    private long storedSize;
+
+    private CompressingInputStream(final InputStream content) {
+      this.content = checkNotNull(content);
+      this.encoder = new LZ4BlockOutputStream(output, BLOCK_BYTES, factory.fastCompressor());
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] single = new byte[1];
+      return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (position == output.size()) {
+        if (finished) {
+          return -1;
+        }
+        output.reset();
+        position = 0;
+        int n = content.read(chunk);
+        if (n < 0) {
+          // writes the last block and the end mark
+          encoder.close();
+          finished = true;
+        }
+        else {
+          encoder.write(chunk, 0, n);
+        }
+      }
+      int n = Math.min(len, output.size() - position);
+      System.arraycopy(output.buffer(), position, b, off, n);
+      position += n;
+      storedSize += n;
+      return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+      content.close();
+    }
+
+    @Override
+    public String getCodec() {
+      return LZ4_CODEC;
+    }
+
+    @Override
+    public long getStoredSize() {
+      return storedSize;
+    }
+  }
+
+  private static class Output
+      extends ByteArrayOutputStream
+  {
+    private Output() {
+      super(BLOCK_BYTES + BLOCK_BYTES / 4);
+    }
+
+    private byte[] buffer() {
+      return buf;
+    }
+  }
+}
@@ -0,0 +1,399 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nullable;
+
+import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.blobstore.api.BlobId;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toMap;
+
+/**
+ * Appends the content of small blobs to shared append blobs, called packs, so that storing one costs a share of an
+ * append instead of an upload of its own.
+ *
+ * Content arriving while an append is in flight is batched into the next one. Each pack has an index, an append blob
+ * of its own with a line per entry ({@code + <offset> <length> <blobId>}) and per released entry
+ * ({@code - <offset> <blobId>}). The blob attributes locate the content, so reads never consult the index; it is only
+ * read by {@link #usage()} to find the space which repacking can reclaim. A node appends to one pack at a time and
+ * starts a new one when the pack is full or older than {@value #MAX_PACK_AGE_MINUTES} minutes.
+ */
+public class AzureBlobPacker
+    extends ComponentSupport
+{
+  static final String PACKS_PREFIX = "packs/";
+
+  private static final String PACK_SUFFIX = ".pack";
+
+  private static final String INDEX_SUFFIX = ".index";
+
+  /**
+   * Largest block Append Block accepts on every service version.
+   */
+  static final int MAX_APPEND_BYTES = 4 * 1024 * 1024;
+
+  private static final int MAX_BATCH_ENTRIES = 1000;
+
+  private static final long MAX_PACK_BYTES = 256L * 1024 * 1024;
+
+  /**
+   * Limits of a pack which keep its index, appended to once per batch and per released entry, below the 50,000
+   * blocks an append blob can have.
+   */
+  private static final int MAX_PACK_APPENDS = 20_000;
+
+  private static final int MAX_PACK_ENTRIES = 20_000;
+
+  private static final long MAX_PACK_AGE_MINUTES = 60;
+
+  private final AzureClient azureClient;
+
+  private final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Held by the thread appending a batch; the others queue their content meanwhile.
+   */
+  private final Lock appendLock = new ReentrantLock();
+
+  @Nullable
+  private Pack current;
+
+  public AzureBlobPacker(final AzureClient azureClient) {
+    this.azureClient = checkNotNull(azureClient);
+  }
+
+  /**
+   * Appends the content to the current pack, together with the content of other blobs queued meanwhile, and returns
+   * once it is stored.
+   */
+  public Location append(final BlobId blobId, final byte[] content) throws IOException {
+    checkArgument(content.length <= MAX_APPEND_BYTES, "Content of %s is too large to pack", blobId);
+    Pending pending = new Pending(blobId, content);
+    queue.add(pending);
+    appendLock.lock();
+    try {
+      while (!pending.done) {
+        appendBatch();
+      }
+    }
+    finally {
+      appendLock.unlock();
+    }
+    if (pending.failure != null) {
+      throw new IOException("Unable to pack blob " + blobId, pending.failure);
+    }
+    return pending.location;
+  }
+
+  private void appendBatch() {
+    List<Pending> batch = new ArrayList<>();
+    int size = 0;
+    Pending next;
+    while ((next = queue.peek()) != null && batch.size() < MAX_BATCH_ENTRIES &&
+        (batch.isEmpty() || size + next.content.length <= MAX_APPEND_BYTES)) {
+      batch.add(queue.poll());
+      size += next.content.length;
+    }
+    if (batch.isEmpty()) {
+      return;
+    }
+
+    try {
+      Pack pack = currentPack(size, batch.size());
+      byte[] data = new byte[size];
+      int position = 0;
+      for (Pending pending : batch) {
+        System.arraycopy(pending.content, 0, data, position, pending.content.length);
+        position += pending.content.length;
+      }
+      long offset = size == 0 ? pack.size : azureClient.append(packPath(pack.key), data, size);
+
+      StringBuilder index = new StringBuilder();
+      long entryOffset = offset;
+      for (Pending pending : batch) {
+        index.append("+ ").append(entryOffset).append(' ').append(pending.content.length).append(' ')
+            .append(pending.blobId.asUniqueString()).append('\n');
+        pending.location = new Location(pack.key, entryOffset);
+        entryOffset += pending.content.length;
+      }
+      byte[] indexData = index.toString().getBytes(UTF_8);
+      azureClient.append(indexPath(pack.key), indexData, indexData.length);
+
+      pack.size = offset + size;
+      pack.appends++;
+      pack.entries += batch.size();
+      log.debug("Packed {} blobs, {} bytes into {}", batch.size(), size, pack.key);
+    }
+    catch (RuntimeException e) {
+      // the pack may have hit a limit of the service, continue with a new one
+      current = null;
+      for (Pending pending : batch) {
+        pending.failure = e;
+      }
+    }
+    finally {
+      for (Pending pending : batch) {
+        pending.done = true;
+      }
+    }
+  }
+
+  private Pack currentPack(final int size, final int entries) {
+    Pack pack = current;
+    if (pack == null || pack.size + size > MAX_PACK_BYTES || pack.appends >= MAX_PACK_APPENDS ||
+        pack.entries + entries > MAX_PACK_ENTRIES ||
+        System.currentTimeMillis() - pack.created > TimeUnit.MINUTES.toMillis(MAX_PACK_AGE_MINUTES)) {
+      long created = System.currentTimeMillis();
+      pack = new Pack(created + "-" + UUID.randomUUID(), created);
+      log.debug("Starting pack {}", pack.key);
+      current = pack;
+    }
+    return pack;
+  }
+
+  /**
+   * Reads the content of a packed blob.
+   */
+  public InputStream read(final String packKey, final long offset, final long length) throws IOException {
+    if (length == 0) {
+      return new ByteArrayInputStream(new byte[0]);
+    }
+    return azureClient.get(packPath(packKey), offset, length);
+  }
+
+  /**
+   * Records that the entry is no longer used, so that repacking can reclaim its space.
+   */
+  public void release(final String packKey, final long offset, final BlobId blobId) {
+    byte[] line = ("- " + offset + ' ' + blobId.asUniqueString() + '\n').getBytes(UTF_8);
+    azureClient.append(indexPath(packKey), line, line.length);
+  }
+
+  /**
+   * Reads the indexes of all packs.
+   */
+  public List<PackUsage> usage() throws IOException {
+    Map<String, Long> sizes = azureClient.listFileSizes(PACKS_PREFIX)
+        .collect(toMap(Entry::getKey, Entry::getValue));
+    List<PackUsage> packs = new ArrayList<>();
+    for (Entry<String, Long> file : sizes.entrySet()) {
+      String path = file.getKey();
+      if (!path.endsWith(PACK_SUFFIX)) {
+        continue;
+      }
+      String key = path.substring(PACKS_PREFIX.length(), path.length() - PACK_SUFFIX.length());
+      Long indexSize = sizes.get(indexPath(key));
+      packs.add(new PackUsage(key, file.getValue(),
+          indexSize == null ? new ArrayList<>() : readIndex(key, indexSize)));
+    }
+    return packs;
+  }
+
+  private List<PackEntry> readIndex(final String packKey, final long indexSize) throws IOException {
+    Map<String, PackEntry> live = new LinkedHashMap<>();
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(azureClient.get(indexPath(packKey), 0, indexSize), UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.startsWith("+ ")) {
+          String[] fields = line.split(" ", 4);
+          live.put(fields[1] + ' ' + fields[3],
+              new PackEntry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+        }
+        else if (line.startsWith("- ")) {
+          String[] fields = line.split(" ", 3);
+          live.remove(fields[1] + ' ' + fields[2]);
+        }
+      }
+    }
+    return new ArrayList<>(live.values());
+  }
+
+  /**
+   * Whether no node appends to the pack any longer, as it is older than twice the time a pack is written to.
+   */
+  public boolean isSealed(final PackUsage pack) {
+    return System.currentTimeMillis() - pack.getCreated() > TimeUnit.MINUTES.toMillis(2 * MAX_PACK_AGE_MINUTES);
+  }
+
+  /**
+   * Deletes a pack together with its index.
+   */
+  public void delete(final String packKey) {
+    azureClient.delete(packPath(packKey));
+    azureClient.delete(indexPath(packKey));
+  }
+
+  @VisibleForTesting
+  static String packPath(final String packKey) {
+    return PACKS_PREFIX + packKey + PACK_SUFFIX;
+  }
+
+  @VisibleForTesting
+  static String indexPath(final String packKey) {
+    return PACKS_PREFIX + packKey + INDEX_SUFFIX;
+  }
+
+  /**
+   * Where a blob was packed.
+   */
+  public static class Location
+  {
+    private final String packKey;
+
+    private final long offset;
+
+    Location(final String packKey, final long offset) {
+      this.packKey = packKey;
+      this.offset = offset;
+    }
+
+    public String getPackKey() {
+      return packKey;
+    }
+
+    public long getOffset() {
+      return offset;
+    }
+  }
+
+  /**
+   * A live entry of a pack index.
+   */
+  public static class PackEntry
+  {
+    private final long offset;
+
+    private final long length;
+
+    private final String blobId;
+
+    PackEntry(final long offset, final long length, final String blobId) {
+      this.offset = offset;
+      this.length = length;
+      this.blobId = blobId;
+    }
+
+    public long getOffset() {
+      return offset;
+    }
+
+    public long getLength() {
+      return length;
+    }
+
+    public BlobId getBlobId() {
+      return new BlobId(blobId);
+    }
+  }
+
+  /**
+   * The live entries of a pack and the space they take.
+   */
+  public static class PackUsage
+  {
+    private final String key;
+
+    private final long size;
+
+    private final List<PackEntry> liveEntries;
+
+    PackUsage(final String key, final long size, final List<PackEntry> liveEntries) {
+      this.key = key;
+      this.size = size;
+      this.liveEntries = liveEntries;
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public long getCreated() {
+      return Long.parseLong(key.substring(0, key.indexOf('-')));
+    }
+
+    public List<PackEntry> getLiveEntries() {
+      return liveEntries;
+    }
+
+    /**
+     * Returns the bytes of the pack which no live entry uses.
+     */
+    public long getReclaimableBytes() {
+      return size - liveEntries.stream().mapToLong(PackEntry::getLength).sum();
+    }
+  }
+
+  private static class Pending
+  {
+    private final BlobId blobId;
+
+    private final byte[] content;
+
+    private volatile boolean done;
+
+    private Location location;
+
+    private RuntimeException failure;
+
+    Pending(final BlobId blobId, final byte[] content) {
+      this.blobId = blobId;
+      this.content = content;
+    }
+  }
+
+  private static class Pack
+  {
+    private final String key;
+
+    private final long created;
+
+    private long size;
+
+    private int appends;
+
+    private int entries;
+
+    Pack(final String key, final long created) {
+      this.key = key;
+      this.created = created;
+    }
+  }
+}
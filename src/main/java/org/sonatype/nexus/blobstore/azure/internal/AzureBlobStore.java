@@ -12,12 +12,33 @@
  */
 package org.sonatype.nexus.blobstore.azure.internal;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 
 import javax.annotation.Nullable;
@@ -39,22 +60,38 @@ import org.sonatype.nexus.blobstore.api.BlobStoreConfiguration;
 import org.sonatype.nexus.blobstore.api.BlobStoreException;
 import org.sonatype.nexus.blobstore.api.BlobStoreMetrics;
 import org.sonatype.nexus.blobstore.api.BlobStoreUsageChecker;
+import org.sonatype.nexus.blobstore.azure.internal.AzureBlobCompressor.CompressingInputStream;
+import org.sonatype.nexus.blobstore.azure.internal.AzureBlobCompressor.Encoding;
+import org.sonatype.nexus.blobstore.azure.internal.AzureBlobPacker.Location;
+import org.sonatype.nexus.blobstore.azure.internal.AzureBlobPacker.PackEntry;
+import org.sonatype.nexus.blobstore.azure.internal.AzureBlobPacker.PackUsage;
+import org.sonatype.nexus.blobstore.azure.internal.AzureOperationTrace.Step;
+import org.sonatype.nexus.blobstore.azure.internal.AzureTransactionAccounting.RepositoryScope;
 import org.sonatype.nexus.blobstore.azure.internal.db.OrientDeletedBlobIndex;
+import org.sonatype.nexus.common.app.ApplicationDirectories;
 import org.sonatype.nexus.common.log.DryRunPrefix;
+import org.sonatype.nexus.common.property.SystemPropertiesHelper;
 import org.sonatype.nexus.common.stateguard.Guarded;
+import org.sonatype.nexus.thread.NexusThreadFactory;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.hash.HashCode;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Striped;
 import org.joda.time.DateTime;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.cache.CacheLoader.from;
+import static java.util.Collections.emptySet;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
 import static org.sonatype.nexus.blobstore.DirectPathLocationStrategy.DIRECT_PATH_ROOT;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureBlobCompressor.LZ4_CODEC;
 import static org.sonatype.nexus.blobstore.api.BlobAttributesConstants.HEADER_PREFIX;
 import static org.sonatype.nexus.common.stateguard.StateGuardLifecycleSupport.State.FAILED;
 import static org.sonatype.nexus.common.stateguard.StateGuardLifecycleSupport.State.NEW;
@@ -80,6 +117,56 @@ public class AzureBlobStore
 
   public static final String CLIENT_TYPE = "clientType";
 
+  public static final String SYNC_CLIENT_TYPE = "sync";
+
+  public static final String ASYNC_CLIENT_TYPE = "async";
+
+  public static final String EXECUTION_MODE_KEY = "executionMode";
+
+  public static final String IO_THREADS_KEY = "ioThreads";
+
+  public static final String MAX_CONCURRENT_REQUESTS_KEY = "maxConcurrentRequests";
+
+  public static final String MAX_QUEUED_REQUESTS_KEY = "maxQueuedRequests";
+
+  public static final String MAX_QUEUE_WAIT_MILLIS_KEY = "maxQueueWaitMillis";
+
+  public static final String HEDGE_READS_KEY = "hedgeReads";
+
+  public static final String HEDGE_PERCENTILE_KEY = "hedgePercentile";
+
+  public static final String HEDGE_BUDGET_PERCENT_KEY = "hedgeBudgetPercent";
+
+  public static final String LOCATION_MODE_KEY = "locationMode";
+
+  public static final String PRIMARY_LOCATION_MODE = "primary";
+
+  public static final String NEAREST_LOCATION_MODE = "nearest";
+
+  public static final String PRIMARY_ENDPOINT_KEY = "primaryEndpoint";
+
+  public static final String SECONDARY_ENDPOINT_KEY = "secondaryEndpoint";
+
+  public static final String SPOOL_TEMPORARY_BLOBS_KEY = "spoolTemporaryBlobs";
+
+  public static final String SPOOL_MAX_MEGABYTES_KEY = "spoolMaxMegabytes";
+
+  public static final String SHARD_KEY_PREFIX = "shard.";
+
+  public static final String PREVIOUS_SHARD_COUNT_KEY = "previousShardCount";
+
+  public static final String COALESCE_DOWNLOADS_KEY = "coalesceDownloads";
+
+  public static final String COALESCE_MAX_MEGABYTES_KEY = "coalesceMaxMegabytes";
+
+  public static final String DEDUPLICATE_KEY = "deduplicate";
+
+  public static final String PACK_THRESHOLD_BYTES_KEY = "packThresholdBytes";
+
+  public static final String COMPRESSION_KEY = "compression";
+
+  public static final String NO_COMPRESSION = "none";
+
   public static final String BLOB_CONTENT_SUFFIX = ".bytes";
 
   public static final String BLOB_ATTRIBUTE_SUFFIX = ".properties";
@@ -90,10 +177,70 @@ public class AzureBlobStore
 
   public static final String DIRECT_PATH_PREFIX = CONTENT_PREFIX + "/" + DIRECT_PATH_ROOT;
 
+  static final String SHARED_CONTENT_PREFIX = CONTENT_PREFIX + "/sha1";
+
+  private static final String REFERENCES_SUFFIX = ".refs";
+
+  private static final String REFERENCE_SUFFIX = ".ref";
+
   public static final String TYPE_KEY = "type";
 
   public static final String TYPE_V1 = "azure/1";
 
+  public static final String SLOW_OPERATION_THRESHOLD_KEY = "slowOperationThresholdMillis";
+
+  private static final int DEFAULT_SLOW_OPERATION_THRESHOLD_MILLIS =
+      SystemPropertiesHelper.getInteger("nexus.azure.slowOperationThresholdMillis", 2000);
+
+  private static final int SLOW_OPERATION_CAPACITY = 100;
+
+  private static final boolean DEFAULT_SPOOL_TEMPORARY_BLOBS =
+      SystemPropertiesHelper.getBoolean("nexus.azure.spool.enabled", false);
+
+  private static final int DEFAULT_SPOOL_MAX_MEGABYTES =
+      SystemPropertiesHelper.getInteger("nexus.azure.spool.maxMegabytes", 1024);
+
+  private static final boolean DEFAULT_COALESCE_DOWNLOADS =
+      SystemPropertiesHelper.getBoolean("nexus.azure.coalesce.enabled", false);
+
+  private static final int DEFAULT_COALESCE_MAX_MEGABYTES =
+      SystemPropertiesHelper.getInteger("nexus.azure.coalesce.maxMegabytes", 1024);
+
+  private static final boolean DEFAULT_DEDUPLICATE =
+      SystemPropertiesHelper.getBoolean("nexus.azure.dedup.enabled", false);
+
+  private static final int DEFAULT_PACK_THRESHOLD_BYTES =
+      SystemPropertiesHelper.getInteger("nexus.azure.pack.thresholdBytes", 0);
+
+  private static final String DEFAULT_COMPRESSION =
+      SystemPropertiesHelper.getString("nexus.azure.compression", NO_COMPRESSION);
+
+  private static final int LOCK_STRIPES = SystemPropertiesHelper.getInteger("nexus.azure.lockStripes", 1024);
+
+  private static final int LIVE_BLOBS_CACHE_SIZE =
+      SystemPropertiesHelper.getInteger("nexus.azure.liveBlobs.cacheSize", 10_000);
+
+  /**
+   * How long the attributes of a blob are served from the cache before they are read again, which bounds how long a
+   * change made on another node goes unseen.
+   */
+  private static final int LIVE_BLOBS_EXPIRY_SECONDS =
+      SystemPropertiesHelper.getInteger("nexus.azure.liveBlobs.expirySeconds", 30);
+
+  private static final int METRICS_RECALCULATION_THREADS =
+      SystemPropertiesHelper.getInteger("nexus.azure.metrics.recalculationThreads", 8);
+
+  /**
+   * Conditional writes of attributes which lost to a change by another node and were retried, before giving up.
+   */
+  private static final int MAX_ATTRIBUTE_WRITE_ATTEMPTS = 10;
+
+  /**
+   * Conditional deletes of unreferenced shared content which lost to a new reference on another node, before keeping
+   * the content.
+   */
+  private static final int MAX_CONTENT_DELETE_ATTEMPTS = 10;
+
   private AzureStorageClientFactory azureStorageClientFactory;
 
   private final BlobIdLocationResolver blobIdLocationResolver;
@@ -105,16 +252,74 @@ public class AzureBlobStore
 
   private AzureClient azureClient;
 
+  /**
+   * Recently used blobs, whose attributes are reused while fresh. The cache may evict a blob at any time, so changes
+   * to a blob are serialized by {@link #blobLocks} rather than by its instance.
+   */
   private LoadingCache<BlobId, AzureBlob> liveBlobs;
 
+  /**
+   * Serializes the changes to each blob, and the reloads of its attributes, on this node.
+   */
+  private final Striped<Lock> blobLocks = Striped.lock(LOCK_STRIPES);
+
   private DeletedBlobIndex deletedBlobIndex;
 
+  private final AzureTransactionAccounting transactionAccounting = new AzureTransactionAccounting();
+
+  private AzureSlowOperationRecorder slowOperations;
+
+  private final ApplicationDirectories applicationDirectories;
+
+  /**
+   * Local staging area of temporary blobs, null unless {@code spoolTemporaryBlobs} is set.
+   */
+  @Nullable
+  private AzureTemporaryBlobSpool spool;
+
+  private final ConcurrentMap<BlobId, SpooledBlob> spooledBlobs = new ConcurrentHashMap<>();
+
+  /**
+   * Shares the downloads of blobs among their concurrent readers, null unless {@code coalesceDownloads} is set.
+   */
+  @Nullable
+  private AzureDownloadCoalescer coalescer;
+
+  /**
+   * Whether permanent blobs are written to content shared by all blobs with the same SHA-1.
+   */
+  private boolean deduplicate;
+
+  /**
+   * Serializes the reference changes of each shared content on this node.
+   */
+  private final Striped<Lock> contentLocks = Striped.lock(LOCK_STRIPES);
+
+  /**
+   * Source of the generations of the cached blobs, shared so that a blob loaded again after eviction moves on.
+   */
+  private final AtomicLong contentGenerations = new AtomicLong();
+
+  private AzureBlobPacker packer;
+
+  /**
+   * Size up to which the content of permanent blobs is packed, 0 when blobs are not packed.
+   */
+  private int packThreshold;
+
+  /**
+   * Compresses the content of blobs, null unless {@code compression} selects a codec.
+   */
+  @Nullable
+  private AzureBlobCompressor compressor;
+
   @Inject
   public AzureBlobStore(final AzureStorageClientFactory azureStorageClientFactory,
                         final BlobIdLocationResolver blobIdLocationResolver,
                         final AzureBlobStoreMetricsStore metricsStore,
                         final DryRunPrefix dryRunPrefix,
-                        final @Named(OrientDeletedBlobIndex.NAME) DeletedBlobIndex deletedBlobIndex)
+                        final @Named(OrientDeletedBlobIndex.NAME) DeletedBlobIndex deletedBlobIndex,
+                        final ApplicationDirectories applicationDirectories)
   {
     super(blobIdLocationResolver, dryRunPrefix);
     this.azureStorageClientFactory = checkNotNull(azureStorageClientFactory);
@@ -122,11 +327,16 @@ public class AzureBlobStore
     this.storeMetrics = metricsStore;
     this.dryRunPrefix = dryRunPrefix;
     this.deletedBlobIndex = checkNotNull(deletedBlobIndex);
+    this.applicationDirectories = checkNotNull(applicationDirectories);
   }
 
   @Override
   protected void doStart() throws Exception {
     log.debug("Starting");
+    if (azureClient == null) {
+      // restarted without being initialized again
+      openClient(blobStoreConfiguration);
+    }
     AzurePropertiesFile metadata = new AzurePropertiesFile(azureClient, METADATA_FILENAME);
     if (metadata.exists()) {
       metadata.load();
@@ -139,7 +349,12 @@ public class AzureBlobStore
       metadata.setProperty(TYPE_KEY, TYPE_V1);
       metadata.store();
     }
-    liveBlobs = CacheBuilder.newBuilder().weakValues().build(from(AzureBlob::new));
+    liveBlobs = CacheBuilder.newBuilder()
+        .maximumSize(LIVE_BLOBS_CACHE_SIZE)
+        .expireAfterWrite(LIVE_BLOBS_EXPIRY_SECONDS, TimeUnit.SECONDS)
+        .build(from(AzureBlob::new));
+    clearSpool();
+    clearDownloads();
     storeMetrics.setAzureClient(azureClient);
     storeMetrics.setBlobStore(this);
     storeMetrics.start();
@@ -149,13 +364,61 @@ public class AzureBlobStore
   @Override
   protected void doStop() throws Exception {
     liveBlobs = null;
+    clearSpool();
+    clearDownloads();
     storeMetrics.stop();
+    closeClient();
+  }
+
+  /**
+   * Creates the client of the configured containers, replacing any previous one.
+   */
+  private void openClient(final BlobStoreConfiguration blobStoreConfiguration) throws Exception {
+    closeClient();
+    azureClient = azureStorageClientFactory.create(blobStoreConfiguration, transactionAccounting);
+    packer = new AzureBlobPacker(azureClient);
+  }
+
+  /**
+   * Releases the threads, connections and metrics of the client.
+   */
+  private void closeClient() {
+    if (azureClient != null) {
+      azureClient.close();
+      azureClient = null;
+    }
   }
 
   @Override
   @Guarded(by = STARTED)
-  public Blob create(final Path path, final Map<String, String> map, final long size, final HashCode hash) {
-    throw new BlobStoreException("hard links not supported", null);
+  public Blob create(final Path sourceFile,
+                     final Map<String, String> headers,
+                     final long size,
+                     final HashCode sha1)
+  {
+    checkNotNull(sourceFile);
+    checkNotNull(sha1);
+    checkArgument(headers.containsKey(BLOB_NAME_HEADER), "Missing header: %s", BLOB_NAME_HEADER);
+    checkArgument(headers.containsKey(CREATED_BY_HEADER), "Missing header: %s", CREATED_BY_HEADER);
+    try (RepositoryScope scope = transactionAccounting.attributeTo(headers.get(REPO_NAME_HEADER))) {
+      // the caller has already measured and hashed the file
+      StreamMetrics metrics = new StreamMetrics(size, sha1.toString());
+      if (isPackable(headers, size)) {
+        return createPacked(headers, metrics, Files.readAllBytes(sourceFile), null);
+      }
+      if (isCompressible(headers)) {
+        try (InputStream data = Files.newInputStream(sourceFile)) {
+          return createStreamed(headers, metrics, data, () -> metrics, null);
+        }
+      }
+      return create(headers, metrics, destination -> {
+        azureClient.create(destination, sourceFile, size);
+        return metrics;
+      }, null);
+    }
+    catch (IOException e) {
+      throw new BlobStoreException(e, null);
+    }
   }
 
   @Override
@@ -163,60 +426,528 @@ public class AzureBlobStore
                           final Map<String, String> headers,
                           @Nullable final BlobId blobId)
   {
-    return create(headers, destination -> {
+    try (RepositoryScope scope = transactionAccounting.attributeTo(headers.get(REPO_NAME_HEADER))) {
+      if (spool != null && headers.containsKey(TEMPORARY_BLOB_HEADER)) {
+        return createTemporary(blobData, headers, blobId);
+      }
+      if (isPackable(headers, 0)) {
+        return createPackable(blobData, headers, blobId);
+      }
       try (InputStream data = blobData) {
-        MetricsInputStream input = new MetricsInputStream(data);
-        azureClient.create(destination, input);
-        return input.getMetrics();
+        return createStreamed(headers, null, data, null, blobId);
       }
+    }
+    catch (IOException e) {
+      throw new BlobStoreException(e, blobId);
+    }
+  }
+
+  /**
+   * Packs a blob whose content turns out to be small enough, or stores it as usual.
+   */
+  private Blob createPackable(final InputStream blobData,
+                              final Map<String, String> headers,
+                              @Nullable final BlobId blobId)
+  {
+    try (InputStream data = blobData) {
+      MetricsInputStream input = new MetricsInputStream(data);
+      byte[] head = new byte[packThreshold + 1];
+      int length = ByteStreams.read(input, head, 0, head.length);
+      if (length <= packThreshold) {
+        return createPacked(headers, input.getMetrics(), Arrays.copyOf(head, length), blobId);
+      }
+      return createStreamed(headers, null, new SequenceInputStream(new ByteArrayInputStream(head), input),
+          input::getMetrics, blobId);
+    }
+    catch (IOException e) {
+      throw new BlobStoreException(e, blobId);
+    }
+  }
+
+  /**
+   * Stores streamed content, compressed when the blob store compresses content and a sample of it compresses well.
+   *
+   * @param measured supplies the size and SHA-1 of the content once it has been read, or null to have the client
+   *                 measure the content while it reads it for upload
+   */
+  private Blob createStreamed(final Map<String, String> headers,
+                              @Nullable final StreamMetrics knownMetrics,
+                              final InputStream content,
+                              @Nullable final Supplier<StreamMetrics> measured,
+                              @Nullable final BlobId blobId) throws IOException
+  {
+    if (knownMetrics == null && isDeduplicated(headers)) {
+      return createDeduplicated(headers, content, measured, blobId);
+    }
+    if (measured == null && isCompressible(headers)) {
+      // the client would measure the compressed content, so the content is measured before it is compressed
+      MetricsInputStream input = new MetricsInputStream(content);
+      return createStreamed(headers, knownMetrics, input, input::getMetrics, blobId);
+    }
+    InputStream data = content;
+    String codec = null;
+    if (isCompressible(headers)) {
+      byte[] sample = new byte[AzureBlobCompressor.SAMPLE_BYTES];
+      int length = ByteStreams.read(content, sample, 0, sample.length);
+      data = new SequenceInputStream(new ByteArrayInputStream(sample, 0, length), content);
+      codec = compressor.select(headers.get(CONTENT_TYPE_HEADER), sample, length);
+    }
+    if (codec == null) {
+      InputStream uncompressed = data;
+      return create(headers, knownMetrics, null, null, destination -> {
+        if (measured == null) {
+          return azureClient.createMeasured(destination, uncompressed);
+        }
+        azureClient.create(destination, uncompressed);
+        return measured.get();
+      }, blobId);
+    }
+    CompressingInputStream compressed = compressor.compress(data);
+    return create(headers, knownMetrics, null, compressed, destination -> {
+      azureClient.create(destination, compressed);
+      return measured.get();
     }, blobId);
   }
 
+  /**
+   * Stores deduplicated content whose SHA-1 is not known yet. It is spooled to a local file to hash it first, so it
+   * is uploaded straight to its shared path, or not at all when that content is stored already.
+   */
+  private Blob createDeduplicated(final Map<String, String> headers,
+                                  final InputStream content,
+                                  @Nullable final Supplier<StreamMetrics> measured,
+                                  @Nullable final BlobId blobId) throws IOException
+  {
+    Path file = Files.createTempFile(applicationDirectories.getTemporaryDirectory().toPath(), "azure-", ".bytes");
+    try {
+      StreamMetrics metrics;
+      if (measured == null) {
+        MetricsInputStream input = new MetricsInputStream(content);
+        Files.copy(input, file, StandardCopyOption.REPLACE_EXISTING);
+        metrics = input.getMetrics();
+      }
+      else {
+        Files.copy(content, file, StandardCopyOption.REPLACE_EXISTING);
+        metrics = measured.get();
+      }
+      return create(headers, metrics, destination -> {
+        azureClient.create(destination, file, metrics.getSize());
+        return metrics;
+      }, blobId);
+    }
+    finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  /**
+   * Whether the content of a blob may be compressed. Shared content of deduplicated blobs is not, as the blobs
+   * referring to it could not tell how it was stored.
+   */
+  private boolean isCompressible(final Map<String, String> headers) {
+    return compressor != null && !isDeduplicated(headers) && compressor.mayCompress(headers.get(CONTENT_TYPE_HEADER));
+  }
+
+  private boolean isDeduplicated(final Map<String, String> headers) {
+    return deduplicate && !headers.containsKey(TEMPORARY_BLOB_HEADER);
+  }
+
+  /**
+   * Whether the content of a blob of the given size goes into a pack.
+   */
+  private boolean isPackable(final Map<String, String> headers, final long size) {
+    return packThreshold > 0 && size <= packThreshold && !headers.containsKey(TEMPORARY_BLOB_HEADER);
+  }
+
+  /**
+   * Spools a temporary blob locally, or stores it in Azure as usual should it not fit into the spool.
+   */
+  private Blob createTemporary(final InputStream blobData,
+                               final Map<String, String> headers,
+                               @Nullable final BlobId assignedBlobId)
+  {
+    BlobId blobId = getBlobId(headers, assignedBlobId);
+    try (InputStream data = blobData) {
+      MetricsInputStream input = new MetricsInputStream(data);
+      InputStream overflow = spool.spool(blobId, input);
+      if (overflow != null) {
+        try (InputStream remaining = overflow) {
+          return createStreamed(headers, null, remaining, input::getMetrics, blobId);
+        }
+      }
+      StreamMetrics streamMetrics = input.getMetrics();
+      SpooledBlob blob = new SpooledBlob(blobId);
+      blob.refresh(headers, new BlobMetrics(new DateTime(), streamMetrics.getSha1(), streamMetrics.getSize()));
+      spooledBlobs.put(blobId, blob);
+      log.debug("Spooled temporary blob {}", blobId);
+      return blob;
+    }
+    catch (IOException e) {
+      throw new BlobStoreException(e, blobId);
+    }
+  }
+
+  private boolean removeSpooled(final BlobId blobId) {
+    SpooledBlob blob = spooledBlobs.remove(blobId);
+    if (blob == null) {
+      return false;
+    }
+    log.debug("Dropping spooled temporary blob {}", blobId);
+    spool.remove(blobId, blob.getMetrics().getContentSize());
+    return true;
+  }
+
+  private void clearSpool() throws IOException {
+    spooledBlobs.clear();
+    if (spool != null) {
+      spool.clear();
+    }
+  }
+
+  /**
+   * Locks the stripe of the blob.
+   */
+  private Lock lockBlob(final BlobId blobId) {
+    Lock lock = blobLocks.get(blobId);
+    lock.lock();
+    return lock;
+  }
+
+  /**
+   * Makes the next get of the blob reload its attributes, if the blob is cached at all. The stripe is taken so that
+   * a reload already reading the previous attributes completes first.
+   */
+  private void markStale(final BlobId blobId) {
+    AzureBlob blob = liveBlobs.getIfPresent(blobId);
+    if (blob != null) {
+      Lock lock = lockBlob(blobId);
+      try {
+        blob.markStale();
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Fails a change to attributes which other nodes kept changing through all attempts.
+   */
+  private static void checkAttempts(final int attempt, final String attributePath) throws IOException {
+    if (attempt >= MAX_ATTRIBUTE_WRITE_ATTEMPTS) {
+      throw new IOException("Attributes " + attributePath + " kept changing, giving up after " + attempt + " attempts");
+    }
+  }
+
+  private void clearDownloads() throws IOException {
+    if (coalescer != null) {
+      coalescer.clear();
+    }
+  }
+
+  /**
+   * Detaches the download in flight of a blob which is overwritten or deleted from later readers.
+   */
+  private void invalidateDownload(final BlobId blobId) {
+    if (coalescer != null) {
+      coalescer.invalidate(blobId);
+    }
+  }
+
+  private Blob create(final Map<String, String> headers,
+                      final BlobIngester ingester,
+                      @Nullable final BlobId assignedBlobId)
+  {
+    return create(headers, null, null, null, ingester, assignedBlobId);
+  }
+
   private Blob create(final Map<String, String> headers,
+                      final StreamMetrics knownMetrics,
                       final BlobIngester ingester,
                       @Nullable final BlobId assignedBlobId)
+  {
+    return create(headers, knownMetrics, null, null, ingester, assignedBlobId);
+  }
+
+  private Blob createPacked(final Map<String, String> headers,
+                            final StreamMetrics metrics,
+                            final byte[] content,
+                            @Nullable final BlobId assignedBlobId)
+  {
+    return create(headers, metrics, content, null, null, assignedBlobId);
+  }
+
+  /**
+   * @param knownMetrics the size and SHA-1 of the content if known before it is ingested, as it always is in a
+   *                     deduplicating blob store, which skips the upload of content it has already
+   * @param packedContent the content to pack instead of ingesting it, whose metrics are known
+   * @param encoding      how the ingester stores the content if compressed, read once it has been ingested
+   */
+  private Blob create(final Map<String, String> headers,
+                      @Nullable final StreamMetrics knownMetrics,
+                      @Nullable final byte[] packedContent,
+                      @Nullable final Encoding encoding,
+                      @Nullable final BlobIngester ingester,
+                      @Nullable final BlobId assignedBlobId)
   {
     final BlobId blobId = getBlobId(headers, assignedBlobId);
+    AzureOperationTrace trace = slowOperations.begin("create", blobId);
+    try {
+      return create(blobId, headers, knownMetrics, packedContent, encoding, ingester, trace);
+    }
+    finally {
+      slowOperations.end(trace);
+    }
+  }
 
+  private Blob create(final BlobId blobId,
+                      final Map<String, String> headers,
+                      @Nullable final StreamMetrics knownMetrics,
+                      @Nullable final byte[] packedContent,
+                      @Nullable final Encoding encoding,
+                      @Nullable final BlobIngester ingester,
+                      final AzureOperationTrace trace)
+  {
     final String blobPath = contentPath(blobId);
     final String attributePath = attributePath(blobId);
     final boolean isDirectPath = Boolean.parseBoolean(headers.getOrDefault(DIRECT_PATH_BLOB_HEADER, "false"));
-    Long existingSize = null;
+    AzureBlobAttributes existingAttributes = null;
     if (isDirectPath) {
-      AzureBlobAttributes blobAttributes = new AzureBlobAttributes(azureClient, attributePath);
-      if (exists(blobId)) {
-        existingSize = getContentSizeForDeletion(blobAttributes);
-      }
+      // a single read gives the size to release and the version the new attributes are stored over
+      existingAttributes = loadOverwritten(attributePath);
+      trace.mark(Step.ATTRIBUTES_LOAD);
     }
 
     final AzureBlob blob = liveBlobs.getUnchecked(blobId);
 
-    Lock lock = blob.lock();
+    Lock lock = lockBlob(blobId);
+    String contentKey = null;
+    Location packLocation = null;
     try {
-      log.debug("Writing blob {} to {}", blobId, blobPath);
-
-      final StreamMetrics streamMetrics = ingester.ingestTo(blobPath);
+      trace.mark(Step.LOCK_WAIT);
+
+      StreamMetrics streamMetrics;
+      boolean contentAdded = true;
+      if (packedContent != null) {
+        log.debug("Packing blob {}", blobId);
+        packLocation = packer.append(blobId, packedContent);
+        streamMetrics = checkNotNull(knownMetrics);
+      }
+      else if (isDeduplicated(headers)) {
+        // deduplicated content is hashed before it is stored, so it is uploaded straight to its shared path
+        streamMetrics = checkNotNull(knownMetrics);
+        contentKey = streamMetrics.getSha1();
+        contentAdded = addReference(blobId, contentKey, ingester);
+      }
+      else {
+        log.debug("Writing blob {} to {}", blobId, blobPath);
+        streamMetrics = ingester.ingestTo(blobPath);
+      }
+      trace.mark(Step.CONTENT_UPLOAD);
       final BlobMetrics metrics = new BlobMetrics(new DateTime(), streamMetrics.getSha1(), streamMetrics.getSize());
-      blob.refresh(headers, metrics);
 
       AzureBlobAttributes blobAttributes = new AzureBlobAttributes(azureClient, attributePath, headers, metrics);
+      blobAttributes.setContentKey(contentKey);
+      if (encoding != null) {
+        blobAttributes.setEncoding(encoding.getCodec(), encoding.getStoredSize());
+      }
+      if (packLocation != null) {
+        blobAttributes.setPackLocation(packLocation.getPackKey(), packLocation.getOffset());
+      }
+      locateContent(blob, blobAttributes);
+      invalidateDownload(blobId);
 
-      blobAttributes.store();
-      if (isDirectPath && existingSize != null) {
-        storeMetrics.recordDeletion(existingSize);
+      if (isDirectPath) {
+        existingAttributes = storeOverwriting(attributePath, blobAttributes, existingAttributes);
+      }
+      else {
+        blobAttributes.store();
       }
-      storeMetrics.recordAddition(blobAttributes.getMetrics().getContentSize());
+      trace.mark(Step.ATTRIBUTES_STORE);
+      if (existingAttributes != null) {
+        releaseOverwritten(blobId, existingAttributes, contentKey != null || packLocation != null, contentKey);
+      }
+      // every blob is counted, while content shared with other blobs is only sized once
+      storeMetrics.recordAddition(contentAdded ? blobAttributes.getStoredSize() : 0);
 
       return blob;
     }
     catch (IOException e) {
-      // Something went wrong, clean up the files we created
-      azureClient.delete(attributePath);
-      azureClient.delete(blobPath);
-      throw new BlobStoreException(e, blobId);
-    }
-    finally {
-      lock.unlock();
+      // Something went wrong, clean up the files we created
+      deleteIfExists(attributePath);
+      deleteIfExists(blobPath);
+      if (contentKey != null) {
+        releaseReference(blobId, contentKey);
+      }
+      if (packLocation != null) {
+        packer.release(packLocation.getPackKey(), packLocation.getOffset(), blobId);
+      }
+      throw new BlobStoreException(e, blobId);
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Records the reference of the blob to the shared content with the SHA-1, and uploads the content through the
+   * ingester unless it is stored already.
+   *
+   * The reference goes first and the content is then touched, which changes its ETag: a release of the last other
+   * reference on another node either lists this reference, or fails to delete the content conditionally and lists
+   * the references again, or has deleted the content before it is touched here, and it is uploaded again.
+   *
+   * @return whether the content was uploaded
+   */
+  private boolean addReference(final BlobId blobId,
+                               final String contentKey,
+                               final BlobIngester ingester) throws IOException
+  {
+    Lock lock = contentLocks.get(contentKey);
+    lock.lock();
+    try {
+      azureClient.create(referencePath(contentKey, blobId), new ByteArrayInputStream(new byte[0]));
+      String sharedPath = sharedContentPath(contentKey);
+      if (azureClient.touch(sharedPath) != null) {
+        log.debug("Blob {} shares stored content {}", blobId, contentKey);
+        return false;
+      }
+      log.debug("Writing blob {} to {}", blobId, sharedPath);
+      ingester.ingestTo(sharedPath);
+      return true;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes the reference of the blob to the shared content with the SHA-1, and the content with its last reference.
+   * The content is deleted only at the version touched before the references were listed, so that a reference added
+   * on another node meanwhile keeps it; see {@link #addReference}.
+   *
+   * @return whether the content was deleted
+   */
+  @VisibleForTesting
+  boolean releaseReference(final BlobId blobId, final String contentKey) {
+    Lock lock = contentLocks.get(contentKey);
+    lock.lock();
+    try {
+      deleteIfExists(referencePath(contentKey, blobId));
+      String sharedPath = sharedContentPath(contentKey);
+      for (int attempt = 1; attempt <= MAX_CONTENT_DELETE_ATTEMPTS; attempt++) {
+        String eTag = azureClient.touch(sharedPath);
+        if (eTag == null) {
+          log.debug("Unreferenced content {} is deleted already", contentKey);
+          return false;
+        }
+        try (Stream<String> references = azureClient.listFiles(referencePrefix(contentKey))) {
+          if (references.findAny().isPresent()) {
+            return false;
+          }
+        }
+        if (azureClient.deleteIfMatch(sharedPath, eTag)) {
+          log.debug("Deleted unreferenced content {}", contentKey);
+          return true;
+        }
+        log.debug("Content {} was touched while listing its references, listing them again", contentKey);
+      }
+      // keeping content which may still be referenced, as it is only garbage otherwise
+      log.warn("Content {} kept changing, keeping it after {} attempts to delete it", contentKey,
+          MAX_CONTENT_DELETE_ATTEMPTS);
+      return false;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Stores the attributes of a direct path blob over the version read before it was written, which another node may
+   * have replaced or removed meanwhile; the attributes are then stored over whichever version is current.
+   *
+   * @param existing the attributes read before the write, or null if there were none
+   * @return the attributes overwritten, or null if there were none
+   */
+  @Nullable
+  private AzureBlobAttributes storeOverwriting(final String attributePath,
+                                               final AzureBlobAttributes blobAttributes,
+                                               @Nullable final AzureBlobAttributes existing) throws IOException
+  {
+    AzureBlobAttributes overwritten = existing;
+    for (int attempt = 1; ; attempt++) {
+      if (blobAttributes.storeIfMatch(overwritten != null ? overwritten.getETag() : null)) {
+        return overwritten;
+      }
+      checkAttempts(attempt, attributePath);
+      log.debug("Attributes {} changed while the blob was written, storing over the current version", attributePath);
+      AzureBlobAttributes current = new AzureBlobAttributes(azureClient, attributePath);
+      overwritten = current.load() ? current : null;
+    }
+  }
+
+  /**
+   * Releases the content of a direct path blob which was overwritten.
+   *
+   * @param storedElsewhere whether the new content is not at the path of the blob, but shared or packed
+   * @param contentKey      the SHA-1 of the new content if shared
+   */
+  private void releaseOverwritten(final BlobId blobId,
+                                  final AzureBlobAttributes overwritten,
+                                  final boolean storedElsewhere,
+                                  @Nullable final String contentKey)
+  {
+    Long overwrittenSize = overwritten.getMetrics() != null ? overwritten.getStoredSize() : null;
+    String overwrittenKey = overwritten.getContentKey();
+    boolean released;
+    if (overwritten.getPackKey() != null) {
+      packer.release(overwritten.getPackKey(), overwritten.getPackOffset(), blobId);
+      released = true;
+    }
+    else if (overwrittenKey == null) {
+      // content of its own is overwritten in place, unless the new content is stored elsewhere
+      if (storedElsewhere) {
+        deleteIfExists(contentPath(blobId));
+      }
+      released = true;
+    }
+    else {
+      released = !overwrittenKey.equals(contentKey) && releaseReference(blobId, overwrittenKey);
+    }
+    if (overwrittenSize != null) {
+      storeMetrics.recordDeletion(released ? overwrittenSize : 0);
+    }
+  }
+
+  /**
+   * Deletes the file, which an earlier step may have deleted already.
+   */
+  private void deleteIfExists(final String path) {
+    try {
+      azureClient.delete(path);
+    }
+    catch (RuntimeException e) {
+      if (!AzureErrors.isNotFound(e)) {
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Loads the attributes of a direct path blob about to be overwritten. When they cannot be read, the conditional
+   * store of the new attributes reads them again.
+   *
+   * @return the attributes, or null if the blob does not exist or they could not be read
+   */
+  @Nullable
+  private AzureBlobAttributes loadOverwritten(final String attributePath) {
+    AzureBlobAttributes blobAttributes = new AzureBlobAttributes(azureClient, attributePath);
+    try {
+      return blobAttributes.load() ? blobAttributes : null;
+    }
+    catch (IOException e) {
+      log.warn("Unable to load attributes {} of overwritten blob", blobAttributes, e);
+      return null;
     }
   }
 
@@ -224,7 +955,7 @@ public class AzureBlobStore
   private Long getContentSizeForDeletion(final AzureBlobAttributes blobAttributes) {
     try {
       blobAttributes.load();
-      return blobAttributes.getMetrics() != null ? blobAttributes.getMetrics().getContentSize() : null;
+      return blobAttributes.getMetrics() != null ? blobAttributes.getStoredSize() : null;
     }
     catch (Exception e) {
       log.warn("Unable to load attributes {}, delete will not be added to metrics.", blobAttributes, e);
@@ -236,12 +967,39 @@ public class AzureBlobStore
   @Guarded(by = STARTED)
   public Blob copy(final BlobId blobId, final Map<String, String> headers) {
     Blob sourceBlob = checkNotNull(get(blobId));
-    String sourcePath = contentPath(sourceBlob.getId());
-    return create(headers, destination -> {
-      azureClient.copy(sourcePath, destination);
-      BlobMetrics metrics = sourceBlob.getMetrics();
-      return new StreamMetrics(metrics.getContentSize(), metrics.getSha1Hash());
-    }, null);
+    BlobMetrics sourceMetrics = sourceBlob.getMetrics();
+    StreamMetrics metrics = new StreamMetrics(sourceMetrics.getContentSize(), sourceMetrics.getSha1Hash());
+    try (RepositoryScope scope = transactionAccounting.attributeTo(headers.get(REPO_NAME_HEADER))) {
+      if (isPackable(headers, metrics.getSize())) {
+        try (InputStream data = sourceBlob.getInputStream()) {
+          return createPacked(headers, metrics, ByteStreams.toByteArray(data), null);
+        }
+      }
+      if (sourceBlob instanceof SpooledBlob) {
+        // the only upload of a spooled blob, straight to its permanent path
+        try (InputStream data = spool.open(blobId)) {
+          return createStreamed(headers, metrics, data, () -> metrics, null);
+        }
+      }
+      StoredContent source = ((AzureBlob) sourceBlob).getStoredContent();
+      Encoding sourceEncoding = source.encoding;
+      if (source.packLocation != null || (sourceEncoding != null && isDeduplicated(headers))) {
+        // packs are append blobs, which cannot be copied into block blobs, and shared content is stored as is
+        try (InputStream data = sourceBlob.getInputStream()) {
+          return createStreamed(headers, metrics, data, () -> metrics, null);
+        }
+      }
+      String sourcePath = source.path;
+      long storedSize = sourceEncoding != null ? sourceEncoding.getStoredSize() : metrics.getSize();
+      return create(headers, metrics, null, sourceEncoding, destination -> {
+        // the size is known from the source attributes, so the copy needs no request for it
+        azureClient.copy(sourcePath, destination, storedSize);
+        return metrics;
+      }, null);
+    }
+    catch (IOException e) {
+      throw new BlobStoreException(e, blobId);
+    }
   }
 
   @Nullable
@@ -255,15 +1013,33 @@ public class AzureBlobStore
   @Override
   public Blob get(final BlobId blobId, final boolean includeDeleted) {
     checkNotNull(blobId);
+    SpooledBlob spooled = spooledBlobs.get(blobId);
+    if (spooled != null) {
+      return spooled;
+    }
+
+    AzureOperationTrace trace = slowOperations.begin("get", blobId);
+    try {
+      return get(blobId, includeDeleted, trace);
+    }
+    finally {
+      slowOperations.end(trace);
+    }
+  }
 
+  @Nullable
+  private Blob get(final BlobId blobId, final boolean includeDeleted, final AzureOperationTrace trace) {
     final AzureBlob blob = liveBlobs.getUnchecked(blobId);
 
+    // fresh attributes are read without locking
     if (blob.isStale()) {
-      Lock lock = blob.lock();
+      Lock lock = lockBlob(blobId);
       try {
+        trace.mark(Step.LOCK_WAIT);
         if (blob.isStale()) {
           AzureBlobAttributes blobAttributes = new AzureBlobAttributes(azureClient, attributePath(blobId));
           boolean loaded = blobAttributes.load();
+          trace.mark(Step.ATTRIBUTES_LOAD);
           if (!loaded) {
             log.warn("Attempt to access non-existent blob {} ({})", blobId, blobAttributes);
             return null;
@@ -274,7 +1050,7 @@ public class AzureBlobStore
             return null;
           }
 
-          blob.refresh(blobAttributes.getHeaders(), blobAttributes.getMetrics());
+          locateContent(blob, blobAttributes);
         }
       }
       catch (IOException e) {
@@ -290,34 +1066,53 @@ public class AzureBlobStore
     return blob;
   }
 
+  /**
+   * Marks the blob deleted with a conditional write of its attributes, retried when another node changed them since
+   * they were read; this holds across the cluster without locking.
+   */
   @Override
   protected boolean doDelete(final BlobId blobId, final String reason) {
-    final AzureBlob blob = liveBlobs.getUnchecked(blobId);
-
-    Lock lock = blob.lock();
+    if (removeSpooled(blobId)) {
+      return true;
+    }
+    AzureOperationTrace trace = slowOperations.begin("delete", blobId);
     try {
       log.debug("Soft deleting blob {}", blobId);
+      String attributePath = attributePath(blobId);
+      for (int attempt = 1; ; attempt++) {
+        AzureBlobAttributes blobAttributes = new AzureBlobAttributes(azureClient, attributePath);
+
+        boolean loaded = blobAttributes.load();
+        trace.mark(Step.ATTRIBUTES_LOAD);
+        if (!loaded) {
+          // This could happen under some concurrent situations (two threads try to delete the same blob)
+          // but it can also occur if the deleted index refers to a manually-deleted blob.
+          log.warn("Attempt to mark-for-delete non-existent blob {}", blobId);
+          return false;
+        }
+        else if (blobAttributes.isDeleted()) {
+          log.debug("Attempt to delete already-deleted blob {}", blobId);
+          return false;
+        }
 
-      AzureBlobAttributes blobAttributes = new AzureBlobAttributes(azureClient, attributePath(blobId));
-
-      boolean loaded = blobAttributes.load();
-      if (!loaded) {
-        // This could happen under some concurrent situations (two threads try to delete the same blob)
-        // but it can also occur if the deleted index refers to a manually-deleted blob.
-        log.warn("Attempt to mark-for-delete non-existent blob {}", blobId);
-        return false;
-      }
-      else if (blobAttributes.isDeleted()) {
-        log.debug("Attempt to delete already-deleted blob {}", blobId);
-        return false;
+        blobAttributes.setDeleted(true);
+        blobAttributes.setDeletedReason(reason);
+        boolean stored;
+        try (RepositoryScope scope = transactionAccounting.attributeTo(repositoryName(blobAttributes.getHeaders()))) {
+          stored = blobAttributes.storeIfMatch(blobAttributes.getETag());
+        }
+        trace.mark(Step.ATTRIBUTES_STORE);
+        if (stored) {
+          break;
+        }
+        checkAttempts(attempt, attributePath);
+        log.debug("Attributes of blob {} changed while deleting it, retrying", blobId);
       }
 
-      blobAttributes.setDeleted(true);
-      blobAttributes.setDeletedReason(reason);
-      blobAttributes.store();
-
       deletedBlobIndex.add(blobId);
-      blob.markStale();
+      trace.mark(Step.DELETED_INDEX);
+      markStale(blobId);
+      invalidateDownload(blobId);
 
       return true;
     }
@@ -325,27 +1120,46 @@ public class AzureBlobStore
       throw new BlobStoreException(e, blobId);
     }
     finally {
-      lock.unlock();
+      slowOperations.end(trace);
     }
   }
 
   @Override
   protected boolean doDeleteHard(final BlobId blobId) {
+    if (removeSpooled(blobId)) {
+      return true;
+    }
+    AzureOperationTrace trace = slowOperations.begin("deleteHard", blobId);
+    // excludes a concurrent move of the content by repacking
+    Lock lock = lockBlob(blobId);
     try {
+      trace.mark(Step.LOCK_WAIT);
       log.debug("Hard deleting blob {}", blobId);
+      invalidateDownload(blobId);
 
       String attributePath = attributePath(blobId);
       AzureBlobAttributes blobAttributes = new AzureBlobAttributes(azureClient, attributePath);
       Long contentSize = getContentSizeForDeletion(blobAttributes);
+      trace.mark(Step.ATTRIBUTES_LOAD);
 
-      String blobPath = contentPath(blobId);
-
-      azureClient.delete(blobPath);
+      String contentKey = blobAttributes.getContentKey();
+      boolean contentDeleted = true;
+      if (blobAttributes.getPackKey() != null) {
+        packer.release(blobAttributes.getPackKey(), blobAttributes.getPackOffset(), blobId);
+      }
+      else if (contentKey != null) {
+        contentDeleted = releaseReference(blobId, contentKey);
+      }
+      else {
+        azureClient.delete(contentPath(blobId));
+      }
       azureClient.delete(attributePath);
+      trace.mark(Step.CONTENT_DELETE);
       deletedBlobIndex.remove(blobId);
+      trace.mark(Step.DELETED_INDEX);
 
       if (contentSize != null) {
-        storeMetrics.recordDeletion(contentSize);
+        storeMetrics.recordDeletion(contentDeleted ? contentSize : 0);
       }
 
       return true;
@@ -354,7 +1168,9 @@ public class AzureBlobStore
       throw new BlobStoreException(e, blobId);
     }
     finally {
+      lock.unlock();
       liveBlobs.invalidate(blobId);
+      slowOperations.end(trace);
     }
   }
 
@@ -364,6 +1180,243 @@ public class AzureBlobStore
     return storeMetrics.getMetrics();
   }
 
+  /**
+   * Recalculates blob count and total size from a listing of the content, using the content lengths reported by the
+   * listing instead of reading any attributes, and replaces the stored metrics with the result. Each top level
+   * content directory is listed in parallel.
+   *
+   * Blobs are counted by their attribute files, whichever way their content is stored. The size is that of the stored
+   * content: shared content of deduplicated blobs is counted once while a blob refers to it, packed blobs are sized
+   * from the pack indexes, and compressed content at its stored size.
+   *
+   * @param excludeSoftDeleted whether blobs referenced by the deleted blob index are left out of the totals
+   */
+  @Guarded(by = STARTED)
+  public void recalculateMetrics(final boolean excludeSoftDeleted) throws IOException {
+    Set<BlobId> softDeleted = excludeSoftDeleted ? deletedBlobIndex.browse().collect(toSet()) : emptySet();
+    Set<String> softDeletedPaths = softDeleted.stream()
+        .flatMap(blobId -> Stream.of(attributePath(blobId), contentPath(blobId)))
+        .collect(toSet());
+    Set<String> softDeletedIds = softDeleted.stream().map(BlobId::asUniqueString).collect(toSet());
+    List<String> children = azureClient.listChildren(CONTENT_PREFIX + "/").collect(toList());
+
+    LongAdder blobCount = new LongAdder();
+    LongAdder totalSize = new LongAdder();
+    ConcurrentMap<String, Long> sharedContentSizes = new ConcurrentHashMap<>();
+    Set<String> referencedContent = ConcurrentHashMap.newKeySet();
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, METRICS_RECALCULATION_THREADS),
+        new NexusThreadFactory("azure-metrics", blobStoreConfiguration.getName()));
+    try {
+      List<Future<?>> listings = new ArrayList<>();
+      for (String child : children) {
+        listings.add(executor.submit(() -> azureClient.listFileSizes(child)
+            .filter(entry -> child.endsWith("/") || entry.getKey().equals(child))
+            .forEach(entry -> {
+              String path = entry.getKey();
+              if (path.startsWith(SHARED_CONTENT_PREFIX + "/")) {
+                if (path.endsWith(BLOB_CONTENT_SUFFIX)) {
+                  sharedContentSizes.put(path, entry.getValue());
+                }
+                else if (path.endsWith(REFERENCE_SUFFIX) && !softDeletedIds.contains(referencedBlobId(path))) {
+                  referencedContent.add(referencedContentPath(path));
+                }
+              }
+              else if (!softDeletedPaths.contains(path)) {
+                if (path.endsWith(BLOB_ATTRIBUTE_SUFFIX)) {
+                  blobCount.increment();
+                }
+                else if (path.endsWith(BLOB_CONTENT_SUFFIX)) {
+                  totalSize.add(entry.getValue());
+                }
+              }
+            })));
+      }
+      for (Future<?> listing : listings) {
+        listing.get();
+      }
+      sharedContentSizes.forEach((path, size) -> {
+        if (referencedContent.contains(path)) {
+          totalSize.add(size);
+        }
+      });
+      for (PackUsage pack : packer.usage()) {
+        for (PackEntry entry : pack.getLiveEntries()) {
+          if (!softDeleted.contains(entry.getBlobId())) {
+            totalSize.add(entry.getLength());
+          }
+        }
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while recalculating metrics of " + blobStoreConfiguration.getName(), e);
+    }
+    catch (ExecutionException e) {
+      throw new IOException("Unable to list content of " + blobStoreConfiguration.getName(), e.getCause());
+    }
+    finally {
+      executor.shutdownNow();
+    }
+
+    log.info("Recalculated metrics of blob store {}: {} blobs, {} bytes", blobStoreConfiguration.getName(),
+        blobCount.sum(), totalSize.sum());
+    storeMetrics.replace(blobCount.sum(), totalSize.sum());
+  }
+
+  /**
+   * Stores a blob imported from another blob store under its original id, trusting the size and SHA-1 recorded
+   * there instead of measuring the content again.
+   */
+  @Guarded(by = STARTED)
+  public Blob importBlob(final BlobId blobId,
+                         final Map<String, String> headers,
+                         final BlobMetrics metrics,
+                         final InputStream blobData)
+  {
+    StreamMetrics streamMetrics = new StreamMetrics(metrics.getContentSize(), metrics.getSha1Hash());
+    try (RepositoryScope scope = transactionAccounting.attributeTo(headers.get(REPO_NAME_HEADER))) {
+      if (isPackable(headers, metrics.getContentSize())) {
+        try (InputStream data = blobData) {
+          return createPacked(headers, streamMetrics, ByteStreams.toByteArray(data), blobId);
+        }
+      }
+      try (InputStream data = blobData) {
+        return createStreamed(headers, streamMetrics, data, () -> streamMetrics, blobId);
+      }
+    }
+    catch (IOException e) {
+      throw new BlobStoreException(e, blobId);
+    }
+  }
+
+  /**
+   * Whether a live blob with the id and SHA-1 is stored already, which an interrupted import may have done.
+   */
+  @Guarded(by = STARTED)
+  public boolean contains(final BlobId blobId, final String sha1) {
+    AzureBlobAttributes blobAttributes = new AzureBlobAttributes(azureClient, attributePath(blobId));
+    try {
+      return blobAttributes.load() && !blobAttributes.isDeleted() && blobAttributes.getMetrics() != null &&
+          sha1.equals(blobAttributes.getMetrics().getSha1Hash());
+    }
+    catch (IOException e) {
+      log.debug("Unable to load attributes {}, considering blob missing", blobAttributes, e);
+      return false;
+    }
+  }
+
+  /**
+   * Returns the file recording the progress of an import from the named blob store.
+   */
+  AzurePropertiesFile importCheckpoint(final String sourceBlobStoreName) {
+    return new AzurePropertiesFile(azureClient, "import-" + sourceBlobStoreName + ".properties");
+  }
+
+  /**
+   * Moves the content of a sharded blob store to the shards its current placement selects, after shards were added.
+   * Blobs remain readable throughout as long as {@code previousShardCount} names the shard count before the change.
+   *
+   * @return the number of files moved, 0 if the blob store is not sharded
+   */
+  @Guarded(by = STARTED)
+  public long rebalanceShards(final BooleanSupplier cancelled) {
+    Optional<ShardedAzureClient> sharded = azureClient.unwrap(ShardedAzureClient.class);
+    if (!sharded.isPresent()) {
+      log.info("Blob store {} is not sharded, nothing to rebalance", blobStoreConfiguration.getName());
+      return 0;
+    }
+    long moved = sharded.get().rebalance(cancelled);
+    log.info("Rebalanced shards of blob store {}: {} files moved", blobStoreConfiguration.getName(), moved);
+    return moved;
+  }
+
+  /**
+   * Moves the live entries out of the packs which are no longer appended to and have at least the given share of
+   * their space taken by released entries, and deletes those packs.
+   *
+   * @return the number of packs deleted
+   */
+  @Guarded(by = STARTED)
+  public int repack(final int minReclaimablePercent, final BooleanSupplier cancelled) throws IOException {
+    int repacked = 0;
+    for (PackUsage pack : packer.usage()) {
+      if (cancelled.getAsBoolean()) {
+        break;
+      }
+      if (!packer.isSealed(pack) || pack.getReclaimableBytes() * 100 < (long) minReclaimablePercent * pack.getSize()) {
+        continue;
+      }
+      for (PackEntry entry : pack.getLiveEntries()) {
+        if (cancelled.getAsBoolean()) {
+          return repacked;
+        }
+        movePacked(pack.getKey(), entry);
+      }
+      packer.delete(pack.getKey());
+      repacked++;
+      log.info("Repacked {} of blob store {}: {} live blobs moved, {} bytes reclaimed", pack.getKey(),
+          blobStoreConfiguration.getName(), pack.getLiveEntries().size(), pack.getReclaimableBytes());
+    }
+    return repacked;
+  }
+
+  private void movePacked(final String packKey, final PackEntry entry) throws IOException {
+    BlobId blobId = entry.getBlobId();
+    String attributePath = attributePath(blobId);
+    Lock lock = lockBlob(blobId);
+    try {
+      AzureBlobAttributes blobAttributes = new AzureBlobAttributes(azureClient, attributePath);
+      if (!blobAttributes.load() || !isPackedAt(blobAttributes, packKey, entry)) {
+        // released while the index was read
+        return;
+      }
+      byte[] content;
+      try (InputStream data = packer.read(packKey, entry.getOffset(), entry.getLength())) {
+        content = ByteStreams.toByteArray(data);
+      }
+      Location location = packer.append(blobId, content);
+      for (int attempt = 1; ; attempt++) {
+        blobAttributes.setPackLocation(location.getPackKey(), location.getOffset());
+        if (blobAttributes.storeIfMatch(blobAttributes.getETag())) {
+          break;
+        }
+        // changed meanwhile, by a soft delete for instance, which must not keep pointing into the old pack
+        blobAttributes = new AzureBlobAttributes(azureClient, attributePath);
+        if (attempt >= MAX_ATTRIBUTE_WRITE_ATTEMPTS || !blobAttributes.load() ||
+            !isPackedAt(blobAttributes, packKey, entry)) {
+          packer.release(location.getPackKey(), location.getOffset(), blobId);
+          checkAttempts(attempt, attributePath);
+          return;
+        }
+      }
+      markStale(blobId);
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  private static boolean isPackedAt(final AzureBlobAttributes blobAttributes,
+                                    final String packKey,
+                                    final PackEntry entry)
+  {
+    return packKey.equals(blobAttributes.getPackKey()) && blobAttributes.getPackOffset() == entry.getOffset();
+  }
+
+  /**
+   * Returns the Azure transactions and bytes transferred by this blob store since it was initialized.
+   */
+  public AzureTransactionAccounting getTransactionAccounting() {
+    return transactionAccounting;
+  }
+
+  /**
+   * Returns the most recent operations of this blob store which were slower than the configured threshold.
+   */
+  public List<String> getSlowOperations() {
+    return slowOperations.getSlowOperations();
+  }
+
   @Override
   protected void doCompact(@Nullable final BlobStoreUsageChecker inUseChecker) {
     deletedBlobIndex.browse().forEach(this::deleteHard);
@@ -384,7 +1437,35 @@ public class AzureBlobStore
   @Override
   protected void doInit(final BlobStoreConfiguration blobStoreConfiguration) {
     try {
-      azureClient = azureStorageClientFactory.create(blobStoreConfiguration);
+      slowOperations = new AzureSlowOperationRecorder(blobStoreConfiguration.getName(),
+          AzureBlobStoreConfigurationHelper.getLong(blobStoreConfiguration, SLOW_OPERATION_THRESHOLD_KEY,
+              DEFAULT_SLOW_OPERATION_THRESHOLD_MILLIS), TimeUnit.MILLISECONDS, SLOW_OPERATION_CAPACITY);
+      if (AzureBlobStoreConfigurationHelper.getBoolean(blobStoreConfiguration, SPOOL_TEMPORARY_BLOBS_KEY,
+          DEFAULT_SPOOL_TEMPORARY_BLOBS)) {
+        spool = new AzureTemporaryBlobSpool(applicationDirectories.getTemporaryDirectory().toPath()
+            .resolve("azure-spool").resolve(blobStoreConfiguration.getName()),
+            AzureBlobStoreConfigurationHelper.getLong(blobStoreConfiguration, SPOOL_MAX_MEGABYTES_KEY,
+                DEFAULT_SPOOL_MAX_MEGABYTES) * 1024 * 1024);
+      }
+      if (AzureBlobStoreConfigurationHelper.getBoolean(blobStoreConfiguration, COALESCE_DOWNLOADS_KEY,
+          DEFAULT_COALESCE_DOWNLOADS)) {
+        coalescer = new AzureDownloadCoalescer(applicationDirectories.getTemporaryDirectory().toPath()
+            .resolve("azure-downloads").resolve(blobStoreConfiguration.getName()),
+            AzureBlobStoreConfigurationHelper.getLong(blobStoreConfiguration, COALESCE_MAX_MEGABYTES_KEY,
+                DEFAULT_COALESCE_MAX_MEGABYTES) * 1024 * 1024);
+      }
+      deduplicate = AzureBlobStoreConfigurationHelper.getBoolean(blobStoreConfiguration, DEDUPLICATE_KEY,
+          DEFAULT_DEDUPLICATE);
+      packThreshold = (int) AzureBlobStoreConfigurationHelper.getLong(blobStoreConfiguration, PACK_THRESHOLD_BYTES_KEY,
+          DEFAULT_PACK_THRESHOLD_BYTES);
+      checkArgument(packThreshold >= 0 && packThreshold <= AzureBlobPacker.MAX_APPEND_BYTES,
+          "Pack threshold must be between 0 and %s bytes", AzureBlobPacker.MAX_APPEND_BYTES);
+      String compression = AzureBlobStoreConfigurationHelper.getString(blobStoreConfiguration, COMPRESSION_KEY,
+          DEFAULT_COMPRESSION);
+      checkArgument(NO_COMPRESSION.equals(compression) || LZ4_CODEC.equals(compression),
+          "Unsupported compression: %s", compression);
+      compressor = LZ4_CODEC.equals(compression) ? new AzureBlobCompressor() : null;
+      openClient(blobStoreConfiguration);
       if (!azureClient.containerExists()) {
         azureClient.createContainer();
       }
@@ -397,11 +1478,29 @@ public class AzureBlobStore
   @Override
   @Guarded(by = {NEW, STOPPED, FAILED})
   public void remove() {
-    boolean contentEmpty = !azureClient.listFiles("content/").findAny().isPresent();
-    if (contentEmpty) {
-      new AzurePropertiesFile(azureClient, METADATA_FILENAME).remove();
-      storeMetrics.remove();
-      azureClient.deleteContainer();
+    // a stopped blob store has released its client
+    boolean opened = azureClient == null;
+    if (opened) {
+      try {
+        openClient(blobStoreConfiguration);
+      }
+      catch (Exception e) {
+        throw new BlobStoreException("Unable to connect to blob store container", e, null);
+      }
+    }
+    try {
+      boolean contentEmpty = !azureClient.listFiles("content/").findAny().isPresent();
+      if (contentEmpty) {
+        new AzurePropertiesFile(azureClient, METADATA_FILENAME).remove();
+        storeMetrics.setAzureClient(azureClient);
+        storeMetrics.remove();
+        azureClient.deleteContainer();
+      }
+    }
+    finally {
+      if (opened) {
+        closeClient();
+      }
     }
   }
 
@@ -432,6 +1531,10 @@ public class AzureBlobStore
   @Override
   @Guarded(by = STARTED)
   public BlobAttributes getBlobAttributes(final BlobId blobId) {
+    SpooledBlob spooled = spooledBlobs.get(blobId);
+    if (spooled != null) {
+      return new AzureBlobAttributes(azureClient, attributePath(blobId), spooled.getHeaders(), spooled.getMetrics());
+    }
     try {
       AzureBlobAttributes blobAttributes = new AzureBlobAttributes(azureClient, attributePath(blobId));
       return blobAttributes.load() ? blobAttributes : null;
@@ -445,15 +1548,53 @@ public class AzureBlobStore
   @Override
   @Guarded(by = STARTED)
   public void setBlobAttributes(final BlobId blobId, final BlobAttributes blobAttributes) {
-    AzureBlobAttributes existing = (AzureBlobAttributes) getBlobAttributes(blobId);
-    if (existing != null) {
-      try {
+    if (spooledBlobs.containsKey(blobId)) {
+      log.debug("Not storing attributes of spooled temporary blob {}", blobId);
+      return;
+    }
+    try {
+      updateAttributes(blobId, null, existing -> {
         existing.updateFrom(blobAttributes);
-        existing.store();
+        return true;
+      });
+    }
+    catch (IOException e) {
+      log.error("Unable to set AzureBlobAttributes for blob id: {}", blobId, e);
+    }
+  }
+
+  /**
+   * Applies the update to the attributes of the blob and stores them with a conditional write, reapplying it to the
+   * current attributes when another node changed them since they were read.
+   *
+   * @param loaded the attributes of the blob if already loaded, which the first attempt starts from
+   * @return whether the attributes were stored; false if the blob has none or the update declined to change them
+   */
+  private boolean updateAttributes(final BlobId blobId,
+                                   @Nullable final AzureBlobAttributes loaded,
+                                   final AttributesUpdate update) throws IOException
+  {
+    String attributePath = attributePath(blobId);
+    AzureBlobAttributes blobAttributes = loaded;
+    for (int attempt = 1; ; attempt++) {
+      if (blobAttributes == null) {
+        blobAttributes = new AzureBlobAttributes(azureClient, attributePath);
+        if (!blobAttributes.load()) {
+          return false;
+        }
       }
-      catch (IOException e) {
-        log.error("Unable to set AzureBlobAttributes for blob id: {}", blobId, e);
+      if (!update.apply(blobAttributes)) {
+        return false;
       }
+      try (RepositoryScope scope = transactionAccounting.attributeTo(repositoryName(blobAttributes.getHeaders()))) {
+        if (blobAttributes.storeIfMatch(blobAttributes.getETag())) {
+          markStale(blobId);
+          return true;
+        }
+      }
+      checkAttempts(attempt, attributePath);
+      log.debug("Attributes of blob {} changed while updating them, retrying", blobId);
+      blobAttributes = null;
     }
   }
 
@@ -465,6 +1606,9 @@ public class AzureBlobStore
   @Guarded(by = STARTED)
   public boolean exists(final BlobId blobId) {
     checkNotNull(blobId);
+    if (spooledBlobs.containsKey(blobId)) {
+      return true;
+    }
     AzureBlobAttributes blobAttributes = new AzureBlobAttributes(azureClient, attributePath(blobId));
     try {
       return blobAttributes.load();
@@ -497,8 +1641,14 @@ public class AzureBlobStore
       if (!isDryRun) {
         attributes.setDeleted(false);
         attributes.setDeletedReason(null);
+        AzureBlobAttributes loaded =
+            attributes instanceof AzureBlobAttributes ? (AzureBlobAttributes) attributes : null;
         try {
-          attributes.store();
+          updateAttributes(blobId, loaded, current -> {
+            current.setDeleted(false);
+            current.setDeletedReason(null);
+            return true;
+          });
         }
         catch (IOException e) {
           log.error("Error while un-deleting blob id: {}, deleted reason: {}, blob store: {}, blob name: {}",
@@ -535,6 +1685,70 @@ public class AzureBlobStore
     return getLocation(id) + BLOB_CONTENT_SUFFIX;
   }
 
+  /**
+   * Refreshes the blob from its attributes and points it at its content, packed, shared or its own, under a new
+   * generation.
+   */
+  private void locateContent(final AzureBlob blob, final AzureBlobAttributes blobAttributes) {
+    Location packLocation = blobAttributes.getPackKey() != null
+        ? new Location(blobAttributes.getPackKey(), blobAttributes.getPackOffset())
+        : null;
+    String codec = blobAttributes.getCodec();
+    blob.refresh(blobAttributes.getHeaders(), new StoredContent(blobAttributes.getMetrics(),
+        storedContentPath(blob.getId(), blobAttributes), packLocation,
+        codec != null ? Encoding.of(codec, blobAttributes.getStoredSize()) : null,
+        contentGenerations.incrementAndGet()));
+  }
+
+  /**
+   * Returns the path of the content a blob refers to, its own or shared.
+   */
+  private String storedContentPath(final BlobId blobId, final AzureBlobAttributes blobAttributes) {
+    String contentKey = blobAttributes.getContentKey();
+    return contentKey != null ? sharedContentPath(contentKey) : contentPath(blobId);
+  }
+
+  /**
+   * Returns the location of the content shared by the blobs with the SHA-1, spread like the blob locations.
+   */
+  private static String sharedLocation(final String contentKey) {
+    return SHARED_CONTENT_PREFIX + "/" + contentKey.substring(0, 2) + "/" + contentKey.substring(2, 4) + "/" +
+        contentKey;
+  }
+
+  @VisibleForTesting
+  static String sharedContentPath(final String contentKey) {
+    return sharedLocation(contentKey) + BLOB_CONTENT_SUFFIX;
+  }
+
+  /**
+   * Returns the prefix of the empty files recording which blobs refer to the shared content; their number is its
+   * reference count.
+   */
+  @VisibleForTesting
+  static String referencePrefix(final String contentKey) {
+    return sharedLocation(contentKey) + REFERENCES_SUFFIX + "/";
+  }
+
+  private static String referencePath(final String contentKey, final BlobId blobId) {
+    return referencePrefix(contentKey) + blobId.asUniqueString() + REFERENCE_SUFFIX;
+  }
+
+  /**
+   * Returns the unique string of the blob id a reference path was made from.
+   */
+  private static String referencedBlobId(final String referencePath) {
+    int start = referencePath.lastIndexOf(REFERENCES_SUFFIX + "/") + REFERENCES_SUFFIX.length() + 1;
+    return referencePath.substring(start, referencePath.length() - REFERENCE_SUFFIX.length());
+  }
+
+  /**
+   * Returns the path of the shared content a reference path refers to.
+   */
+  private static String referencedContentPath(final String referencePath) {
+    return referencePath.substring(0, referencePath.lastIndexOf(REFERENCES_SUFFIX + "/")) + BLOB_CONTENT_SUFFIX;
+  }
+
   /**
    * Returns path for blob-id attribute file relative to root directory.
    */
@@ -545,6 +1759,12 @@ public class AzureBlobStore
 
   @VisibleForTesting
   protected DeletedBlobIndex softDeletes() { return deletedBlobIndex; }
+
+  @Nullable
+  private static String repositoryName(@Nullable final Map<String, String> headers) {
+    return headers == null ? null : headers.get(REPO_NAME_HEADER);
+  }
+
   /**
    * Returns the location for a blob ID based on whether or not the blob ID is for a temporary or permanent blob.
    */
@@ -573,18 +1793,155 @@ public class AzureBlobStore
   class AzureBlob
       extends BlobSupport
   {
+    private final AtomicReference<StoredContent> storedContent;
+
     public AzureBlob(final BlobId blobId) {
       super(blobId);
+      this.storedContent = new AtomicReference<>(new StoredContent(null, contentPath(blobId), null, null, 0));
+    }
+
+    /**
+     * Publishes the attributes of a version of the blob together with where and how its content is stored.
+     */
+    void refresh(final Map<String, String> headers, final StoredContent content) {
+      storedContent.set(content);
+      refresh(headers, content.metrics);
+    }
+
+    /**
+     * Returns the metrics of the version of the blob whose content {@link #getStoredContent()} returns.
+     */
+    @Override
+    public BlobMetrics getMetrics() {
+      return storedContent.get().metrics;
+    }
+
+    StoredContent getStoredContent() {
+      return storedContent.get();
     }
 
     @Override
     public InputStream doGetInputStream() {
-      try {
-        return azureClient.get(contentPath(getId()));
+      AzureOperationTrace trace = slowOperations.begin("getInputStream", getId());
+      try (RepositoryScope scope = transactionAccounting.attributeTo(repositoryName(getHeaders()))) {
+        InputStream content = coalescer != null ? openShared() : openContent();
+        trace.mark(Step.CONTENT_OPEN);
+        return content;
       }
       catch (IOException e) {
         throw new BlobStoreException("caught IOException on client#get", e, getId());
       }
+      finally {
+        slowOperations.end(trace);
+      }
+    }
+
+    /**
+     * Attaches to the download in flight of this version of the blob, or starts one. No lock is held while the content
+     * is opened in Azure: the download is keyed by the generation of the content it opens, so a download started before
+     * an overwrite is replaced rather than attached to by readers after it.
+     */
+    private InputStream openShared() throws IOException {
+      StoredContent content = storedContent.get();
+      return coalescer.open(getId(), content.generation, content.metrics.getContentSize(),
+          () -> openContent(content));
+    }
+
+    private InputStream openContent() throws IOException {
+      return openContent(storedContent.get());
+    }
+
+    private InputStream openContent(final StoredContent content) throws IOException {
+      Location location = content.packLocation;
+      if (location == null) {
+        Encoding stored = content.encoding;
+        return AzureBlobCompressor.decompress(stored != null ? stored.getCodec() : null, azureClient.get(content.path));
+      }
+      long size = content.metrics.getContentSize();
+      try {
+        return packer.read(location.getPackKey(), location.getOffset(), size);
+      }
+      catch (IOException | RuntimeException e) {
+        if (!AzureErrors.isNotFound(e)) {
+          throw e;
+        }
+        // repacking may have moved the content since the attributes were read
+        AzureBlobAttributes blobAttributes = new AzureBlobAttributes(azureClient, attributePath(getId()));
+        if (!blobAttributes.load() || blobAttributes.getPackKey() == null) {
+          throw e;
+        }
+        // the blob points at the new pack from now on, unless a new version was published meanwhile
+        storedContent.compareAndSet(content,
+            content.repacked(new Location(blobAttributes.getPackKey(), blobAttributes.getPackOffset())));
+        return packer.read(blobAttributes.getPackKey(), blobAttributes.getPackOffset(), size);
+      }
+    }
+  }
+
+  /**
+   * Where and how the content of one version of an {@link AzureBlob} is stored, together with its metrics. It is
+   * published as a whole, so readers never combine the location of one version with the size or encoding of another.
+   */
+  static final class StoredContent
+  {
+    @Nullable
+    private final BlobMetrics metrics;
+
+    /**
+     * The path of the content, its own or shared, unless it is packed.
+     */
+    private final String path;
+
+    @Nullable
+    private final Location packLocation;
+
+    @Nullable
+    private final Encoding encoding;
+
+    /**
+     * Increases whenever the blob is pointed at its content; see {@link AzureDownloadCoalescer}.
+     */
+    private final long generation;
+
+    private StoredContent(@Nullable final BlobMetrics metrics,
+                          final String path,
+                          @Nullable final Location packLocation,
+                          @Nullable final Encoding encoding,
+                          final long generation)
+    {
+      this.metrics = metrics;
+      this.path = checkNotNull(path);
+      this.packLocation = packLocation;
+      this.encoding = encoding;
+      this.generation = generation;
+    }
+
+    /**
+     * Returns the same version of the content, moved to another pack by repacking.
+     */
+    private StoredContent repacked(final Location location) {
+      return new StoredContent(metrics, path, location, encoding, generation);
+    }
+  }
+
+  /**
+   * A temporary blob held in the {@link AzureTemporaryBlobSpool}.
+   */
+  class SpooledBlob
+      extends BlobSupport
+  {
+    SpooledBlob(final BlobId blobId) {
+      super(blobId);
+    }
+
+    @Override
+    public InputStream doGetInputStream() {
+      try {
+        return spool.open(getId());
+      }
+      catch (IOException e) {
+        throw new BlobStoreException("Unable to open spooled blob", e, getId());
+      }
     }
   }
 
@@ -611,4 +1968,12 @@ public class AzureBlobStore
   {
     StreamMetrics ingestTo(final String destination) throws IOException;
   }
+
+  private interface AttributesUpdate
+  {
+    /**
+     * @return whether the attributes were changed and are to be stored
+     */
+    boolean apply(AzureBlobAttributes blobAttributes) throws IOException;
+  }
 }
@@ -0,0 +1,64 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal;
+
+import javax.annotation.Nullable;
+
+import org.sonatype.nexus.blobstore.api.BlobStoreConfiguration;
+
+import static org.sonatype.nexus.blobstore.azure.internal.AzureBlobStore.CONFIG_KEY;
+
+/**
+ * Reads the optional settings of an Azure blob store. Values entered in the UI arrive as strings, values set
+ * through scripts or REST may be numbers or booleans, so both are accepted.
+ */
+final class AzureBlobStoreConfigurationHelper
+{
+  private AzureBlobStoreConfigurationHelper() {
+  }
+
+  @Nullable
+  static String getString(final BlobStoreConfiguration configuration, final String key) {
+    Object value = configuration.attributes(CONFIG_KEY).get(key);
+    if (value == null) {
+      return null;
+    }
+    String string = value.toString().trim();
+    return string.isEmpty() ? null : string;
+  }
+
+  static String getString(final BlobStoreConfiguration configuration, final String key, final String defaultValue) {
+    String value = getString(configuration, key);
+    return value == null ? defaultValue : value;
+  }
+
+  static long getLong(final BlobStoreConfiguration configuration, final String key, final long defaultValue) {
+    String value = getString(configuration, key);
+    return value == null ? defaultValue : Long.parseLong(value);
+  }
+
+  static int getInt(final BlobStoreConfiguration configuration, final String key, final int defaultValue) {
+    String value = getString(configuration, key);
+    return value == null ? defaultValue : Integer.parseInt(value);
+  }
+
+  static double getDouble(final BlobStoreConfiguration configuration, final String key, final double defaultValue) {
+    String value = getString(configuration, key);
+    return value == null ? defaultValue : Double.parseDouble(value);
+  }
+
+  static boolean getBoolean(final BlobStoreConfiguration configuration, final String key, final boolean defaultValue) {
+    String value = getString(configuration, key);
+    return value == null ? defaultValue : Boolean.parseBoolean(value);
+  }
+}
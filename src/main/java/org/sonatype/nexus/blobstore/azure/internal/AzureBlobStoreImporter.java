@@ -0,0 +1,244 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.blobstore.api.Blob;
+import org.sonatype.nexus.blobstore.api.BlobId;
+import org.sonatype.nexus.blobstore.api.BlobMetrics;
+import org.sonatype.nexus.blobstore.api.BlobStore;
+import org.sonatype.nexus.thread.NexusThreadFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.sonatype.nexus.blobstore.api.BlobStore.TEMPORARY_BLOB_HEADER;
+
+/**
+ * Copies the live blobs of another blob store, such as a file or S3 blob store, into an {@link AzureBlobStore},
+ * keeping their ids so that the assets referring to them can be pointed at the new blob store.
+ *
+ * Blobs are imported by {@code concurrency} threads, with at most that many more read from the source and waiting.
+ * A blob stored already with the same SHA-1 is skipped, so an import may be repeated. Every
+ * {@value #CHECKPOINT_INTERVAL_SECONDS} seconds the number of blob ids completed without a gap is written to the
+ * target, never past a blob which failed to import; a resumed import skips that many ids of the source, which lists
+ * them in a stable order as long as it is not written to. Progress, throughput and the estimated time to completion
+ * are logged at the same interval.
+ */
+public class AzureBlobStoreImporter
+    extends ComponentSupport
+{
+  @VisibleForTesting
+  static final String POSITION_PROPERTY = "position";
+
+  private static final int CHECKPOINT_INTERVAL_SECONDS = 30;
+
+  private final BlobStore source;
+
+  private final AzureBlobStore target;
+
+  private final int concurrency;
+
+  private final AtomicLong imported = new AtomicLong();
+
+  private final AtomicLong skipped = new AtomicLong();
+
+  private final AtomicLong failed = new AtomicLong();
+
+  private final AtomicLong bytes = new AtomicLong();
+
+  /**
+   * Indexes of the blob ids in progress; the lowest one is the position up to which every id is done.
+   */
+  private final ConcurrentSkipListSet<Long> inFlight = new ConcurrentSkipListSet<>();
+
+  /**
+   * Index of the first blob id which failed to import, so that a resumed import retries it.
+   */
+  private final AtomicLong firstFailure = new AtomicLong(Long.MAX_VALUE);
+
+  public AzureBlobStoreImporter(final BlobStore source, final AzureBlobStore target, final int concurrency) {
+    this.source = checkNotNull(source);
+    this.target = checkNotNull(target);
+    checkArgument(concurrency > 0, "Concurrency must be > 0");
+    this.concurrency = concurrency;
+  }
+
+  /**
+   * Runs the import until all blob ids are processed or it is cancelled.
+   *
+   * @param restart whether to ignore the checkpoint of an earlier run
+   * @return the number of blobs which could not be imported
+   */
+  public long run(final boolean restart, final BooleanSupplier cancelled) throws IOException, InterruptedException {
+    String sourceName = source.getBlobStoreConfiguration().getName();
+    AzurePropertiesFile checkpoint = target.importCheckpoint(sourceName);
+    long position = 0;
+    if (!restart && checkpoint.exists()) {
+      checkpoint.load();
+      position = Long.parseLong(checkpoint.getProperty(POSITION_PROPERTY, "0"));
+      log.info("Resuming import from blob store {} after {} blobs", sourceName, position);
+    }
+    long expected = source.getMetrics().getBlobCount();
+
+    ExecutorService executor = Executors.newFixedThreadPool(concurrency,
+        new NexusThreadFactory("azure-import", target.getBlobStoreConfiguration().getName()));
+    Semaphore permits = new Semaphore(concurrency * 2);
+    long start = System.nanoTime();
+    long nextReport = start + TimeUnit.SECONDS.toNanos(CHECKPOINT_INTERVAL_SECONDS);
+    long index = position;
+    try (Stream<BlobId> blobIds = source.getBlobIdStream()) {
+      Iterator<BlobId> iterator = blobIds.skip(position).iterator();
+      while (iterator.hasNext() && !cancelled.getAsBoolean()) {
+        BlobId blobId = iterator.next();
+        long blobIndex = index++;
+        permits.acquire();
+        inFlight.add(blobIndex);
+        try {
+          executor.execute(() -> {
+            try {
+              if (!importBlob(blobId)) {
+                firstFailure.accumulateAndGet(blobIndex, Math::min);
+              }
+            }
+            finally {
+              inFlight.remove(blobIndex);
+              permits.release();
+            }
+          });
+        }
+        catch (RuntimeException e) {
+          inFlight.remove(blobIndex);
+          permits.release();
+          throw e;
+        }
+        if (System.nanoTime() >= nextReport) {
+          nextReport += TimeUnit.SECONDS.toNanos(CHECKPOINT_INTERVAL_SECONDS);
+          long completed = completedPosition(index);
+          storeCheckpoint(checkpoint, completed);
+          report(sourceName, processed(), completed, expected, start);
+        }
+      }
+    }
+    finally {
+      executor.shutdown();
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    long completed = completedPosition(index);
+    storeCheckpoint(checkpoint, completed);
+    report(sourceName, processed(), completed, expected, start);
+    if (cancelled.getAsBoolean()) {
+      log.info("Import from blob store {} cancelled after {} blobs", sourceName, completed);
+    }
+    else if (failed.get() == 0) {
+      checkpoint.remove();
+    }
+    return failed.get();
+  }
+
+  private long completedPosition(final long submitted) {
+    Long lowest = inFlight.ceiling(Long.MIN_VALUE);
+    return Math.min(lowest != null ? lowest : submitted, firstFailure.get());
+  }
+
+  private long processed() {
+    return imported.get() + skipped.get() + failed.get();
+  }
+
+  /**
+   * @return whether the blob was imported or did not need to be
+   */
+  private boolean importBlob(final BlobId blobId) {
+    try {
+      Blob blob = source.get(blobId);
+      if (blob == null || blob.getHeaders().containsKey(TEMPORARY_BLOB_HEADER)) {
+        // deleted, or a temporary blob which nothing refers to
+        skipped.incrementAndGet();
+        return true;
+      }
+      BlobMetrics metrics = blob.getMetrics();
+      if (target.contains(blobId, metrics.getSha1Hash())) {
+        skipped.incrementAndGet();
+        return true;
+      }
+      try (InputStream content = blob.getInputStream()) {
+        target.importBlob(blobId, blob.getHeaders(), metrics, content);
+      }
+      imported.incrementAndGet();
+      bytes.addAndGet(metrics.getContentSize());
+      return true;
+    }
+    catch (Exception e) {
+      failed.incrementAndGet();
+      log.warn("Unable to import blob {}", blobId, e);
+      return false;
+    }
+  }
+
+  private void storeCheckpoint(final AzurePropertiesFile checkpoint, final long position) {
+    checkpoint.setProperty(POSITION_PROPERTY, Long.toString(position));
+    try {
+      checkpoint.store();
+    }
+    catch (IOException e) {
+      log.warn("Unable to store import checkpoint {}", checkpoint, e);
+    }
+  }
+
+  private void report(final String sourceName,
+                      final long processed,
+                      final long position,
+                      final long expected,
+                      final long start)
+  {
+    double seconds = Math.max(1, (System.nanoTime() - start) / 1e9);
+    double blobsPerSecond = processed / seconds;
+    long remaining = Math.max(0, expected - position);
+    String eta = blobsPerSecond > 0 ? formatDuration(Duration.ofSeconds((long) (remaining / blobsPerSecond))) : "?";
+    log.info("Import from blob store {}: {} of about {} blobs, {} imported, {} skipped, {} failed, " +
+            "{} blobs/s, {} MB/s, ETA {}", sourceName, position, expected, imported.get(), skipped.get(),
+        failed.get(), String.format("%.1f", blobsPerSecond),
+        String.format("%.1f", bytes.get() / seconds / (1024 * 1024)), eta);
+  }
+
+  private static String formatDuration(final Duration duration) {
+    return String.format("%dd %02dh %02dm", duration.toDays(), duration.toHours() % 24, duration.toMinutes() % 60);
+  }
+
+  public long getImported() {
+    return imported.get();
+  }
+
+  public long getSkipped() {
+    return skipped.get();
+  }
+
+  public long getFailed() {
+    return failed.get();
+  }
+}
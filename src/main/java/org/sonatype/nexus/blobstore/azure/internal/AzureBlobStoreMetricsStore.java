@@ -12,83 +12,347 @@
  */
 package org.sonatype.nexus.blobstore.azure.internal;
 
+import java.io.IOException;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Stream;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 
 import org.sonatype.nexus.blobstore.AccumulatingBlobStoreMetrics;
-import org.sonatype.nexus.blobstore.BlobStoreMetricsStoreSupport;
+import org.sonatype.nexus.blobstore.api.BlobStore;
+import org.sonatype.nexus.blobstore.api.BlobStoreMetrics;
 import org.sonatype.nexus.blobstore.quota.BlobStoreQuotaService;
 import org.sonatype.nexus.common.node.NodeAccess;
+import org.sonatype.nexus.common.stateguard.Guarded;
+import org.sonatype.nexus.common.stateguard.StateGuardLifecycleSupport;
 import org.sonatype.nexus.scheduling.PeriodicJobService;
+import org.sonatype.nexus.scheduling.PeriodicJobService.PeriodicJob;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableMap;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.stream.Collectors.toList;
+import static org.sonatype.nexus.common.stateguard.StateGuardLifecycleSupport.State.STARTED;
 
+/**
+ * Tracks blob count and total size of an {@link AzureBlobStore}.
+ *
+ * Each node accumulates its own additions and deletions in {@link LongAdder}s and periodically writes them to its
+ * {@code <nodeId>-metrics.properties} file. The metrics files of the other nodes are re-read on a fixed interval
+ * and cached, so {@link #getMetrics()} returns the cluster wide totals without touching Azure.
+ *
+ * Every metrics file carries the generation of the last {@link #replace(long, long) recalculation}. Files from an
+ * older generation are ignored, and a node which notices a newer generation restarts its own counters from zero.
+ */
 @Named
 public class AzureBlobStoreMetricsStore
-    extends BlobStoreMetricsStoreSupport<AzurePropertiesFile>
+    extends StateGuardLifecycleSupport
 {
+  @VisibleForTesting
+  static final int METRICS_FLUSH_PERIOD_SECONDS = 2;
+
+  @VisibleForTesting
+  static final String METRICS_FILENAME = "metrics.properties";
+
+  @VisibleForTesting
+  static final String TOTAL_SIZE_PROP_NAME = "totalSize";
+
+  @VisibleForTesting
+  static final String BLOB_COUNT_PROP_NAME = "blobCount";
+
+  @VisibleForTesting
+  static final String GENERATION_PROP_NAME = "generation";
+
   private static final Map<String, Long> AVAILABLE_SPACE_BY_FILE_STORE = ImmutableMap
       .of(AzureBlobStore.CONFIG_KEY, Long.MAX_VALUE);
 
   private final NodeAccess nodeAccess;
 
+  private final PeriodicJobService jobService;
+
+  private final BlobStoreQuotaService quotaService;
+
+  private final int quotaCheckInterval;
+
+  private final int refreshInterval;
+
   private AzureClient azureClient;
 
+  private BlobStore blobStore;
+
+  private AzurePropertiesFile properties;
+
+  private volatile Counters counters;
+
+  private volatile RemoteTotals remoteTotals;
+
+  private long flushedGeneration;
+
+  private long flushedBlobCount;
+
+  private long flushedTotalSize;
+
+  private PeriodicJob metricsWritingJob;
+
+  private PeriodicJob metricsRefreshingJob;
+
+  private PeriodicJob quotaCheckingJob;
+
   @Inject
   public AzureBlobStoreMetricsStore(final NodeAccess nodeAccess,
                                     final PeriodicJobService jobService,
                                     final BlobStoreQuotaService quotaService,
                                     @Named("${nexus.blobstore.quota.warnIntervalSeconds:-60}")
-                                    final int quotaCheckInterval)
+                                    final int quotaCheckInterval,
+                                    @Named("${nexus.azure.metrics.refreshIntervalSeconds:-10}")
+                                    final int refreshInterval)
   {
-    super(nodeAccess, jobService, quotaService, quotaCheckInterval);
     this.nodeAccess = checkNotNull(nodeAccess);
+    this.jobService = checkNotNull(jobService);
+    this.quotaService = checkNotNull(quotaService);
+    checkArgument(quotaCheckInterval > 0);
+    this.quotaCheckInterval = quotaCheckInterval;
+    checkArgument(refreshInterval > 0);
+    this.refreshInterval = refreshInterval;
   }
 
   public void setAzureClient(AzureClient azureClient) {
     this.azureClient = azureClient;
   }
 
+  public void setBlobStore(final BlobStore blobStore) {
+    this.blobStore = checkNotNull(blobStore);
+  }
+
   @Override
-  protected void doStop() throws Exception {
-    super.doStop();
+  protected void doStart() throws Exception {
+    counters = new Counters(0, 0, 0);
+    remoteTotals = RemoteTotals.NONE;
+
+    properties = getProperties();
+    if (properties.exists()) {
+      log.info("Loading blob store metrics file {}", properties);
+      properties.load();
+      counters = new Counters(getOrZero(properties, GENERATION_PROP_NAME),
+          getOrZero(properties, BLOB_COUNT_PROP_NAME),
+          getOrZero(properties, TOTAL_SIZE_PROP_NAME));
+    }
+    else {
+      log.info("Blob store metrics file {} not found - initializing at zero.", properties);
+    }
+    flush(true);
+    refresh();
+
+    jobService.startUsing();
+    metricsWritingJob = jobService.schedule(() -> {
+      try {
+        flush(false);
+      }
+      catch (Exception e) {
+        // Don't propagate, as this stops subsequent executions
+        log.error("Cannot write blob store metrics", e);
+      }
+    }, METRICS_FLUSH_PERIOD_SECONDS);
+
+    metricsRefreshingJob = jobService.schedule(() -> {
+      try {
+        refresh();
+      }
+      catch (Exception e) {
+        log.error("Cannot refresh blob store metrics", e);
+      }
+    }, refreshInterval);
 
-    azureClient = null;
+    quotaCheckingJob = jobService.schedule(() -> quotaService.checkQuota(blobStore), quotaCheckInterval);
   }
 
   @Override
+  protected void doStop() throws Exception {
+    metricsWritingJob.cancel();
+    metricsWritingJob = null;
+    metricsRefreshingJob.cancel();
+    metricsRefreshingJob = null;
+    quotaCheckingJob.cancel();
+    quotaCheckingJob = null;
+    jobService.stopUsing();
+
+    flush(false);
+
+    properties = null;
+    counters = null;
+    remoteTotals = null;
+  }
+
+  /**
+   * Returns the totals of this node, counted live, plus the cached totals of every other node.
+   */
+  @Guarded(by = STARTED)
+  public BlobStoreMetrics getMetrics() {
+    Counters local = counters;
+    RemoteTotals remote = remoteTotals;
+    AccumulatingBlobStoreMetrics metrics = getAccumulatingBlobStoreMetrics();
+    metrics.addBlobCount(local.blobCount.sum() + remote.blobCount);
+    metrics.addTotalSize(local.totalSize.sum() + remote.totalSize);
+    return metrics;
+  }
+
+  @Guarded(by = STARTED)
+  public void recordAddition(final long size) {
+    Counters current = counters;
+    current.blobCount.increment();
+    current.totalSize.add(size);
+  }
+
+  @Guarded(by = STARTED)
+  public void recordDeletion(final long size) {
+    Counters current = counters;
+    current.blobCount.decrement();
+    current.totalSize.add(-size);
+  }
+
+  /**
+   * Replaces the metrics of the whole blob store with freshly calculated values and writes them out immediately
+   * under a new generation, which makes every other node drop its own counters on its next refresh. Additions or
+   * deletions racing with the recalculation may be lost; they are bounded by the writes during the listing.
+   */
+  @Guarded(by = STARTED)
+  public void replace(final long blobCount, final long totalSize) throws IOException {
+    long generation = Math.max(System.currentTimeMillis(), counters.generation + 1);
+    counters = new Counters(generation, blobCount, totalSize);
+    remoteTotals = RemoteTotals.NONE;
+    flush(true);
+  }
+
   protected AzurePropertiesFile getProperties() {
-    return new AzurePropertiesFile(azureClient, nodeAccess.getId() + "-" + METRICS_FILENAME);
+    return new AzurePropertiesFile(azureClient, localMetricsFilename());
   }
 
-  @Override
   protected AccumulatingBlobStoreMetrics getAccumulatingBlobStoreMetrics() {
     return new AccumulatingBlobStoreMetrics(0, 0, AVAILABLE_SPACE_BY_FILE_STORE, true);
   }
 
-  @Override
+  /**
+   * Returns the metrics files of all nodes. They are kept at the root of the container, which is listed without
+   * descending into the content.
+   */
   protected Stream<AzurePropertiesFile> backingFiles() {
     if (azureClient == null) {
       return Stream.empty();
     }
-    return Stream.of(getProperties());
-    //TODO: Fix this. Really only needed for HA-C and current impl of metrics
-    //List<AzurePropertiesFile> azurePropertiesFiles = new ArrayList<>();
-    //azureClient
-    //    .listFiles("", AzureBlobStoreMetricsStore::metricsFileSuffix)
-    //    .map(x -> new AzurePropertiesFile(azureClient, x))
-    //    .blockingIterable().iterator().forEachRemaining(azurePropertiesFiles::add);
-    //return azurePropertiesFiles.stream();
+    return azureClient.listChildren("")
+        .filter(AzureBlobStoreMetricsStore::metricsFileSuffix)
+        .map(name -> new AzurePropertiesFile(azureClient, name));
   }
 
-  private static boolean metricsFileSuffix(String s) {return s.endsWith(METRICS_FILENAME);}
+  private static boolean metricsFileSuffix(String s) {return s.endsWith("-" + METRICS_FILENAME);}
 
   public void remove() {
     backingFiles().forEach(metricsFile -> { metricsFile.remove(); });
   }
+
+  private String localMetricsFilename() {
+    return nodeAccess.getId() + "-" + METRICS_FILENAME;
+  }
+
+  /**
+   * Writes the local counters out when they or their generation changed since the last write, or unconditionally
+   * when forced.
+   */
+  private synchronized void flush(final boolean force) throws IOException {
+    Counters current = counters;
+    long blobCount = current.blobCount.sum();
+    long totalSize = current.totalSize.sum();
+    if (!force && current.generation == flushedGeneration && blobCount == flushedBlobCount
+        && totalSize == flushedTotalSize) {
+      return;
+    }
+    properties.setProperty(GENERATION_PROP_NAME, Long.toString(current.generation));
+    properties.setProperty(BLOB_COUNT_PROP_NAME, Long.toString(blobCount));
+    properties.setProperty(TOTAL_SIZE_PROP_NAME, Long.toString(totalSize));
+    log.trace("Writing blob store metrics file {}", properties);
+    properties.store();
+    flushedGeneration = current.generation;
+    flushedBlobCount = blobCount;
+    flushedTotalSize = totalSize;
+  }
+
+  /**
+   * Re-reads the metrics files of the other nodes and caches their totals.
+   */
+  private void refresh() {
+    String localFilename = localMetricsFilename();
+    long newestGeneration = counters.generation;
+    long blobCount = 0;
+    long totalSize = 0;
+    long countedGeneration = newestGeneration;
+
+    List<AzurePropertiesFile> remoteFiles = backingFiles()
+        .filter(file -> !file.getKey().equals(localFilename))
+        .collect(toList());
+    for (AzurePropertiesFile metricsFile : remoteFiles) {
+      try {
+        metricsFile.load();
+      }
+      catch (IOException e) {
+        log.warn("Unable to load blob store metrics file {}", metricsFile, e);
+        continue;
+      }
+      long generation = getOrZero(metricsFile, GENERATION_PROP_NAME);
+      if (generation > countedGeneration) {
+        // a newer recalculation supersedes everything counted so far
+        countedGeneration = generation;
+        blobCount = 0;
+        totalSize = 0;
+      }
+      if (generation == countedGeneration) {
+        blobCount += getOrZero(metricsFile, BLOB_COUNT_PROP_NAME);
+        totalSize += getOrZero(metricsFile, TOTAL_SIZE_PROP_NAME);
+      }
+    }
+
+    if (countedGeneration > newestGeneration) {
+      log.info("Blob store metrics were recalculated by another node, restarting local counters");
+      counters = new Counters(countedGeneration, 0, 0);
+    }
+    remoteTotals = new RemoteTotals(blobCount, totalSize);
+  }
+
+  private static long getOrZero(final AzurePropertiesFile properties, final String key) {
+    String value = properties.getProperty(key);
+    return value == null ? 0L : Long.parseLong(value);
+  }
+
+  private static class Counters
+  {
+    private final long generation;
+
+    private final LongAdder blobCount = new LongAdder();
+
+    private final LongAdder totalSize = new LongAdder();
+
+    private Counters(final long generation, final long blobCount, final long totalSize) {
+      this.generation = generation;
+      this.blobCount.add(blobCount);
+      this.totalSize.add(totalSize);
+    }
+  }
+
+  private static class RemoteTotals
+  {
+    private static final RemoteTotals NONE = new RemoteTotals(0, 0);
+
+    private final long blobCount;
+
+    private final long totalSize;
+
+    private RemoteTotals(final long blobCount, final long totalSize) {
+      this.blobCount = blobCount;
+      this.totalSize = totalSize;
+    }
+  }
 }
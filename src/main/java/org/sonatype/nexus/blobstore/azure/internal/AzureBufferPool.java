@@ -0,0 +1,53 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.sonatype.nexus.common.property.SystemPropertiesHelper;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Retains up to {@code retained} upload buffers of one chunk size between uploads, so that a stream of blob creates,
+ * such as an import, does not allocate a chunk sized buffer for every blob.
+ */
+class AzureBufferPool
+{
+  static final int DEFAULT_RETAINED = SystemPropertiesHelper.getInteger("nexus.azure.bufferPool.retained", 16);
+
+  private final int bufferSize;
+
+  private final BlockingQueue<byte[]> buffers;
+
+  AzureBufferPool(final int bufferSize, final int retained) {
+    checkArgument(bufferSize > 0, "Buffer size must be > 0");
+    this.bufferSize = bufferSize;
+    this.buffers = new ArrayBlockingQueue<>(Math.max(1, retained));
+  }
+
+  byte[] acquire() {
+    byte[] buffer = buffers.poll();
+    return buffer != null ? buffer : new byte[bufferSize];
+  }
+
+  /**
+   * Hands a buffer back, dropping it when enough are retained already.
+   */
+  void release(final byte[] buffer) {
+    if (buffer.length == bufferSize) {
+      buffers.offer(buffer);
+    }
+  }
+}
@@ -2,25 +2,120 @@ package org.sonatype.nexus.blobstore.azure.internal;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map.Entry;
+import java.util.Optional;
 import java.util.function.Predicate;
 import java.util.stream.Stream;
 
+import javax.annotation.Nullable;
+
+import org.sonatype.nexus.blobstore.MetricsInputStream;
+import org.sonatype.nexus.blobstore.StreamMetrics;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
 public interface AzureClient
 {
   void create(String path, InputStream data);
 
+  /**
+   * Uploads the stream like {@link #create(String, InputStream)}, measuring the size and SHA-1 of its content. Clients
+   * which hash the content as they read it for upload compute the SHA-1 in the same pass.
+   */
+  default StreamMetrics createMeasured(final String path, final InputStream data) {
+    MetricsInputStream input = new MetricsInputStream(data);
+    create(path, input);
+    return input.getMetrics();
+  }
+
+  /**
+   * Uploads the content of a local file of the given size, which clients may read in parallel ranges.
+   */
+  default void create(final String path, final Path file, final long size) throws IOException {
+    try (InputStream data = Files.newInputStream(file)) {
+      create(path, data);
+    }
+  }
+
   InputStream get(String path) throws IOException;
 
+  /**
+   * Reads {@code length} bytes of an append blob from the offset.
+   */
+  InputStream get(String path, long offset, long length) throws IOException;
+
+  /**
+   * Reads a small blob whole together with its ETag, in a single request.
+   *
+   * @return the content and its ETag, or null if the blob does not exist
+   */
+  @Nullable
+  Versioned getVersioned(String path) throws IOException;
+
+  /**
+   * Stores small content only if the blob is still at the version read: when it has the ETag, or when the ETag is
+   * null when it does not exist yet.
+   *
+   * @return the ETag of the stored version, or null if the blob was changed by someone else
+   */
+  @Nullable
+  String createIfMatch(String path, byte[] data, @Nullable String eTag);
+
+  /**
+   * Appends the data to the append blob, which is created first if it does not exist yet.
+   *
+   * @return the offset at which the data was appended
+   */
+  long append(String path, byte[] data, int length);
+
   boolean exists(String path);
 
+  /**
+   * Gives the blob a new ETag without changing its content, so that a conditional request made on the version read
+   * before fails.
+   *
+   * @return the new ETag, or null if the blob does not exist
+   */
+  @Nullable
+  String touch(String path);
+
   void delete(String path);
 
+  /**
+   * Deletes the blob only if it still has the ETag.
+   *
+   * @return whether it was deleted, false if it was changed or deleted by someone else
+   */
+  boolean deleteIfMatch(String path, String eTag);
+
+  /**
+   * Copies the blob within the container; the copy is complete when this returns.
+   */
   void copy(String sourcePath, String destination);
 
+  /**
+   * Copies the blob of the given size, which lets the client pick a synchronous copy without asking for the size.
+   */
+  default void copy(final String sourcePath, final String destination, final long size) {
+    copy(sourcePath, destination);
+  }
+
   Stream<String> listFiles(String contentPrefix);
 
   Stream<String> listFiles(String contentPrefix, Predicate<String> blobSuffixFilter);
 
+  /**
+   * Lists the blobs under the prefix together with their content length, as reported by the listing itself.
+   */
+  Stream<Entry<String, Long>> listFileSizes(String contentPrefix);
+
+  /**
+   * Lists the immediate children of the prefix; virtual directories are returned with a trailing '/'.
+   */
+  Stream<String> listChildren(String prefix);
+
   void createContainer();
 
   void deleteContainer();
@@ -28,4 +123,39 @@ public interface AzureClient
   boolean containerExists();
 
   String getContainerName();
+
+  /**
+   * Releases the threads and connections of this client and of the clients it decorates; it is not used afterwards.
+   */
+  void close();
+
+  /**
+   * Returns this client, or the client it decorates, if it is of the given type.
+   */
+  default <T extends AzureClient> Optional<T> unwrap(final Class<T> type) {
+    return type.isInstance(this) ? Optional.of(type.cast(this)) : Optional.empty();
+  }
+
+  /**
+   * The content of a blob as of the version with the ETag.
+   */
+  final class Versioned
+  {
+    private final byte[] content;
+
+    private final String eTag;
+
+    public Versioned(final byte[] content, final String eTag) {
+      this.content = checkNotNull(content);
+      this.eTag = checkNotNull(eTag);
+    }
+
+    public byte[] getContent() {
+      return content;
+    }
+
+    public String getETag() {
+      return eTag;
+    }
+  }
 }
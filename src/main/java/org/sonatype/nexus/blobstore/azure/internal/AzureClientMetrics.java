@@ -0,0 +1,150 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SlidingWindowReservoir;
+import com.codahale.metrics.Timer;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Dropwizard metrics of the {@link AzureClient} operations of one blob store, published in the Nexus metrics
+ * registry (and so over JMX) as
+ * {@code org.sonatype.nexus.blobstore.azure.internal.AzureClient.<blobStoreName>.<operation>.<latency|bytes|errors>},
+ * along with the requests retried across all operations as
+ * {@code org.sonatype.nexus.blobstore.azure.internal.AzureClient.<blobStoreName>.retries}.
+ *
+ * Latencies use a fixed size sliding window reservoir so that recording never allocates.
+ */
+public class AzureClientMetrics
+{
+  public enum Operation
+  {
+    CREATE,
+    APPEND,
+    TOUCH,
+    GET,
+    EXISTS,
+    DELETE,
+    COPY,
+    LIST_FILES,
+    LIST_FILE_SIZES,
+    LIST_CHILDREN,
+    CREATE_CONTAINER,
+    DELETE_CONTAINER,
+    CONTAINER_EXISTS;
+
+    String metricName() {
+      return name().toLowerCase(Locale.ENGLISH);
+    }
+  }
+
+  private static final int RESERVOIR_SIZE = 1028;
+
+  private final MetricRegistry registry;
+
+  private final String prefix;
+
+  private final Map<Operation, OperationMetrics> operations = new EnumMap<>(Operation.class);
+
+  private final List<String> names = new ArrayList<>();
+
+  private final Meter retries;
+
+  public AzureClientMetrics(final MetricRegistry registry, @Nullable final String blobStoreName) {
+    this(registry, blobStoreName, new Meter());
+  }
+
+  /**
+   * @param retries meter already counting the retries of the client, registered along with the other metrics
+   */
+  public AzureClientMetrics(final MetricRegistry registry,
+                            @Nullable final String blobStoreName,
+                            final Meter retries)
+  {
+    this.registry = checkNotNull(registry);
+    this.prefix = name(AzureClient.class, blobStoreName);
+    for (Operation operation : Operation.values()) {
+      String operationPrefix = name(prefix, operation.metricName());
+      operations.put(operation, new OperationMetrics(
+          register(name(operationPrefix, "latency"), new Timer(new SlidingWindowReservoir(RESERVOIR_SIZE))),
+          register(name(operationPrefix, "bytes"), new Meter()),
+          register(name(operationPrefix, "errors"), new Meter())));
+    }
+    this.retries = register(name(prefix, "retries"), checkNotNull(retries));
+  }
+
+  public OperationMetrics get(final Operation operation) {
+    return operations.get(operation);
+  }
+
+  public Meter getRetries() {
+    return retries;
+  }
+
+  /**
+   * Removes the metrics registered by this instance from the registry, leaving those of other blob stores whose
+   * names share the prefix.
+   */
+  public void remove() {
+    names.forEach(registry::remove);
+  }
+
+  /**
+   * Replaces any metric left behind by a previous client of the same blob store.
+   */
+  private <T extends Metric> T register(final String name, final T metric) {
+    names.add(name);
+    registry.remove(name);
+    return registry.register(name, metric);
+  }
+
+  public static class OperationMetrics
+  {
+    private final Timer latency;
+
+    private final Meter bytes;
+
+    private final Meter errors;
+
+    OperationMetrics(final Timer latency, final Meter bytes, final Meter errors) {
+      this.latency = latency;
+      this.bytes = bytes;
+      this.errors = errors;
+    }
+
+    public Timer getLatency() {
+      return latency;
+    }
+
+    public Meter getBytes() {
+      return bytes;
+    }
+
+    public Meter getErrors() {
+      return errors;
+    }
+  }
+}
@@ -0,0 +1,387 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+import javax.annotation.Nullable;
+
+import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.blobstore.api.BlobId;
+
+import com.google.common.io.ByteStreams;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Lets concurrent readers of the same blob share one download.
+ *
+ * The first reader of a blob opens its content in Azure and starts a download, which spills the content to a local
+ * file as it arrives. Readers opening the blob while the download is in flight attach to it and read the file,
+ * waiting for the bytes which have not arrived yet. Whichever reader runs out of arrived bytes first fetches the next
+ * ones, so no thread is dedicated to a download. The download ends, and its file is deleted, once its last reader
+ * closes; a reader opening the blob after that starts a new one.
+ *
+ * The files of all downloads together never exceed {@code maxBytes}; a reader of a blob which does not fit reads
+ * from Azure on its own. {@link #invalidate(BlobId)} detaches the download of a blob which was overwritten or deleted
+ * from later readers, while the readers attached already finish reading the content they opened. Each download also
+ * carries the generation of the blob it was started for, and a reader of a later generation starts a new download
+ * instead of attaching to it, so that callers need not lock the blob while its content is opened.
+ */
+public class AzureDownloadCoalescer
+    extends ComponentSupport
+{
+  private static final int FETCH_BYTES = 256 * 1024;
+
+  private final Path directory;
+
+  private final long maxBytes;
+
+  private final AtomicLong usedBytes = new AtomicLong();
+
+  private final ConcurrentMap<BlobId, Download> downloads = new ConcurrentHashMap<>();
+
+  public AzureDownloadCoalescer(final Path directory, final long maxBytes) {
+    this.directory = checkNotNull(directory);
+    checkArgument(maxBytes > 0, "Coalescing size must be > 0");
+    this.maxBytes = maxBytes;
+  }
+
+  public long getUsedBytes() {
+    return usedBytes.get();
+  }
+
+  /**
+   * Opens the content of a blob of the given size, attaching to its download in flight or starting one.
+   *
+   * @param generation increases whenever the blob is pointed at other content; a download started for an earlier one
+   *                   is replaced
+   * @param opener     opens the content in Azure when a download is started
+   */
+  public InputStream open(final BlobId blobId,
+                          final long generation,
+                          final long size,
+                          final ContentOpener opener) throws IOException
+  {
+    while (true) {
+      Download download = downloads.get(blobId);
+      if (download != null && download.generation < generation) {
+        // started for content the blob has been moved off since, its readers finish on their own
+        downloads.remove(blobId, download);
+        continue;
+      }
+      if (download == null) {
+        if (usedBytes.addAndGet(size) > maxBytes) {
+          usedBytes.addAndGet(-size);
+          log.debug("No room to share the download of blob {}", blobId);
+          return opener.open();
+        }
+        Download started = new Download(blobId, generation, size, opener);
+        download = downloads.putIfAbsent(blobId, started);
+        if (download == null) {
+          download = started;
+        }
+        else {
+          usedBytes.addAndGet(-size);
+        }
+      }
+      InputStream reader = download.attach();
+      if (reader != null) {
+        return reader;
+      }
+      // the last reader left the download meanwhile
+      downloads.remove(blobId, download);
+    }
+  }
+
+  /**
+   * Keeps later readers of the blob from attaching to its download in flight.
+   */
+  public void invalidate(final BlobId blobId) {
+    downloads.remove(blobId);
+  }
+
+  /**
+   * Creates the download directory, deleting whatever an earlier run left behind.
+   */
+  public void clear() throws IOException {
+    downloads.clear();
+    Files.createDirectories(directory);
+    try (Stream<Path> files = Files.list(directory)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        Files.deleteIfExists(file);
+      }
+    }
+    usedBytes.set(0);
+  }
+
+  /**
+   * Opens the content of a blob in Azure.
+   */
+  public interface ContentOpener
+  {
+    InputStream open() throws IOException;
+  }
+
+  /**
+   * The download of one blob and its spill file, shared by its readers.
+   */
+  private class Download
+  {
+    private final BlobId blobId;
+
+    private final long generation;
+
+    private final long size;
+
+    private final ContentOpener opener;
+
+    private final Lock lock = new ReentrantLock();
+
+    private final Condition arrived = lock.newCondition();
+
+    private final byte[] chunk = new byte[FETCH_BYTES];
+
+    private Path file;
+
+    private FileChannel channel;
+
+    /**
+     * The content in Azure, only used by the reader fetching.
+     */
+    private InputStream source;
+
+    private long written;
+
+    private boolean fetching;
+
+    private boolean done;
+
+    @Nullable
+    private Exception failure;
+
+    private int readers;
+
+    private boolean closed;
+
+    Download(final BlobId blobId, final long generation, final long size, final ContentOpener opener) {
+      this.blobId = blobId;
+      this.generation = generation;
+      this.size = size;
+      this.opener = opener;
+    }
+
+    /**
+     * @return a reader from the start of the content, null if the download has ended
+     */
+    @Nullable
+    InputStream attach() throws IOException {
+      lock.lock();
+      try {
+        if (closed) {
+          return null;
+        }
+        if (channel == null) {
+          // the content is opened right away, so that it is the content the caller found
+          source = opener.open();
+          try {
+            file = Files.createTempFile(directory, "download-", ".bytes");
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+          }
+          catch (IOException | RuntimeException e) {
+            source.close();
+            throw e;
+          }
+          log.debug("Started shared download of blob {} to {}", blobId, file);
+        }
+        readers++;
+        return new Reader(this);
+      }
+      catch (IOException | RuntimeException e) {
+        if (readers == 0) {
+          end();
+        }
+        throw e;
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Waits until content past the position has arrived, fetching it unless another reader is.
+     *
+     * @return the number of bytes available from the position, 0 at the end of the content
+     */
+    long await(final long position) throws IOException {
+      while (true) {
+        lock.lock();
+        try {
+          while (true) {
+            if (position < written) {
+              return written - position;
+            }
+            if (failure != null) {
+              throw new IOException("Shared download of blob " + blobId + " failed", failure);
+            }
+            if (done) {
+              return 0;
+            }
+            if (!fetching) {
+              fetching = true;
+              break;
+            }
+            arrived.await();
+          }
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for blob " + blobId);
+        }
+        finally {
+          lock.unlock();
+        }
+        fetch();
+      }
+    }
+
+    private void fetch() {
+      int length = 0;
+      Exception error = null;
+      try {
+        length = ByteStreams.read(source, chunk, 0, chunk.length);
+        ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, length);
+        long position = written;
+        while (buffer.hasRemaining()) {
+          position += channel.write(buffer, position);
+        }
+      }
+      catch (IOException | RuntimeException e) {
+        error = e;
+      }
+      lock.lock();
+      try {
+        if (error != null) {
+          failure = error;
+        }
+        else {
+          written += length;
+          done = length < chunk.length;
+        }
+        fetching = false;
+        arrived.signalAll();
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+
+    int read(final long position, final byte[] b, final int off, final int len) throws IOException {
+      return channel.read(ByteBuffer.wrap(b, off, len), position);
+    }
+
+    void detach() {
+      lock.lock();
+      try {
+        if (--readers == 0) {
+          end();
+        }
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+
+    private void end() {
+      closed = true;
+      downloads.remove(blobId, this);
+      usedBytes.addAndGet(-size);
+      try {
+        if (source != null) {
+          source.close();
+        }
+        if (channel != null) {
+          channel.close();
+        }
+        if (file != null) {
+          Files.deleteIfExists(file);
+        }
+      }
+      catch (IOException e) {
+        log.warn("Unable to clean up the shared download of blob {}", blobId, e);
+      }
+    }
+  }
+
+  private static class Reader
+      extends InputStream
+  {
+    private final Download download;
+
+    private long position;
+
+    private boolean closed;
+
+    Reader(final Download download) {
+      this.download = download;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] single = new byte[1];
+      return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      if (closed) {
+        throw new IOException("Stream closed");
+      }
+      if (len == 0) {
+        return 0;
+      }
+      long available = download.await(position);
+      if (available == 0) {
+        return -1;
+      }
+      int n = download.read(position, b, off, (int) Math.min(len, available));
+      if (n > 0) {
+        position += n;
+      }
+      return n;
+    }
+
+    @Override
+    public void close() {
+      if (!closed) {
+        closed = true;
+        download.detach();
+      }
+    }
+  }
+}
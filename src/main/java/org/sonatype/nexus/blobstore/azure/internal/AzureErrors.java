@@ -0,0 +1,61 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal;
+
+import com.azure.storage.blob.models.BlobStorageException;
+import com.microsoft.azure.storage.StorageException;
+
+/**
+ * Classifies the errors raised by either Azure SDK, which the clients may have wrapped in other exceptions.
+ */
+final class AzureErrors
+{
+  private AzureErrors() {
+  }
+
+  /**
+   * Returns the HTTP status of the first Azure error in the cause chain, or -1 if there is none.
+   */
+  static int statusCode(final Throwable failure) {
+    for (Throwable t = failure; t != null; t = t.getCause() == t ? null : t.getCause()) {
+      if (t instanceof StorageException) {
+        return ((StorageException) t).getHttpStatusCode();
+      }
+      if (t instanceof BlobStorageException) {
+        return ((BlobStorageException) t).getStatusCode();
+      }
+    }
+    return -1;
+  }
+
+  static boolean isNotFound(final Throwable failure) {
+    return statusCode(failure) == 404;
+  }
+
+  /**
+   * Whether a conditional write was refused because the blob changed: 412 when it no longer has the expected ETag,
+   * 404 when it was deleted and 409 when it was created meanwhile.
+   */
+  static boolean isConditionNotMet(final Throwable failure) {
+    int status = statusCode(failure);
+    return status == 412 || status == 409 || status == 404;
+  }
+
+  /**
+   * Whether Azure signalled that it is overloaded: 500 OperationTimedOut or 503 ServerBusy.
+   */
+  static boolean isThrottled(final Throwable failure) {
+    int status = statusCode(failure);
+    return status == 500 || status == 503;
+  }
+}
@@ -0,0 +1,262 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal;
+
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor.CallerRunsPolicy;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.thread.NexusThreadFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Runs the blocking Azure SDK calls of one blob store.
+ *
+ * In {@link Mode#CALLER} mode calls run on the calling thread, as they always did. {@link Mode#VIRTUAL} runs them on
+ * virtual threads when the JVM provides {@code Executors.newVirtualThreadPerTaskExecutor()}, limited to
+ * {@code maxConcurrency} calls at once, and otherwise falls back to {@link Mode#PLATFORM}: a pool of at most
+ * {@code maxConcurrency} platform threads which runs further calls on the caller once its queue is full.
+ *
+ * Only {@link #submit(Callable) submitted} calls, the blocks of an upload and the ranges read ahead, run on the
+ * executor. A single {@link #call(Callable)} runs on the calling thread in every mode: the caller would only wait for
+ * it, so handing it to another thread would add a context switch and save no thread.
+ *
+ * The number of calls submitted but not yet completed is published as
+ * {@code org.sonatype.nexus.blobstore.azure.internal.AzureClient.<blobStoreName>.io.inFlight}, the effective mode as
+ * {@code org.sonatype.nexus.blobstore.azure.internal.AzureClient.<blobStoreName>.io.mode}.
+ */
+public class AzureIoExecutor
+    extends ComponentSupport
+{
+  public enum Mode
+  {
+    CALLER,
+    VIRTUAL,
+    PLATFORM;
+
+    static Mode parse(final String value) {
+      return valueOf(value.toUpperCase(Locale.ENGLISH));
+    }
+  }
+
+  private static final int QUEUE_SIZE_PER_THREAD = 4;
+
+  private static final long IDLE_SECONDS = 60L;
+
+  private final Mode mode;
+
+  private final int parallelism;
+
+  @Nullable
+  private final ExecutorService executor;
+
+  @Nullable
+  private final Semaphore permits;
+
+  private final Counter inFlight;
+
+  @Nullable
+  private final MetricRegistry registry;
+
+  @Nullable
+  private final String metricsPrefix;
+
+  /**
+   * Runs every call on the calling thread, without publishing metrics.
+   */
+  public AzureIoExecutor() {
+    this.mode = Mode.CALLER;
+    this.parallelism = 1;
+    this.executor = null;
+    this.permits = null;
+    this.inFlight = new Counter();
+    this.registry = null;
+    this.metricsPrefix = null;
+  }
+
+  public AzureIoExecutor(final String blobStoreName,
+                         final Mode requestedMode,
+                         final int maxConcurrency,
+                         final MetricRegistry registry)
+  {
+    checkArgument(maxConcurrency > 0, "Max concurrency must be > 0");
+    ExecutorService virtualExecutor = requestedMode == Mode.VIRTUAL ? newVirtualThreadPerTaskExecutor() : null;
+    if (virtualExecutor != null) {
+      this.mode = Mode.VIRTUAL;
+      this.executor = virtualExecutor;
+      this.permits = new Semaphore(maxConcurrency);
+    }
+    else if (requestedMode == Mode.CALLER) {
+      this.mode = Mode.CALLER;
+      this.executor = null;
+      this.permits = null;
+    }
+    else {
+      if (requestedMode == Mode.VIRTUAL) {
+        log.info("Virtual threads are not available, blob store {} uses up to {} platform threads for Azure I/O",
+            blobStoreName, maxConcurrency);
+      }
+      this.mode = Mode.PLATFORM;
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, IDLE_SECONDS, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<>(maxConcurrency * QUEUE_SIZE_PER_THREAD),
+          new NexusThreadFactory("azure-io", blobStoreName), new CallerRunsPolicy());
+      pool.allowCoreThreadTimeOut(true);
+      this.executor = pool;
+      this.permits = null;
+    }
+    this.parallelism = mode == Mode.CALLER ? 1 : maxConcurrency;
+
+    this.registry = registry;
+    this.metricsPrefix = name(AzureClient.class, blobStoreName, "io");
+    registry.remove(name(metricsPrefix, "inFlight"));
+    this.inFlight = registry.register(name(metricsPrefix, "inFlight"), new Counter());
+    registry.remove(name(metricsPrefix, "mode"));
+    registry.register(name(metricsPrefix, "mode"), (Gauge<String>) mode::name);
+  }
+
+  @Nullable
+  private static ExecutorService newVirtualThreadPerTaskExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    }
+    catch (ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  /**
+   * Returns how many calls may usefully be issued at once, 1 when calls run on the caller.
+   */
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  public long getInFlight() {
+    return inFlight.getCount();
+  }
+
+  /**
+   * Starts the call, or runs it right away in {@link Mode#CALLER} mode.
+   */
+  public <T> Future<T> submit(final Callable<T> call) {
+    inFlight.inc();
+    if (executor == null) {
+      CompletableFuture<T> result = new CompletableFuture<>();
+      try {
+        result.complete(call.call());
+      }
+      catch (Exception e) {
+        result.completeExceptionally(e);
+      }
+      finally {
+        inFlight.dec();
+      }
+      return result;
+    }
+    return executor.submit(() -> {
+      try {
+        if (permits != null) {
+          permits.acquire();
+        }
+        try {
+          return call.call();
+        }
+        finally {
+          if (permits != null) {
+            permits.release();
+          }
+        }
+      }
+      finally {
+        inFlight.dec();
+      }
+    });
+  }
+
+  /**
+   * Stops the threads of the executor once the calls in flight have completed, and removes its metrics.
+   */
+  public void close() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+    if (registry != null) {
+      registry.removeMatching((metricName, metric) -> metricName.startsWith(metricsPrefix + "."));
+    }
+  }
+
+  /**
+   * Runs the call on the calling thread. Checked exceptions are rethrown wrapped in a {@link RuntimeException}.
+   */
+  public <T> T call(final Callable<T> call) {
+    inFlight.inc();
+    try {
+      return call.call();
+    }
+    catch (RuntimeException e) {
+      throw e;
+    }
+    catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+    finally {
+      inFlight.dec();
+    }
+  }
+
+  /**
+   * Waits for the result of a submitted call. Checked exceptions are rethrown wrapped in a {@link RuntimeException}.
+   */
+  public static <T> T await(final Future<T> future) {
+    try {
+      return future.get();
+    }
+    catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+  }
+}
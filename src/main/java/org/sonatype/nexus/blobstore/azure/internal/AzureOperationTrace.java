@@ -0,0 +1,217 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal;
+
+import java.util.Arrays;
+
+/**
+ * Per-thread timing breakdown of the blob store operation in progress.
+ *
+ * One instance is reused per thread and nested operations (e.g. {@code exists} during {@code create}) are folded
+ * into the outermost one, so tracing a fast operation costs a few {@link System#nanoTime()} calls and no
+ * allocation. {@link AzureSlowOperationRecorder} decides at the end whether the trace is worth keeping.
+ */
+public final class AzureOperationTrace
+{
+  /**
+   * The steps of an operation. Steps are either consecutive sections marked by {@link #mark(Step)}, or durations
+   * measured by the {@link AzureClient} and added with {@link #add(Step, long)}, which overlap the sections.
+   */
+  public enum Step
+  {
+    LOCK_WAIT,
+    ATTRIBUTES_LOAD,
+    CONTENT_UPLOAD,
+    ATTRIBUTES_STORE,
+    DELETED_INDEX,
+    CONTENT_OPEN,
+    CONTENT_DELETE,
+    BLOCK_UPLOAD,
+    BLOCK_COMMIT
+  }
+
+  private static final ThreadLocal<AzureOperationTrace> CURRENT = ThreadLocal.withInitial(AzureOperationTrace::new);
+
+  private final long[] stepNanos = new long[Step.values().length];
+
+  private int depth;
+
+  private String operation;
+
+  private Object subject;
+
+  private long startNanos;
+
+  private long lastMarkNanos;
+
+  private long bytes;
+
+  private int blocks;
+
+  private int retries;
+
+  private AzureOperationTrace() {
+  }
+
+  /**
+   * Returns the trace of the calling thread. Recording into it outside of an operation has no effect.
+   */
+  public static AzureOperationTrace current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Starts tracing an operation, unless one is already in progress on this thread.
+   *
+   * @return the trace of the calling thread, to be passed to {@link AzureSlowOperationRecorder#end}
+   */
+  static AzureOperationTrace begin(final String operation, final Object subject) {
+    AzureOperationTrace trace = CURRENT.get();
+    if (trace.depth++ == 0) {
+      trace.operation = operation;
+      trace.subject = subject;
+      trace.startNanos = System.nanoTime();
+      trace.lastMarkNanos = trace.startNanos;
+      trace.bytes = 0;
+      trace.blocks = 0;
+      trace.retries = 0;
+      Arrays.fill(trace.stepNanos, 0);
+    }
+    return trace;
+  }
+
+  /**
+   * Returns a trace of its own for a call made on another thread on behalf of an operation. It is {@link #attach()
+   * attached} to that thread for the call and {@link #addAll(AzureOperationTrace) added} to the operation once the
+   * operation takes the result, so a call which is abandoned never records into the operation.
+   */
+  static AzureOperationTrace detached() {
+    AzureOperationTrace trace = new AzureOperationTrace();
+    trace.depth = 1;
+    trace.startNanos = System.nanoTime();
+    trace.lastMarkNanos = trace.startNanos;
+    return trace;
+  }
+
+  /**
+   * Makes this the trace of the calling thread until the returned scope is closed.
+   */
+  TraceScope attach() {
+    AzureOperationTrace previous = CURRENT.get();
+    CURRENT.set(this);
+    return () -> CURRENT.set(previous);
+  }
+
+  /**
+   * Adds the steps and counts recorded by another trace.
+   */
+  void addAll(final AzureOperationTrace other) {
+    if (depth > 0) {
+      for (int i = 0; i < stepNanos.length; i++) {
+        stepNanos[i] += other.stepNanos[i];
+      }
+      bytes += other.bytes;
+      blocks += other.blocks;
+      retries += other.retries;
+    }
+  }
+
+  /**
+   * Attributes the time since the previous mark to the step.
+   */
+  public void mark(final Step step) {
+    if (depth > 0) {
+      long now = System.nanoTime();
+      stepNanos[step.ordinal()] += now - lastMarkNanos;
+      lastMarkNanos = now;
+    }
+  }
+
+  /**
+   * Adds a separately measured duration to the step.
+   */
+  public void add(final Step step, final long nanos) {
+    if (depth > 0) {
+      stepNanos[step.ordinal()] += nanos;
+    }
+  }
+
+  public void addBytes(final long count) {
+    if (depth > 0) {
+      bytes += count;
+    }
+  }
+
+  public void addBlock() {
+    addBlocks(1);
+  }
+
+  public void addBlocks(final int count) {
+    if (depth > 0) {
+      blocks += count;
+    }
+  }
+
+  public void addRetry() {
+    if (depth > 0) {
+      retries++;
+    }
+  }
+
+  /**
+   * Ends the operation.
+   *
+   * @return the total duration in nanoseconds, or -1 when this closed a nested operation
+   */
+  long end() {
+    if (--depth > 0) {
+      return -1;
+    }
+    depth = 0;
+    return System.nanoTime() - startNanos;
+  }
+
+  String getOperation() {
+    return operation;
+  }
+
+  Object getSubject() {
+    return subject;
+  }
+
+  long getStepNanos(final Step step) {
+    return stepNanos[step.ordinal()];
+  }
+
+  long getBytes() {
+    return bytes;
+  }
+
+  int getBlocks() {
+    return blocks;
+  }
+
+  int getRetries() {
+    return retries;
+  }
+
+  /**
+   * Scope of {@link #attach()}, restoring the previous trace of the thread when closed.
+   */
+  interface TraceScope
+      extends AutoCloseable
+  {
+    @Override
+    void close();
+  }
+}
@@ -18,6 +18,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.Properties;
 
+import javax.annotation.Nullable;
+
+import org.sonatype.nexus.blobstore.azure.internal.AzureClient.Versioned;
 import org.sonatype.nexus.common.property.ImplicitSourcePropertiesFile;
 
 import org.slf4j.Logger;
@@ -37,6 +40,9 @@ public class AzurePropertiesFile
 
   private final String key;
 
+  @Nullable
+  private String eTag;
+
   public AzurePropertiesFile(final AzureClient azureClient, final String key) {
     this.azureClient = checkNotNull(azureClient);
     this.key = checkNotNull(key);
@@ -56,6 +62,52 @@ public class AzurePropertiesFile
     azureClient.create(key, new ByteArrayInputStream(bufferStream.toByteArray()));
   }
 
+  /**
+   * Loads the properties in a single request, remembering the ETag of the version read.
+   *
+   * @return false if the file does not exist
+   */
+  public boolean loadVersioned() throws IOException {
+    log.debug("Loading versioned properties: {}", key);
+    Versioned versioned = azureClient.getVersioned(key);
+    if (versioned == null) {
+      eTag = null;
+      return false;
+    }
+    load(new ByteArrayInputStream(versioned.getContent()));
+    eTag = versioned.getETag();
+    return true;
+  }
+
+  /**
+   * Stores the properties only if the file still has the ETag, or when the ETag is null only if it does not exist.
+   *
+   * @return false if the file was changed by someone else, in which case nothing was stored
+   */
+  public boolean storeIfMatch(@Nullable final String expectedETag) throws IOException {
+    log.debug("Storing properties: {} if it matches {}", key, expectedETag);
+    ByteArrayOutputStream bufferStream = new ByteArrayOutputStream();
+    store(bufferStream, null);
+    String stored = azureClient.createIfMatch(key, bufferStream.toByteArray(), expectedETag);
+    if (stored == null) {
+      return false;
+    }
+    eTag = stored;
+    return true;
+  }
+
+  /**
+   * Returns the ETag of the version last loaded or stored conditionally, or null if none was.
+   */
+  @Nullable
+  public String getETag() {
+    return eTag;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
   public boolean exists() {
     return azureClient.exists(key);
   }
@@ -0,0 +1,215 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.sonatype.nexus.blobstore.api.BlobStoreConfiguration;
+import org.sonatype.nexus.common.property.SystemPropertiesHelper;
+
+import com.azure.core.http.policy.HttpPipelinePolicy;
+import com.azure.storage.common.policy.RequestRetryOptions;
+import com.azure.storage.common.policy.RetryPolicyType;
+import com.codahale.metrics.Meter;
+import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.RetryExponentialRetry;
+import com.microsoft.azure.storage.RetryingEvent;
+import com.microsoft.azure.storage.StorageEvent;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureBlobStore.BLOB_ATTRIBUTE_SUFFIX;
+
+/**
+ * Retry policy and timeouts of the Azure requests of one blob store.
+ *
+ * Requests are retried with exponential backoff, randomized by the SDK by +/-20% so that throttled nodes do not retry
+ * in lockstep. Metadata requests (existence checks, deletes, {@code .properties} files) and content transfers have
+ * separate server timeouts and maximum execution times, so a stuck socket fails a small request quickly without
+ * cutting off large transfers. Every retry is marked on the {@code retries} meter and in the
+ * {@link AzureOperationTrace} of the calling thread.
+ */
+public class AzureRequestPolicy
+{
+  public static final String RETRY_ATTEMPTS_KEY = "retryAttempts";
+
+  public static final String RETRY_BACKOFF_MILLIS_KEY = "retryBackoffMillis";
+
+  public static final String METADATA_SERVER_TIMEOUT_SECONDS_KEY = "metadataServerTimeoutSeconds";
+
+  public static final String METADATA_MAX_EXECUTION_SECONDS_KEY = "metadataMaxExecutionSeconds";
+
+  public static final String CONTENT_SERVER_TIMEOUT_SECONDS_KEY = "contentServerTimeoutSeconds";
+
+  public static final String CONTENT_MAX_EXECUTION_SECONDS_KEY = "contentMaxExecutionSeconds";
+
+  private static final int DEFAULT_RETRY_ATTEMPTS = SystemPropertiesHelper.getInteger("nexus.azure.retryAttempts", 3);
+
+  private static final int DEFAULT_RETRY_BACKOFF_MILLIS =
+      SystemPropertiesHelper.getInteger("nexus.azure.retryBackoffMillis", 500);
+
+  private static final int DEFAULT_METADATA_SERVER_TIMEOUT_SECONDS =
+      SystemPropertiesHelper.getInteger("nexus.azure.metadataServerTimeoutSeconds", 10);
+
+  private static final int DEFAULT_METADATA_MAX_EXECUTION_SECONDS =
+      SystemPropertiesHelper.getInteger("nexus.azure.metadataMaxExecutionSeconds", 30);
+
+  private static final int DEFAULT_CONTENT_SERVER_TIMEOUT_SECONDS =
+      SystemPropertiesHelper.getInteger("nexus.azure.contentServerTimeoutSeconds", 60);
+
+  private static final int DEFAULT_CONTENT_MAX_EXECUTION_SECONDS =
+      SystemPropertiesHelper.getInteger("nexus.azure.contentMaxExecutionSeconds", 600);
+
+  private static final String ATTEMPTED = AzureRequestPolicy.class.getName() + ".attempted";
+
+  private static final int MIN_BACKOFF_MILLIS = 100;
+
+  private static final int MAX_BACKOFF_MILLIS = 30_000;
+
+  private final int retryAttempts;
+
+  private final int retryBackoffMillis;
+
+  private final int contentServerTimeoutSeconds;
+
+  private final BlobRequestOptions metadataOptions;
+
+  private final BlobRequestOptions contentOptions;
+
+  private final Meter retries;
+
+  private final StorageEvent<RetryingEvent> retryListener;
+
+  public AzureRequestPolicy(final int retryAttempts,
+                            final int retryBackoffMillis,
+                            final int metadataServerTimeoutSeconds,
+                            final int metadataMaxExecutionSeconds,
+                            final int contentServerTimeoutSeconds,
+                            final int contentMaxExecutionSeconds,
+                            final Meter retries)
+  {
+    checkArgument(retryAttempts >= 0, "Retry attempts must be >= 0");
+    checkArgument(retryBackoffMillis > 0, "Retry backoff must be > 0");
+    this.retryAttempts = retryAttempts;
+    this.retryBackoffMillis = retryBackoffMillis;
+    this.contentServerTimeoutSeconds = contentServerTimeoutSeconds;
+    this.metadataOptions = requestOptions(metadataServerTimeoutSeconds, metadataMaxExecutionSeconds);
+    this.contentOptions = requestOptions(contentServerTimeoutSeconds, contentMaxExecutionSeconds);
+    this.retries = checkNotNull(retries);
+    this.retryListener = new StorageEvent<RetryingEvent>()
+    {
+      @Override
+      public void eventOccurred(final RetryingEvent event) {
+        retries.mark();
+        AzureOperationTrace.current().addRetry();
+      }
+    };
+  }
+
+  /**
+   * Returns the policy configured by the {@code nexus.azure.*} system properties.
+   */
+  public static AzureRequestPolicy defaults(final Meter retries) {
+    return new AzureRequestPolicy(DEFAULT_RETRY_ATTEMPTS, DEFAULT_RETRY_BACKOFF_MILLIS,
+        DEFAULT_METADATA_SERVER_TIMEOUT_SECONDS, DEFAULT_METADATA_MAX_EXECUTION_SECONDS,
+        DEFAULT_CONTENT_SERVER_TIMEOUT_SECONDS, DEFAULT_CONTENT_MAX_EXECUTION_SECONDS, retries);
+  }
+
+  /**
+   * Reads the policy from the blob store configuration, falling back to the {@code nexus.azure.*} system
+   * properties of the same names.
+   */
+  public static AzureRequestPolicy fromConfiguration(final BlobStoreConfiguration configuration, final Meter retries) {
+    return new AzureRequestPolicy(
+        AzureBlobStoreConfigurationHelper.getInt(configuration, RETRY_ATTEMPTS_KEY, DEFAULT_RETRY_ATTEMPTS),
+        AzureBlobStoreConfigurationHelper.getInt(configuration, RETRY_BACKOFF_MILLIS_KEY,
+            DEFAULT_RETRY_BACKOFF_MILLIS),
+        AzureBlobStoreConfigurationHelper.getInt(configuration, METADATA_SERVER_TIMEOUT_SECONDS_KEY,
+            DEFAULT_METADATA_SERVER_TIMEOUT_SECONDS),
+        AzureBlobStoreConfigurationHelper.getInt(configuration, METADATA_MAX_EXECUTION_SECONDS_KEY,
+            DEFAULT_METADATA_MAX_EXECUTION_SECONDS),
+        AzureBlobStoreConfigurationHelper.getInt(configuration, CONTENT_SERVER_TIMEOUT_SECONDS_KEY,
+            DEFAULT_CONTENT_SERVER_TIMEOUT_SECONDS),
+        AzureBlobStoreConfigurationHelper.getInt(configuration, CONTENT_MAX_EXECUTION_SECONDS_KEY,
+            DEFAULT_CONTENT_MAX_EXECUTION_SECONDS),
+        retries);
+  }
+
+  private BlobRequestOptions requestOptions(final int serverTimeoutSeconds, final int maxExecutionSeconds) {
+    BlobRequestOptions options = new BlobRequestOptions();
+    options.setRetryPolicyFactory(
+        new RetryExponentialRetry(MIN_BACKOFF_MILLIS, retryBackoffMillis, MAX_BACKOFF_MILLIS, retryAttempts));
+    options.setTimeoutIntervalInMs((int) TimeUnit.SECONDS.toMillis(serverTimeoutSeconds));
+    options.setMaximumExecutionTimeInMs((int) TimeUnit.SECONDS.toMillis(maxExecutionSeconds));
+    return options;
+  }
+
+  /**
+   * Options for small requests: existence checks, deletes, copies and container operations.
+   */
+  public BlobRequestOptions forMetadata() {
+    return metadataOptions;
+  }
+
+  /**
+   * Options for content transfers.
+   */
+  public BlobRequestOptions forContent() {
+    return contentOptions;
+  }
+
+  /**
+   * Options for transferring the blob at the path: attribute and other {@code .properties} files are metadata.
+   */
+  public BlobRequestOptions forPath(final String path) {
+    return path.endsWith(BLOB_ATTRIBUTE_SUFFIX) ? metadataOptions : contentOptions;
+  }
+
+  /**
+   * Returns a context for one request, counting its retries.
+   */
+  public OperationContext newOperationContext() {
+    OperationContext context = new OperationContext();
+    context.getRetryingEventHandler().addListener(retryListener);
+    return context;
+  }
+
+  /**
+   * The equivalent retry options for the azure-storage-blob 12 client, whose timeouts apply to each try.
+   */
+  public RequestRetryOptions toRequestRetryOptions() {
+    return new RequestRetryOptions(RetryPolicyType.EXPONENTIAL, retryAttempts + 1, contentServerTimeoutSeconds,
+        (long) retryBackoffMillis, (long) MAX_BACKOFF_MILLIS, null);
+  }
+
+  /**
+   * A pipeline policy for the azure-storage-blob 12 client which marks the {@code retries} meter on every try after
+   * the first. It must run after the retry policy, as the policies added to the client builder do.
+   */
+  public HttpPipelinePolicy retryCountingPolicy() {
+    return (context, next) -> {
+      if (context.getData(ATTEMPTED).isPresent()) {
+        retries.mark();
+      }
+      else {
+        context.setData(ATTEMPTED, Boolean.TRUE);
+      }
+      return next.process();
+    };
+  }
+
+  public Meter getRetries() {
+    return retries;
+  }
+}
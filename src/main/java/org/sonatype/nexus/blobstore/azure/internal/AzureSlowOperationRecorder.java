@@ -0,0 +1,116 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.sonatype.nexus.blobstore.azure.internal.AzureOperationTrace.Step;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Keeps the timing breakdown of blob store operations slower than a threshold.
+ *
+ * Each slow operation is logged as one line of {@code key=value} pairs to the
+ * {@code org.sonatype.nexus.blobstore.azure.internal.AzureSlowOperations} logger and kept in a bounded ring buffer,
+ * see {@link #getSlowOperations()}. Operations under the threshold cost nothing beyond their trace.
+ */
+public class AzureSlowOperationRecorder
+{
+  private static final Logger slowLog =
+      LoggerFactory.getLogger("org.sonatype.nexus.blobstore.azure.internal.AzureSlowOperations");
+
+  private final String blobStoreName;
+
+  private final long thresholdNanos;
+
+  private final String[] ring;
+
+  private int next;
+
+  private long recorded;
+
+  public AzureSlowOperationRecorder(final String blobStoreName, final long threshold, final TimeUnit unit,
+                                    final int capacity)
+  {
+    checkArgument(capacity > 0, "Capacity must be > 0");
+    this.blobStoreName = blobStoreName;
+    this.thresholdNanos = unit.toNanos(threshold);
+    this.ring = new String[capacity];
+  }
+
+  /**
+   * Starts tracing an operation on the calling thread.
+   */
+  public AzureOperationTrace begin(final String operation, final Object subject) {
+    return AzureOperationTrace.begin(operation, subject);
+  }
+
+  /**
+   * Ends the operation and records it when it was slow.
+   */
+  public void end(final AzureOperationTrace trace) {
+    long totalNanos = trace.end();
+    if (totalNanos >= thresholdNanos) {
+      String operation = format(trace, totalNanos);
+      record(operation);
+      slowLog.warn(operation);
+    }
+  }
+
+  /**
+   * Returns the most recent slow operations, oldest first.
+   */
+  public synchronized List<String> getSlowOperations() {
+    List<String> operations = new ArrayList<>(ring.length);
+    int size = (int) Math.min(recorded, ring.length);
+    for (int i = 0; i < size; i++) {
+      operations.add(ring[(next - size + i + ring.length) % ring.length]);
+    }
+    return operations;
+  }
+
+  private synchronized void record(final String operation) {
+    ring[next] = operation;
+    next = (next + 1) % ring.length;
+    recorded++;
+  }
+
+  private String format(final AzureOperationTrace trace, final long totalNanos) {
+    StringBuilder line = new StringBuilder(256)
+        .append("blobStore=").append(blobStoreName)
+        .append(" operation=").append(trace.getOperation())
+        .append(" subject=").append(trace.getSubject())
+        .append(" timestamp=").append(System.currentTimeMillis())
+        .append(" totalMs=").append(NANOSECONDS.toMillis(totalNanos));
+    for (Step step : Step.values()) {
+      long nanos = trace.getStepNanos(step);
+      if (nanos > 0) {
+        line.append(' ').append(step.name().toLowerCase(Locale.ENGLISH))
+            .append("Ms=").append(NANOSECONDS.toMillis(nanos));
+      }
+    }
+    return line
+        .append(" bytes=").append(trace.getBytes())
+        .append(" blocks=").append(trace.getBlocks())
+        .append(" retries=").append(trace.getRetries())
+        .toString();
+  }
+}
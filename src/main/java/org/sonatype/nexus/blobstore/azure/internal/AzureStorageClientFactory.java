@@ -12,19 +12,55 @@
  */
 package org.sonatype.nexus.blobstore.azure.internal;
 
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Named;
 
 import org.sonatype.goodies.common.ComponentSupport;
 import org.sonatype.nexus.blobstore.api.BlobStoreConfiguration;
+import org.sonatype.nexus.blobstore.azure.internal.AzureIoExecutor.Mode;
+import org.sonatype.nexus.common.property.SystemPropertiesHelper;
 
-import com.microsoft.azure.storage.CloudStorageAccount;
+import com.azure.core.http.HttpClient;
+import com.azure.core.http.netty.NettyAsyncHttpClientBuilder;
+import com.azure.storage.blob.BlobServiceAsyncClient;
+import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.azure.storage.common.StorageSharedKeyCredential;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.microsoft.azure.storage.StorageCredentialsAccountAndKey;
+import com.microsoft.azure.storage.blob.CloudBlobClient;
+import reactor.netty.resources.ConnectionProvider;
 
-import static com.microsoft.azure.storage.CloudStorageAccount.parse;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 import static org.sonatype.nexus.blobstore.azure.internal.AzureBlobStore.ACCOUNT_KEY_KEY;
 import static org.sonatype.nexus.blobstore.azure.internal.AzureBlobStore.ACCOUNT_NAME_KEY;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureBlobStore.ASYNC_CLIENT_TYPE;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureBlobStore.CLIENT_TYPE;
 import static org.sonatype.nexus.blobstore.azure.internal.AzureBlobStore.CONFIG_KEY;
 import static org.sonatype.nexus.blobstore.azure.internal.AzureBlobStore.CONTAINER_NAME_KEY;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureBlobStore.EXECUTION_MODE_KEY;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureBlobStore.HEDGE_BUDGET_PERCENT_KEY;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureBlobStore.HEDGE_PERCENTILE_KEY;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureBlobStore.HEDGE_READS_KEY;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureBlobStore.LOCATION_MODE_KEY;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureBlobStore.IO_THREADS_KEY;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureBlobStore.MAX_CONCURRENT_REQUESTS_KEY;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureBlobStore.MAX_QUEUED_REQUESTS_KEY;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureBlobStore.MAX_QUEUE_WAIT_MILLIS_KEY;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureBlobStore.NEAREST_LOCATION_MODE;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureBlobStore.PREVIOUS_SHARD_COUNT_KEY;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureBlobStore.PRIMARY_ENDPOINT_KEY;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureBlobStore.PRIMARY_LOCATION_MODE;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureBlobStore.SECONDARY_ENDPOINT_KEY;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureBlobStore.SHARD_KEY_PREFIX;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureBlobStore.SYNC_CLIENT_TYPE;
 
 /**
  * Creates azure client with settings from configuration
@@ -35,18 +71,235 @@ public class AzureStorageClientFactory
 {
   private final int chunkSize;
 
-  private static final String STORAGE_CONNECTION_STRING = "DefaultEndpointsProtocol=https;AccountName=%s;AccountKey=%s";
+  private final int parallelism;
+
+  private final int maxConnections;
+
+  private final MetricRegistry metricRegistry;
+
+  private static final String DEFAULT_EXECUTION_MODE =
+      SystemPropertiesHelper.getString("nexus.azure.io.executionMode", Mode.CALLER.name());
+
+  private static final int DEFAULT_IO_THREADS = SystemPropertiesHelper.getInteger("nexus.azure.io.threads", 64);
+
+  private static final int DEFAULT_MAX_CONCURRENT_REQUESTS =
+      SystemPropertiesHelper.getInteger("nexus.azure.limiter.maxConcurrentRequests", 256);
+
+  private static final int DEFAULT_MAX_QUEUED_REQUESTS =
+      SystemPropertiesHelper.getInteger("nexus.azure.limiter.maxQueuedRequests", 1000);
+
+  private static final int DEFAULT_MAX_QUEUE_WAIT_MILLIS =
+      SystemPropertiesHelper.getInteger("nexus.azure.limiter.maxQueueWaitMillis", 10000);
+
+  private static final boolean DEFAULT_HEDGE_READS = SystemPropertiesHelper.getBoolean("nexus.azure.hedgeReads", false);
+
+  private static final double DEFAULT_HEDGE_PERCENTILE = 0.95;
+
+  private static final double DEFAULT_HEDGE_BUDGET_PERCENT = 5.0;
+
+  private static final int HEDGE_THREADS = SystemPropertiesHelper.getInteger("nexus.azure.hedge.threads", 64);
+
+  private static final String DEFAULT_LOCATION_MODE =
+      SystemPropertiesHelper.getString("nexus.azure.locationMode", PRIMARY_LOCATION_MODE);
+
+  private static final String BLOB_ENDPOINT = "https://%s.blob.core.windows.net";
+
+  private static final String SECONDARY_BLOB_ENDPOINT = "https://%s-secondary.blob.core.windows.net";
 
   @Inject
-  public AzureStorageClientFactory(@Named("${nexus.azure.blocksize:-5242880}") final int chunkSize) {
+  public AzureStorageClientFactory(@Named("${nexus.azure.blocksize:-5242880}") final int chunkSize,
+                                   @Named("${nexus.azure.async.parallelism:-4}") final int parallelism,
+                                   @Named("${nexus.azure.async.maxConnections:-200}") final int maxConnections,
+                                   final MetricRegistry metricRegistry)
+  {
     this.chunkSize = chunkSize;
+    checkArgument(parallelism > 0, "Parallelism must be > 0");
+    this.parallelism = parallelism;
+    checkArgument(maxConnections > 0, "Max connections must be > 0");
+    this.maxConnections = maxConnections;
+    this.metricRegistry = checkNotNull(metricRegistry);
   }
 
   public AzureClient create(final BlobStoreConfiguration blobStoreConfiguration) throws Exception {
+    return create(blobStoreConfiguration, new AzureTransactionAccounting());
+  }
+
+  public AzureClient create(final BlobStoreConfiguration blobStoreConfiguration,
+                            final AzureTransactionAccounting transactionAccounting) throws Exception
+  {
     String accountName = blobStoreConfiguration.attributes(CONFIG_KEY).get(ACCOUNT_NAME_KEY, String.class);
     String accountKey = blobStoreConfiguration.attributes(CONFIG_KEY).get(ACCOUNT_KEY_KEY, String.class);
     String containerName = blobStoreConfiguration.attributes(CONFIG_KEY).get(CONTAINER_NAME_KEY, String.class);
-    CloudStorageAccount account = parse(String.format(STORAGE_CONNECTION_STRING, accountName, accountKey));
-    return new SyncAzureClient(account.createCloudBlobClient(), chunkSize, containerName);
+
+    // the client metrics are only registered once the client is built, so they cannot leak should that fail
+    Meter retries = new Meter();
+    AzureRequestPolicy requestPolicy = AzureRequestPolicy.fromConfiguration(blobStoreConfiguration, retries);
+
+    List<AzureClient> shards = new ArrayList<>();
+    shards.add(createShard(blobStoreConfiguration, blobStoreConfiguration.getName(), accountName, accountKey,
+        containerName,
+        AzureBlobStoreConfigurationHelper.getString(blobStoreConfiguration, PRIMARY_ENDPOINT_KEY),
+        AzureBlobStoreConfigurationHelper.getString(blobStoreConfiguration, SECONDARY_ENDPOINT_KEY),
+        transactionAccounting, requestPolicy));
+    for (int i = 1; ; i++) {
+      String shardContainerName = AzureBlobStoreConfigurationHelper.getString(blobStoreConfiguration,
+          shardKey(i, CONTAINER_NAME_KEY));
+      if (shardContainerName == null) {
+        break;
+      }
+      shards.add(createShard(blobStoreConfiguration, blobStoreConfiguration.getName() + "-shard" + i,
+          AzureBlobStoreConfigurationHelper.getString(blobStoreConfiguration, shardKey(i, ACCOUNT_NAME_KEY),
+              accountName),
+          AzureBlobStoreConfigurationHelper.getString(blobStoreConfiguration, shardKey(i, ACCOUNT_KEY_KEY),
+              accountKey),
+          shardContainerName,
+          AzureBlobStoreConfigurationHelper.getString(blobStoreConfiguration, shardKey(i, PRIMARY_ENDPOINT_KEY)),
+          AzureBlobStoreConfigurationHelper.getString(blobStoreConfiguration, shardKey(i, SECONDARY_ENDPOINT_KEY)),
+          transactionAccounting, requestPolicy));
+    }
+
+    AzureClient client = shards.get(0);
+    if (shards.size() > 1) {
+      client = new ShardedAzureClient(shards,
+          AzureBlobStoreConfigurationHelper.getInt(blobStoreConfiguration, PREVIOUS_SHARD_COUNT_KEY, 0));
+    }
+    if (AzureBlobStoreConfigurationHelper.getBoolean(blobStoreConfiguration, HEDGE_READS_KEY, DEFAULT_HEDGE_READS)) {
+      client = new HedgingAzureClient(client, blobStoreConfiguration.getName(),
+          AzureBlobStoreConfigurationHelper.getDouble(blobStoreConfiguration, HEDGE_PERCENTILE_KEY,
+              DEFAULT_HEDGE_PERCENTILE),
+          AzureBlobStoreConfigurationHelper.getDouble(blobStoreConfiguration, HEDGE_BUDGET_PERCENT_KEY,
+              DEFAULT_HEDGE_BUDGET_PERCENT),
+          HEDGE_THREADS, transactionAccounting, metricRegistry);
+    }
+    return new InstrumentedAzureClient(client,
+        new AzureClientMetrics(metricRegistry, blobStoreConfiguration.getName(), retries));
+  }
+
+  /**
+   * Creates the client of one container. Each endpoint is limited on its own, as accounts are throttled separately.
+   * The first shard is named after the blob store, so its metrics keep their names when shards are added.
+   *
+   * In the {@code nearest} location mode reads may also go to the secondary endpoint of the account, with a client
+   * and limiter of its own. Endpoints which are not configured are derived from the account name.
+   */
+  private AzureClient createShard(final BlobStoreConfiguration blobStoreConfiguration,
+                                  final String shardName,
+                                  final String accountName,
+                                  final String accountKey,
+                                  final String containerName,
+                                  @Nullable final String primaryEndpoint,
+                                  @Nullable final String secondaryEndpoint,
+                                  final AzureTransactionAccounting transactionAccounting,
+                                  final AzureRequestPolicy requestPolicy) throws Exception
+  {
+    AzureClient client = createClient(blobStoreConfiguration, shardName, accountName, accountKey, containerName,
+        primaryEndpoint != null ? primaryEndpoint : String.format(BLOB_ENDPOINT, accountName),
+        transactionAccounting, requestPolicy);
+    String locationMode = AzureBlobStoreConfigurationHelper.getString(blobStoreConfiguration, LOCATION_MODE_KEY,
+        DEFAULT_LOCATION_MODE);
+    if (NEAREST_LOCATION_MODE.equals(locationMode)) {
+      AzureClient secondary = createClient(blobStoreConfiguration, shardName + "-secondary", accountName, accountKey,
+          containerName,
+          secondaryEndpoint != null ? secondaryEndpoint : String.format(SECONDARY_BLOB_ENDPOINT, accountName),
+          transactionAccounting, requestPolicy);
+      client = new GeoRoutingAzureClient(client, secondary, shardName, metricRegistry);
+    }
+    else if (!PRIMARY_LOCATION_MODE.equals(locationMode)) {
+      throw new IllegalArgumentException("Unknown " + LOCATION_MODE_KEY + ": " + locationMode);
+    }
+    return client;
+  }
+
+  /**
+   * Creates the concurrency limited client of one endpoint.
+   */
+  private AzureClient createClient(final BlobStoreConfiguration blobStoreConfiguration,
+                                   final String clientName,
+                                   final String accountName,
+                                   final String accountKey,
+                                   final String containerName,
+                                   final String endpoint,
+                                   final AzureTransactionAccounting transactionAccounting,
+                                   final AzureRequestPolicy requestPolicy) throws Exception
+  {
+    String clientType = AzureBlobStoreConfigurationHelper.getString(blobStoreConfiguration, CLIENT_TYPE,
+        SYNC_CLIENT_TYPE);
+    AzureClient client;
+    if (SYNC_CLIENT_TYPE.equals(clientType)) {
+      CloudBlobClient serviceClient = new CloudBlobClient(new URI(endpoint),
+          new StorageCredentialsAccountAndKey(accountName, accountKey));
+      client = new SyncAzureClient(serviceClient, chunkSize, containerName, transactionAccounting,
+          createIoExecutor(blobStoreConfiguration, clientName), requestPolicy);
+    }
+    else if (ASYNC_CLIENT_TYPE.equals(clientType)) {
+      StorageSharedKeyCredential credential = new StorageSharedKeyCredential(accountName, accountKey);
+      ConnectionProvider connections = ConnectionProvider.fixed("azure-" + clientName, maxConnections);
+      client = new AsyncAzureClient(createServiceClient(connections, endpoint, credential, requestPolicy),
+          credential, chunkSize, parallelism, containerName, transactionAccounting, connections);
+    }
+    else {
+      throw new IllegalArgumentException("Unknown " + CLIENT_TYPE + ": " + clientType);
+    }
+    return new ConcurrencyLimitedAzureClient(client, createLimiter(blobStoreConfiguration, clientName));
+  }
+
+  /**
+   * Returns the key of a setting of an additional shard, e.g. {@code shard.1.containerName}.
+   */
+  static String shardKey(final int index, final String key) {
+    return SHARD_KEY_PREFIX + index + "." + key;
+  }
+
+  /**
+   * Creates the concurrency limiter from the {@code maxConcurrentRequests}, {@code maxQueuedRequests} and
+   * {@code maxQueueWaitMillis} of the blob store.
+   */
+  private AdaptiveConcurrencyLimiter createLimiter(final BlobStoreConfiguration blobStoreConfiguration,
+                                                   final String shardName)
+  {
+    return new AdaptiveConcurrencyLimiter(shardName,
+        AzureBlobStoreConfigurationHelper.getInt(blobStoreConfiguration, MAX_CONCURRENT_REQUESTS_KEY,
+            DEFAULT_MAX_CONCURRENT_REQUESTS),
+        AzureBlobStoreConfigurationHelper.getInt(blobStoreConfiguration, MAX_QUEUED_REQUESTS_KEY,
+            DEFAULT_MAX_QUEUED_REQUESTS),
+        AzureBlobStoreConfigurationHelper.getLong(blobStoreConfiguration, MAX_QUEUE_WAIT_MILLIS_KEY,
+            DEFAULT_MAX_QUEUE_WAIT_MILLIS),
+        TimeUnit.MILLISECONDS, metricRegistry);
+  }
+
+  /**
+   * Creates the executor for the blocking SDK calls from the {@code executionMode} and {@code ioThreads} of the
+   * blob store, falling back to {@code nexus.azure.io.executionMode} and {@code nexus.azure.io.threads}.
+   */
+  private AzureIoExecutor createIoExecutor(final BlobStoreConfiguration blobStoreConfiguration,
+                                           final String shardName)
+  {
+    Mode mode = Mode.parse(AzureBlobStoreConfigurationHelper.getString(blobStoreConfiguration, EXECUTION_MODE_KEY,
+        DEFAULT_EXECUTION_MODE));
+    int threads = AzureBlobStoreConfigurationHelper.getInt(blobStoreConfiguration, IO_THREADS_KEY,
+        DEFAULT_IO_THREADS);
+    return new AzureIoExecutor(shardName, mode, threads, metricRegistry);
+  }
+
+  /**
+   * Creates a v12 service client on its own pool of at most {@code maxConnections} connections, which the
+   * {@link AsyncAzureClient} disposes when closed. The v12 client applies a single try timeout to all requests, the
+   * content server timeout of the request policy.
+   */
+  private BlobServiceAsyncClient createServiceClient(final ConnectionProvider connections,
+                                                     final String endpoint,
+                                                     final StorageSharedKeyCredential credential,
+                                                     final AzureRequestPolicy requestPolicy)
+  {
+    HttpClient httpClient = new NettyAsyncHttpClientBuilder()
+        .connectionProvider(connections)
+        .build();
+    return new BlobServiceClientBuilder()
+        .endpoint(endpoint)
+        .credential(credential)
+        .httpClient(httpClient)
+        .retryOptions(requestPolicy.toRequestRetryOptions())
+        .addPolicy(requestPolicy.retryCountingPolicy())
+        .buildAsyncClient();
   }
 }
@@ -0,0 +1,174 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import javax.annotation.Nullable;
+
+import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.blobstore.api.BlobId;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Bounded local staging area for temporary blobs.
+ *
+ * Nexus writes most content as a temporary blob, which is copied to its permanent id once the upload has been
+ * validated and then deleted. Spooling the temporary blob locally saves the upload of a blob which lives for one
+ * request, the copy and both deletes; the content is uploaded once, to its permanent path.
+ *
+ * The files of all spooled blobs together never exceed {@code maxBytes}. A blob which does not fit is handed back
+ * to be stored in Azure as usual. The spool is emptied whenever the blob store starts or stops, as temporary blobs
+ * do not outlive the request which created them.
+ */
+public class AzureTemporaryBlobSpool
+    extends ComponentSupport
+{
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final Path directory;
+
+  private final long maxBytes;
+
+  private final AtomicLong usedBytes = new AtomicLong();
+
+  public AzureTemporaryBlobSpool(final Path directory, final long maxBytes) {
+    this.directory = checkNotNull(directory);
+    checkArgument(maxBytes > 0, "Spool size must be > 0");
+    this.maxBytes = maxBytes;
+  }
+
+  public long getUsedBytes() {
+    return usedBytes.get();
+  }
+
+  /**
+   * Writes the content of the blob to the spool.
+   *
+   * @return null when the content was spooled, otherwise the content still to be stored elsewhere, which replays
+   * what was written before the spool ran out of room
+   */
+  @Nullable
+  public InputStream spool(final BlobId blobId, final InputStream data) throws IOException {
+    Path path = path(blobId);
+    long written = 0;
+    try (OutputStream out = Files.newOutputStream(path)) {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int read;
+      while ((read = data.read(buffer)) != -1) {
+        if (!reserve(read)) {
+          out.close();
+          log.debug("Spool full, storing blob {} in Azure", blobId);
+          return new SequenceInputStream(Collections.enumeration(Arrays.asList(
+              replay(path, written),
+              new ByteArrayInputStream(Arrays.copyOf(buffer, read)),
+              data)));
+        }
+        written += read;
+        out.write(buffer, 0, read);
+      }
+      return null;
+    }
+    catch (IOException | RuntimeException e) {
+      delete(path, written);
+      throw e;
+    }
+  }
+
+  /**
+   * Opens the content of a spooled blob.
+   */
+  public InputStream open(final BlobId blobId) throws IOException {
+    return Files.newInputStream(path(blobId));
+  }
+
+  /**
+   * Returns the file holding the content of a spooled blob.
+   */
+  public Path path(final BlobId blobId) {
+    return directory.resolve(blobId.asUniqueString());
+  }
+
+  /**
+   * Drops a spooled blob of the given size.
+   */
+  public void remove(final BlobId blobId, final long size) {
+    delete(path(blobId), size);
+  }
+
+  /**
+   * Creates the spool directory, deleting whatever an earlier run left behind.
+   */
+  public void clear() throws IOException {
+    Files.createDirectories(directory);
+    try (Stream<Path> files = Files.list(directory)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        Files.deleteIfExists(file);
+      }
+    }
+    usedBytes.set(0);
+  }
+
+  private boolean reserve(final long bytes) {
+    long used;
+    do {
+      used = usedBytes.get();
+      if (used + bytes > maxBytes) {
+        return false;
+      }
+    }
+    while (!usedBytes.compareAndSet(used, used + bytes));
+    return true;
+  }
+
+  private void delete(final Path path, final long size) {
+    try {
+      Files.deleteIfExists(path);
+    }
+    catch (IOException e) {
+      log.warn("Unable to delete spooled blob {}", path, e);
+    }
+    usedBytes.addAndGet(-size);
+  }
+
+  /**
+   * Reads back a partially spooled file, deleting it and releasing its room once read.
+   */
+  private InputStream replay(final Path path, final long size) throws IOException {
+    return new FilterInputStream(Files.newInputStream(path))
+    {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        }
+        finally {
+          delete(path, size);
+        }
+      }
+    };
+  }
+}
@@ -0,0 +1,238 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Counts the billable Azure transactions and the bytes transferred by one blob store, in total and per repository.
+ *
+ * The repository is taken from the calling thread, see {@link #attributeTo(String)}; transactions made outside of
+ * such a scope are only counted in the total.
+ */
+public class AzureTransactionAccounting
+{
+  /**
+   * The classes Azure bills blob storage transactions by.
+   */
+  public enum TransactionClass
+  {
+    /**
+     * Put Blob, Put Block, Put Block List, Copy Blob, Set Metadata.
+     */
+    WRITE,
+
+    /**
+     * List Blobs, Create Container.
+     */
+    LIST,
+
+    /**
+     * Get Blob, Get Blob Properties.
+     */
+    READ,
+
+    /**
+     * Everything else, e.g. Delete Blob and Get Container Properties.
+     */
+    OTHER
+  }
+
+  private final Usage total = new Usage();
+
+  private final ConcurrentMap<String, Usage> repositories = new ConcurrentHashMap<>();
+
+  private final ThreadLocal<String> repository = new ThreadLocal<>();
+
+  /**
+   * Attributes the transactions of the calling thread to the repository until the returned scope is closed.
+   */
+  public RepositoryScope attributeTo(@Nullable final String repositoryName) {
+    String previous = repository.get();
+    repository.set(repositoryName);
+    return () -> {
+      if (previous == null) {
+        repository.remove();
+      }
+      else {
+        repository.set(previous);
+      }
+    };
+  }
+
+  /**
+   * Wraps the call to attribute its transactions to the repository of the calling thread, on whichever thread it
+   * runs.
+   */
+  public <T> Callable<T> inCurrentScope(final Callable<T> call) {
+    String repositoryName = repository.get();
+    return () -> {
+      try (RepositoryScope scope = attributeTo(repositoryName)) {
+        return call.call();
+      }
+    };
+  }
+
+  public void recordTransaction(final TransactionClass transactionClass) {
+    recordTransactions(transactionClass, 1);
+  }
+
+  public void recordTransactions(final TransactionClass transactionClass, final long count) {
+    total.transactions(transactionClass).add(count);
+    Usage usage = currentUsage();
+    if (usage != null) {
+      usage.transactions(transactionClass).add(count);
+    }
+  }
+
+  public void recordBytesIn(final long bytes) {
+    total.bytesIn.add(bytes);
+    Usage usage = currentUsage();
+    if (usage != null) {
+      usage.bytesIn.add(bytes);
+    }
+  }
+
+  public void recordBytesOut(final long bytes) {
+    total.bytesOut.add(bytes);
+    Usage usage = currentUsage();
+    if (usage != null) {
+      usage.bytesOut.add(bytes);
+    }
+  }
+
+  /**
+   * Wraps a download which fetches its content in ranged reads of {@code readSize} bytes, counting egress and one
+   * read transaction per range. The repository is captured when the download is opened.
+   */
+  public InputStream meterDownload(final InputStream in, final long readSize) {
+    checkArgument(readSize > 0, "Read size must be > 0");
+    return new MeteredDownload(in, readSize, currentUsage());
+  }
+
+  public Usage getTotal() {
+    return total;
+  }
+
+  public Map<String, Usage> getRepositories() {
+    return Collections.unmodifiableMap(repositories);
+  }
+
+  @Nullable
+  private Usage currentUsage() {
+    String repositoryName = repository.get();
+    return repositoryName == null ? null : repositories.computeIfAbsent(repositoryName, name -> new Usage());
+  }
+
+  /**
+   * Scope of {@link #attributeTo(String)}, restoring the previous repository when closed.
+   */
+  public interface RepositoryScope
+      extends AutoCloseable
+  {
+    @Override
+    void close();
+  }
+
+  /**
+   * Transactions and bytes accumulated for a blob store or repository.
+   */
+  public static class Usage
+  {
+    private final LongAdder[] transactions = new LongAdder[TransactionClass.values().length];
+
+    private final LongAdder bytesIn = new LongAdder();
+
+    private final LongAdder bytesOut = new LongAdder();
+
+    Usage() {
+      for (int i = 0; i < transactions.length; i++) {
+        transactions[i] = new LongAdder();
+      }
+    }
+
+    private LongAdder transactions(final TransactionClass transactionClass) {
+      return transactions[transactionClass.ordinal()];
+    }
+
+    public long getTransactions(final TransactionClass transactionClass) {
+      return transactions(transactionClass).sum();
+    }
+
+    public long getBytesIn() {
+      return bytesIn.sum();
+    }
+
+    public long getBytesOut() {
+      return bytesOut.sum();
+    }
+  }
+
+  private class MeteredDownload
+      extends FilterInputStream
+  {
+    private final long readSize;
+
+    @Nullable
+    private final Usage usage;
+
+    private long position;
+
+    MeteredDownload(final InputStream in, final long readSize, @Nullable final Usage usage) {
+      super(in);
+      this.readSize = readSize;
+      this.usage = usage;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        advance(1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        advance(n);
+      }
+      return n;
+    }
+
+    private void advance(final int n) {
+      long ranges = (position + n + readSize - 1) / readSize - (position + readSize - 1) / readSize;
+      position += n;
+      total.bytesOut.add(n);
+      total.transactions(TransactionClass.READ).add(ranges);
+      if (usage != null) {
+        usage.bytesOut.add(n);
+        usage.transactions(TransactionClass.READ).add(ranges);
+      }
+    }
+  }
+}
@@ -0,0 +1,378 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import javax.annotation.Nullable;
+
+import org.sonatype.nexus.blobstore.StreamMetrics;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * {@link AzureClient} decorator admitting operations through an {@link AdaptiveConcurrencyLimiter}.
+ *
+ * Uploads, deletes and copies hold their slot until they complete. Downloads and listings only hold it while they
+ * are opened, since their content is fetched later at the pace of the caller. Existence checks are the small requests
+ * whose latency is sampled to detect congestion.
+ */
+public class ConcurrencyLimitedAzureClient
+    implements AzureClient
+{
+  private final AzureClient delegate;
+
+  private final AdaptiveConcurrencyLimiter limiter;
+
+  public ConcurrencyLimitedAzureClient(final AzureClient delegate, final AdaptiveConcurrencyLimiter limiter) {
+    this.delegate = checkNotNull(delegate);
+    this.limiter = checkNotNull(limiter);
+  }
+
+  @VisibleForTesting
+  AzureClient getDelegate() {
+    return delegate;
+  }
+
+  @VisibleForTesting
+  AdaptiveConcurrencyLimiter getLimiter() {
+    return limiter;
+  }
+
+  @Override
+  public void create(final String path, final InputStream data) {
+    long start = limiter.acquire();
+    RuntimeException failure = null;
+    try {
+      delegate.create(path, data);
+    }
+    catch (RuntimeException e) {
+      failure = e;
+      throw e;
+    }
+    finally {
+      limiter.release(start, false, failure);
+    }
+  }
+
+  @Override
+  public StreamMetrics createMeasured(final String path, final InputStream data) {
+    long start = limiter.acquire();
+    RuntimeException failure = null;
+    try {
+      return delegate.createMeasured(path, data);
+    }
+    catch (RuntimeException e) {
+      failure = e;
+      throw e;
+    }
+    finally {
+      limiter.release(start, false, failure);
+    }
+  }
+
+  @Override
+  public void create(final String path, final Path file, final long size) throws IOException {
+    long start = limiter.acquire();
+    Exception failure = null;
+    try {
+      delegate.create(path, file, size);
+    }
+    catch (IOException | RuntimeException e) {
+      failure = e;
+      throw e;
+    }
+    finally {
+      limiter.release(start, false, failure);
+    }
+  }
+
+  @Override
+  public InputStream get(final String path) throws IOException {
+    long start = limiter.acquire();
+    Exception failure = null;
+    try {
+      return delegate.get(path);
+    }
+    catch (IOException | RuntimeException e) {
+      failure = e;
+      throw e;
+    }
+    finally {
+      limiter.release(start, false, failure);
+    }
+  }
+
+  @Override
+  public InputStream get(final String path, final long offset, final long length) throws IOException {
+    long start = limiter.acquire();
+    Exception failure = null;
+    try {
+      return delegate.get(path, offset, length);
+    }
+    catch (IOException | RuntimeException e) {
+      failure = e;
+      throw e;
+    }
+    finally {
+      limiter.release(start, false, failure);
+    }
+  }
+
+  @Override
+  public long append(final String path, final byte[] data, final int length) {
+    long start = limiter.acquire();
+    RuntimeException failure = null;
+    try {
+      return delegate.append(path, data, length);
+    }
+    catch (RuntimeException e) {
+      failure = e;
+      throw e;
+    }
+    finally {
+      limiter.release(start, false, failure);
+    }
+  }
+
+  @Override
+  public Versioned getVersioned(final String path) throws IOException {
+    long start = limiter.acquire();
+    Exception failure = null;
+    try {
+      return delegate.getVersioned(path);
+    }
+    catch (IOException | RuntimeException e) {
+      failure = e;
+      throw e;
+    }
+    finally {
+      limiter.release(start, true, failure);
+    }
+  }
+
+  @Override
+  public String createIfMatch(final String path, final byte[] data, @Nullable final String eTag) {
+    long start = limiter.acquire();
+    RuntimeException failure = null;
+    try {
+      return delegate.createIfMatch(path, data, eTag);
+    }
+    catch (RuntimeException e) {
+      failure = e;
+      throw e;
+    }
+    finally {
+      limiter.release(start, true, failure);
+    }
+  }
+
+  @Override
+  public boolean exists(final String path) {
+    long start = limiter.acquire();
+    RuntimeException failure = null;
+    try {
+      return delegate.exists(path);
+    }
+    catch (RuntimeException e) {
+      failure = e;
+      throw e;
+    }
+    finally {
+      limiter.release(start, true, failure);
+    }
+  }
+
+  @Override
+  public String touch(final String path) {
+    long start = limiter.acquire();
+    RuntimeException failure = null;
+    try {
+      return delegate.touch(path);
+    }
+    catch (RuntimeException e) {
+      failure = e;
+      throw e;
+    }
+    finally {
+      limiter.release(start, true, failure);
+    }
+  }
+
+  @Override
+  public boolean deleteIfMatch(final String path, final String eTag) {
+    long start = limiter.acquire();
+    RuntimeException failure = null;
+    try {
+      return delegate.deleteIfMatch(path, eTag);
+    }
+    catch (RuntimeException e) {
+      failure = e;
+      throw e;
+    }
+    finally {
+      limiter.release(start, false, failure);
+    }
+  }
+
+  @Override
+  public void delete(final String path) {
+    long start = limiter.acquire();
+    RuntimeException failure = null;
+    try {
+      delegate.delete(path);
+    }
+    catch (RuntimeException e) {
+      failure = e;
+      throw e;
+    }
+    finally {
+      limiter.release(start, false, failure);
+    }
+  }
+
+  @Override
+  public void copy(final String sourcePath, final String destination) {
+    long start = limiter.acquire();
+    RuntimeException failure = null;
+    try {
+      delegate.copy(sourcePath, destination);
+    }
+    catch (RuntimeException e) {
+      failure = e;
+      throw e;
+    }
+    finally {
+      limiter.release(start, false, failure);
+    }
+  }
+
+  @Override
+  public void copy(final String sourcePath, final String destination, final long size) {
+    long start = limiter.acquire();
+    RuntimeException failure = null;
+    try {
+      delegate.copy(sourcePath, destination, size);
+    }
+    catch (RuntimeException e) {
+      failure = e;
+      throw e;
+    }
+    finally {
+      limiter.release(start, false, failure);
+    }
+  }
+
+  @Override
+  public Stream<String> listFiles(final String contentPrefix) {
+    long start = limiter.acquire();
+    RuntimeException failure = null;
+    try {
+      return delegate.listFiles(contentPrefix);
+    }
+    catch (RuntimeException e) {
+      failure = e;
+      throw e;
+    }
+    finally {
+      limiter.release(start, false, failure);
+    }
+  }
+
+  @Override
+  public Stream<String> listFiles(final String contentPrefix, final Predicate<String> blobSuffixFilter) {
+    long start = limiter.acquire();
+    RuntimeException failure = null;
+    try {
+      return delegate.listFiles(contentPrefix, blobSuffixFilter);
+    }
+    catch (RuntimeException e) {
+      failure = e;
+      throw e;
+    }
+    finally {
+      limiter.release(start, false, failure);
+    }
+  }
+
+  @Override
+  public Stream<Entry<String, Long>> listFileSizes(final String contentPrefix) {
+    long start = limiter.acquire();
+    RuntimeException failure = null;
+    try {
+      return delegate.listFileSizes(contentPrefix);
+    }
+    catch (RuntimeException e) {
+      failure = e;
+      throw e;
+    }
+    finally {
+      limiter.release(start, false, failure);
+    }
+  }
+
+  @Override
+  public Stream<String> listChildren(final String prefix) {
+    long start = limiter.acquire();
+    RuntimeException failure = null;
+    try {
+      return delegate.listChildren(prefix);
+    }
+    catch (RuntimeException e) {
+      failure = e;
+      throw e;
+    }
+    finally {
+      limiter.release(start, false, failure);
+    }
+  }
+
+  @Override
+  public void createContainer() {
+    delegate.createContainer();
+  }
+
+  @Override
+  public void deleteContainer() {
+    delegate.deleteContainer();
+  }
+
+  @Override
+  public boolean containerExists() {
+    return delegate.containerExists();
+  }
+
+  @Override
+  public void close() {
+    limiter.removeMetrics();
+    delegate.close();
+  }
+
+  @Override
+  public String getContainerName() {
+    return delegate.getContainerName();
+  }
+
+  @Override
+  public <T extends AzureClient> Optional<T> unwrap(final Class<T> type) {
+    return type.isInstance(this) ? Optional.of(type.cast(this)) : delegate.unwrap(type);
+  }
+}
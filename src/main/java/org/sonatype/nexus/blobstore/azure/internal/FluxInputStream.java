@@ -0,0 +1,143 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import reactor.core.publisher.Flux;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Exposes a {@link Flux} of buffers as a blocking {@link InputStream}.
+ *
+ * At most {@code prefetch} buffers are requested ahead of the reader, so a slow reader applies back pressure to
+ * the download instead of having it buffered in memory. Closing the stream cancels the download.
+ */
+class FluxInputStream
+    extends InputStream
+    implements Subscriber<ByteBuffer>
+{
+  private static final Object COMPLETE = new Object();
+
+  private final BlockingQueue<Object> queue;
+
+  private volatile Subscription subscription;
+
+  private ByteBuffer current;
+
+  private boolean done;
+
+  FluxInputStream(final Flux<ByteBuffer> source, final int prefetch) {
+    checkArgument(prefetch > 0, "Prefetch must be > 0");
+    // room for the requested buffers plus the terminal signal
+    this.queue = new ArrayBlockingQueue<>(prefetch + 1);
+    source.subscribe(this);
+    subscription.request(prefetch);
+  }
+
+  @Override
+  public void onSubscribe(final Subscription subscription) {
+    this.subscription = subscription;
+  }
+
+  @Override
+  public void onNext(final ByteBuffer buffer) {
+    queue.offer(buffer);
+  }
+
+  @Override
+  public void onError(final Throwable error) {
+    queue.offer(error);
+  }
+
+  @Override
+  public void onComplete() {
+    queue.offer(COMPLETE);
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!nextBuffer()) {
+      return -1;
+    }
+    return current.get() & 0xFF;
+  }
+
+  @Override
+  public int read(final byte[] b, final int off, final int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!nextBuffer()) {
+      return -1;
+    }
+    int n = Math.min(len, current.remaining());
+    current.get(b, off, n);
+    return n;
+  }
+
+  @Override
+  public int available() {
+    return current == null ? 0 : current.remaining();
+  }
+
+  @Override
+  public void close() {
+    if (!done) {
+      done = true;
+      subscription.cancel();
+      queue.clear();
+    }
+  }
+
+  /**
+   * Makes {@link #current} a buffer with remaining content, waiting for the next one if needed.
+   *
+   * @return {@code false} at the end of the content
+   */
+  private boolean nextBuffer() throws IOException {
+    while (current == null || !current.hasRemaining()) {
+      if (done) {
+        return false;
+      }
+      Object next;
+      try {
+        next = queue.take();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        close();
+        throw new InterruptedIOException();
+      }
+      if (next == COMPLETE) {
+        done = true;
+        return false;
+      }
+      if (next instanceof Throwable) {
+        done = true;
+        throw new IOException((Throwable) next);
+      }
+      current = (ByteBuffer) next;
+      subscription.request(1);
+    }
+    return true;
+  }
+}
@@ -0,0 +1,367 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import javax.annotation.Nullable;
+
+import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.blobstore.StreamMetrics;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * {@link AzureClient} decorator reading from the secondary endpoint of a read-access geo-redundant storage account
+ * when that is faster than the primary.
+ *
+ * Reads, the versioned reads of attributes included, go to the endpoint with the lower moving average latency; every
+ * {@value #PROBE_INTERVAL}th read goes to the other one so that both averages stay current. A read which fails on
+ * the secondary, typically with a 404 because the blob has not been replicated yet, is repeated on the primary.
+ * Paths this node wrote or deleted recently are always read from the primary, as the secondary may still serve their
+ * previous state. So are direct path blobs, which any node may overwrite in place, where a replica would be served
+ * stale with no 404 to fall back on. Everything else, including {@link #exists(String)}, goes to the primary.
+ *
+ * Reads and fallbacks are published as
+ * {@code org.sonatype.nexus.blobstore.azure.internal.AzureClient.<name>.location.*}.
+ */
+public class GeoRoutingAzureClient
+    extends ComponentSupport
+    implements AzureClient
+{
+  @VisibleForTesting
+  static final int PROBE_INTERVAL = 32;
+
+  /**
+   * How long a path written by this node is read from the primary, an upper bound of the replication lag.
+   */
+  private static final long RECENT_WRITE_MINUTES = 15;
+
+  private static final int RECENT_WRITE_CAPACITY = 10_000;
+
+  /**
+   * Prefix of the paths overwritten in place, whose content and attributes change under the same name.
+   */
+  private static final String MUTABLE_PREFIX = AzureBlobStore.DIRECT_PATH_PREFIX + "/";
+
+  /**
+   * Weight of the latest sample in the moving averages.
+   */
+  private static final double ALPHA = 0.1;
+
+  private final AzureClient primary;
+
+  private final AzureClient secondary;
+
+  private final Endpoint primaryEndpoint = new Endpoint();
+
+  private final Endpoint secondaryEndpoint = new Endpoint();
+
+  private final Cache<String, Boolean> recentWrites = CacheBuilder.newBuilder()
+      .maximumSize(RECENT_WRITE_CAPACITY)
+      .expireAfterWrite(RECENT_WRITE_MINUTES, TimeUnit.MINUTES)
+      .build();
+
+  private final AtomicLong reads = new AtomicLong();
+
+  private final Meter fallbacks = new Meter();
+
+  private final MetricRegistry registry;
+
+  private final String metricsPrefix;
+
+  public GeoRoutingAzureClient(final AzureClient primary,
+                               final AzureClient secondary,
+                               final String name,
+                               final MetricRegistry registry)
+  {
+    this.primary = checkNotNull(primary);
+    this.secondary = checkNotNull(secondary);
+
+    this.registry = checkNotNull(registry);
+    this.metricsPrefix = name(AzureClient.class, name, "location");
+    register(registry, name(metricsPrefix, "primary", "reads"), primaryEndpoint.reads);
+    register(registry, name(metricsPrefix, "primary", "latencyMillis"), primaryEndpoint.latencyGauge());
+    register(registry, name(metricsPrefix, "secondary", "reads"), secondaryEndpoint.reads);
+    register(registry, name(metricsPrefix, "secondary", "latencyMillis"), secondaryEndpoint.latencyGauge());
+    register(registry, name(metricsPrefix, "fallbacks"), fallbacks);
+  }
+
+  private static void register(final MetricRegistry registry, final String name, final Metric metric) {
+    registry.remove(name);
+    registry.register(name, metric);
+  }
+
+  @Override
+  public InputStream get(final String path) throws IOException {
+    if (!preferSecondary(path)) {
+      return read(primary, primaryEndpoint, path);
+    }
+    try {
+      return read(secondary, secondaryEndpoint, path);
+    }
+    catch (IOException | RuntimeException e) {
+      log.debug("Reading {} from the secondary failed with status {}, reading from the primary", path,
+          AzureErrors.statusCode(e));
+      fallbacks.mark();
+      return read(primary, primaryEndpoint, path);
+    }
+  }
+
+  @Override
+  public InputStream get(final String path, final long offset, final long length) throws IOException {
+    if (!preferSecondary(path)) {
+      return primary.get(path, offset, length);
+    }
+    try {
+      return secondary.get(path, offset, length);
+    }
+    catch (IOException | RuntimeException e) {
+      // the range may not have been replicated yet
+      log.debug("Reading {} from the secondary failed with status {}, reading from the primary", path,
+          AzureErrors.statusCode(e));
+      fallbacks.mark();
+      return primary.get(path, offset, length);
+    }
+  }
+
+  @VisibleForTesting
+  boolean preferSecondary(final String path) {
+    if (recentWrites.getIfPresent(path) != null || path.startsWith(MUTABLE_PREFIX)) {
+      return false;
+    }
+    boolean secondaryFaster = secondaryEndpoint.compareTo(primaryEndpoint) < 0;
+    boolean probe = reads.incrementAndGet() % PROBE_INTERVAL == 0;
+    return secondaryFaster != probe;
+  }
+
+  /**
+   * Opens the stream, recording the time until the response arrived; a failure counts with the time it took.
+   */
+  private static InputStream read(final AzureClient client, final Endpoint endpoint, final String path)
+      throws IOException
+  {
+    long start = System.nanoTime();
+    try {
+      return client.get(path);
+    }
+    finally {
+      endpoint.record(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public void create(final String path, final InputStream data) {
+    recentWrites.put(path, Boolean.TRUE);
+    primary.create(path, data);
+  }
+
+  @Override
+  public StreamMetrics createMeasured(final String path, final InputStream data) {
+    recentWrites.put(path, Boolean.TRUE);
+    return primary.createMeasured(path, data);
+  }
+
+  @Override
+  public void create(final String path, final Path file, final long size) throws IOException {
+    recentWrites.put(path, Boolean.TRUE);
+    primary.create(path, file, size);
+  }
+
+  /**
+   * Versioned reads are routed like other reads, falling back to the primary for blobs not replicated yet. A version
+   * read from a secondary which lags behind fails the conditional write which follows, and that write marks the path
+   * as recently written, so it is read again from the primary.
+   */
+  @Override
+  public Versioned getVersioned(final String path) throws IOException {
+    if (!preferSecondary(path)) {
+      return readVersioned(primary, primaryEndpoint, path);
+    }
+    Versioned versioned;
+    try {
+      versioned = readVersioned(secondary, secondaryEndpoint, path);
+    }
+    catch (IOException | RuntimeException e) {
+      log.debug("Reading {} from the secondary failed with status {}, reading from the primary", path,
+          AzureErrors.statusCode(e));
+      fallbacks.mark();
+      return readVersioned(primary, primaryEndpoint, path);
+    }
+    if (versioned == null) {
+      log.debug("{} not found on the secondary, reading from the primary", path);
+      fallbacks.mark();
+      return readVersioned(primary, primaryEndpoint, path);
+    }
+    return versioned;
+  }
+
+  @Nullable
+  private static Versioned readVersioned(final AzureClient client, final Endpoint endpoint, final String path)
+      throws IOException
+  {
+    long start = System.nanoTime();
+    try {
+      return client.getVersioned(path);
+    }
+    finally {
+      endpoint.record(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public String createIfMatch(final String path, final byte[] data, @Nullable final String eTag) {
+    recentWrites.put(path, Boolean.TRUE);
+    return primary.createIfMatch(path, data, eTag);
+  }
+
+  @Override
+  public long append(final String path, final byte[] data, final int length) {
+    recentWrites.put(path, Boolean.TRUE);
+    return primary.append(path, data, length);
+  }
+
+  @Override
+  public boolean exists(final String path) {
+    return primary.exists(path);
+  }
+
+  @Override
+  public String touch(final String path) {
+    recentWrites.put(path, Boolean.TRUE);
+    return primary.touch(path);
+  }
+
+  @Override
+  public void delete(final String path) {
+    recentWrites.put(path, Boolean.TRUE);
+    primary.delete(path);
+  }
+
+  @Override
+  public boolean deleteIfMatch(final String path, final String eTag) {
+    recentWrites.put(path, Boolean.TRUE);
+    return primary.deleteIfMatch(path, eTag);
+  }
+
+  @Override
+  public void copy(final String sourcePath, final String destination) {
+    recentWrites.put(destination, Boolean.TRUE);
+    primary.copy(sourcePath, destination);
+  }
+
+  @Override
+  public void copy(final String sourcePath, final String destination, final long size) {
+    recentWrites.put(destination, Boolean.TRUE);
+    primary.copy(sourcePath, destination, size);
+  }
+
+  @Override
+  public Stream<String> listFiles(final String contentPrefix) {
+    return primary.listFiles(contentPrefix);
+  }
+
+  @Override
+  public Stream<String> listFiles(final String contentPrefix, final Predicate<String> blobSuffixFilter) {
+    return primary.listFiles(contentPrefix, blobSuffixFilter);
+  }
+
+  @Override
+  public Stream<Entry<String, Long>> listFileSizes(final String contentPrefix) {
+    return primary.listFileSizes(contentPrefix);
+  }
+
+  @Override
+  public Stream<String> listChildren(final String prefix) {
+    return primary.listChildren(prefix);
+  }
+
+  @Override
+  public void createContainer() {
+    primary.createContainer();
+  }
+
+  @Override
+  public void deleteContainer() {
+    primary.deleteContainer();
+  }
+
+  @Override
+  public boolean containerExists() {
+    return primary.containerExists();
+  }
+
+  @Override
+  public void close() {
+    registry.removeMatching((metricName, metric) -> metricName.startsWith(metricsPrefix + "."));
+    try {
+      secondary.close();
+    }
+    finally {
+      primary.close();
+    }
+  }
+
+  @Override
+  public String getContainerName() {
+    return primary.getContainerName();
+  }
+
+  @Override
+  public <T extends AzureClient> Optional<T> unwrap(final Class<T> type) {
+    return type.isInstance(this) ? Optional.of(type.cast(this)) : primary.unwrap(type);
+  }
+
+  /**
+   * Exponentially weighted moving average of the read latency of one endpoint; an endpoint without samples sorts
+   * first so that it gets measured.
+   */
+  private static class Endpoint
+      implements Comparable<Endpoint>
+  {
+    private final Meter reads = new Meter();
+
+    private volatile double averageNanos = -1;
+
+    private synchronized void record(final long nanos) {
+      reads.mark();
+      averageNanos = averageNanos < 0 ? nanos : averageNanos + ALPHA * (nanos - averageNanos);
+    }
+
+    private Gauge<Long> latencyGauge() {
+      return () -> averageNanos < 0 ? -1L : TimeUnit.NANOSECONDS.toMillis((long) averageNanos);
+    }
+
+    @Override
+    public int compareTo(final Endpoint other) {
+      return Double.compare(averageNanos, other.averageNanos);
+    }
+  }
+}
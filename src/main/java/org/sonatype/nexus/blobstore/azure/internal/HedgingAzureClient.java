@@ -0,0 +1,422 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import javax.annotation.Nullable;
+
+import org.sonatype.nexus.blobstore.StreamMetrics;
+import org.sonatype.nexus.blobstore.azure.internal.AzureOperationTrace.TraceScope;
+import org.sonatype.nexus.thread.NexusThreadFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SlidingWindowReservoir;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.ByteStreams;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureBlobStore.BLOB_ATTRIBUTE_SUFFIX;
+
+/**
+ * {@link AzureClient} decorator hedging reads of {@code .properties} files.
+ *
+ * The read is issued on a pool thread and, when it has not completed within the configured percentile of recent
+ * read latencies, an identical second read is issued. The content of whichever completes first is returned and the
+ * other is cancelled. Reads are small, so the winner is buffered in memory. Both reads are billed to the repository of
+ * the caller, while only the one which wins is added to the trace of its operation.
+ *
+ * Hedges draw on a budget which every read tops up by {@code budgetPercent / 100}, so they never add more than that
+ * share of extra transactions. Hedges sent and won are published as
+ * {@code org.sonatype.nexus.blobstore.azure.internal.AzureClient.<blobStoreName>.hedge.*}.
+ */
+public class HedgingAzureClient
+    implements AzureClient
+{
+  private static final int RESERVOIR_SIZE = 1028;
+
+  /**
+   * Reads between recalculations of the hedge delay.
+   */
+  private static final int DELAY_UPDATE_INTERVAL = 64;
+
+  private static final long MIN_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+  /**
+   * Hedges which may be saved up for a burst of slow reads.
+   */
+  private static final double MAX_BUDGET = 10.0;
+
+  private final AzureClient delegate;
+
+  private final double percentile;
+
+  private final double budgetPerRead;
+
+  private final ExecutorService executor;
+
+  private final AzureTransactionAccounting accounting;
+
+  private final MetricRegistry registry;
+
+  private final String metricsPrefix;
+
+  private final Histogram latencies = new Histogram(new SlidingWindowReservoir(RESERVOIR_SIZE));
+
+  private final Meter hedges = new Meter();
+
+  private final Meter hedgeWins = new Meter();
+
+  private volatile long delayNanos;
+
+  private double budget;
+
+  private long reads;
+
+  public HedgingAzureClient(final AzureClient delegate,
+                            final String blobStoreName,
+                            final double percentile,
+                            final double budgetPercent,
+                            final int maxThreads,
+                            final AzureTransactionAccounting accounting,
+                            final MetricRegistry registry)
+  {
+    this.delegate = checkNotNull(delegate);
+    checkArgument(percentile > 0 && percentile < 1, "Percentile must be between 0 and 1");
+    this.percentile = percentile;
+    checkArgument(budgetPercent >= 0, "Budget must be >= 0");
+    this.budgetPerRead = budgetPercent / 100;
+    this.delayNanos = Long.MAX_VALUE;
+    this.executor = new ThreadPoolExecutor(0, maxThreads, 60L, TimeUnit.SECONDS, new SynchronousQueue<>(),
+        new NexusThreadFactory("azure-hedge", blobStoreName));
+    this.accounting = checkNotNull(accounting);
+
+    this.registry = checkNotNull(registry);
+    this.metricsPrefix = name(AzureClient.class, blobStoreName, "hedge");
+    register(registry, name(metricsPrefix, "sent"), hedges);
+    register(registry, name(metricsPrefix, "won"), hedgeWins);
+    register(registry, name(metricsPrefix, "delayMillis"),
+        (Gauge<Long>) () -> delayNanos == Long.MAX_VALUE ? -1L : TimeUnit.NANOSECONDS.toMillis(delayNanos));
+  }
+
+  private static void register(final MetricRegistry registry, final String name, final Metric metric) {
+    registry.remove(name);
+    registry.register(name, metric);
+  }
+
+  @VisibleForTesting
+  AzureClient getDelegate() {
+    return delegate;
+  }
+
+  @Override
+  public void create(final String path, final InputStream data) {
+    delegate.create(path, data);
+  }
+
+  @Override
+  public StreamMetrics createMeasured(final String path, final InputStream data) {
+    return delegate.createMeasured(path, data);
+  }
+
+  @Override
+  public void create(final String path, final Path file, final long size) throws IOException {
+    delegate.create(path, file, size);
+  }
+
+  @Override
+  public InputStream get(final String path, final long offset, final long length) throws IOException {
+    return delegate.get(path, offset, length);
+  }
+
+  @Override
+  public long append(final String path, final byte[] data, final int length) {
+    return delegate.append(path, data, length);
+  }
+
+  @Override
+  public InputStream get(final String path) throws IOException {
+    if (!path.endsWith(BLOB_ATTRIBUTE_SUFFIX)) {
+      return delegate.get(path);
+    }
+    return new ByteArrayInputStream(hedged(() -> read(path)));
+  }
+
+  @Override
+  public Versioned getVersioned(final String path) throws IOException {
+    if (!path.endsWith(BLOB_ATTRIBUTE_SUFFIX)) {
+      return delegate.getVersioned(path);
+    }
+    return hedged(() -> delegate.getVersioned(path));
+  }
+
+  /**
+   * Performs the read, hedged by an identical second one when it is slow, and returns the result of the first which
+   * completes.
+   */
+  private <T> T hedged(final Callable<T> read) throws IOException {
+    CompletionService<T> reads = new ExecutorCompletionService<>(executor);
+    Callable<T> attributed = accounting.inCurrentScope(read);
+    long start = System.nanoTime();
+    HedgedRead<T> primaryRead = new HedgedRead<>(attributed);
+    HedgedRead<T> hedgeRead = null;
+    Future<T> primary;
+    try {
+      primary = reads.submit(primaryRead);
+    }
+    catch (RejectedExecutionException e) {
+      // all hedging threads are busy, read directly
+      return call(read);
+    }
+    Future<T> hedge = null;
+    try {
+      Future<T> first = reads.poll(delayNanos, TimeUnit.NANOSECONDS);
+      if (first == null && tryAcquireHedge()) {
+        try {
+          hedgeRead = new HedgedRead<>(attributed);
+          hedge = reads.submit(hedgeRead);
+          hedges.mark();
+        }
+        catch (RejectedExecutionException e) {
+          // keep waiting for the primary read
+        }
+      }
+      if (first == null) {
+        first = reads.take();
+      }
+      T result;
+      try {
+        result = first.get();
+      }
+      catch (ExecutionException e) {
+        if (hedge == null) {
+          throw e;
+        }
+        // the other read may still succeed
+        first = reads.take();
+        result = first.get();
+      }
+      if (first == hedge) {
+        hedgeWins.mark();
+        AzureOperationTrace.current().addAll(hedgeRead.trace);
+      }
+      else {
+        AzureOperationTrace.current().addAll(primaryRead.trace);
+      }
+      // a primary read which lost to the hedge is cancelled now, having taken at least this long; leaving it out
+      // would bias the delay towards fast reads
+      recordLatency(System.nanoTime() - start);
+      return result;
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
+    finally {
+      primary.cancel(true);
+      if (hedge != null) {
+        hedge.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * One of the reads of {@link #hedged(Callable)}, traced on its own as it runs on a pool thread and may still be
+   * running when the caller has taken the result of the other.
+   */
+  private static class HedgedRead<T>
+      implements Callable<T>
+  {
+    private final Callable<T> read;
+
+    private final AzureOperationTrace trace = AzureOperationTrace.detached();
+
+    HedgedRead(final Callable<T> read) {
+      this.read = read;
+    }
+
+    @Override
+    public T call() throws Exception {
+      try (TraceScope scope = trace.attach()) {
+        return read.call();
+      }
+    }
+  }
+
+  private byte[] read(final String path) throws IOException {
+    try (InputStream in = delegate.get(path)) {
+      return ByteStreams.toByteArray(in);
+    }
+  }
+
+  private static <T> T call(final Callable<T> read) throws IOException {
+    try {
+      return read.call();
+    }
+    catch (IOException | RuntimeException e) {
+      throw e;
+    }
+    catch (Exception e) {
+      throw new IOException(e);
+    }
+  }
+
+  private synchronized boolean tryAcquireHedge() {
+    if (budget >= 1) {
+      budget -= 1;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Records the latency of a primary read, topping up the hedge budget and periodically recalculating the delay.
+   */
+  private void recordLatency(final long nanos) {
+    latencies.update(nanos);
+    boolean update;
+    synchronized (this) {
+      budget = Math.min(MAX_BUDGET, budget + budgetPerRead);
+      update = ++reads % DELAY_UPDATE_INTERVAL == 0;
+    }
+    if (update) {
+      delayNanos = Math.max(MIN_DELAY_NANOS, (long) latencies.getSnapshot().getValue(percentile));
+    }
+  }
+
+  @VisibleForTesting
+  long getDelayNanos() {
+    return delayNanos;
+  }
+
+  @Override
+  public String createIfMatch(final String path, final byte[] data, @Nullable final String eTag) {
+    return delegate.createIfMatch(path, data, eTag);
+  }
+
+  @Override
+  public boolean exists(final String path) {
+    return delegate.exists(path);
+  }
+
+  @Override
+  public String touch(final String path) {
+    return delegate.touch(path);
+  }
+
+  @Override
+  public void delete(final String path) {
+    delegate.delete(path);
+  }
+
+  @Override
+  public boolean deleteIfMatch(final String path, final String eTag) {
+    return delegate.deleteIfMatch(path, eTag);
+  }
+
+  @Override
+  public void copy(final String sourcePath, final String destination) {
+    delegate.copy(sourcePath, destination);
+  }
+
+  @Override
+  public void copy(final String sourcePath, final String destination, final long size) {
+    delegate.copy(sourcePath, destination, size);
+  }
+
+  @Override
+  public Stream<String> listFiles(final String contentPrefix) {
+    return delegate.listFiles(contentPrefix);
+  }
+
+  @Override
+  public Stream<String> listFiles(final String contentPrefix, final Predicate<String> blobSuffixFilter) {
+    return delegate.listFiles(contentPrefix, blobSuffixFilter);
+  }
+
+  @Override
+  public Stream<Entry<String, Long>> listFileSizes(final String contentPrefix) {
+    return delegate.listFileSizes(contentPrefix);
+  }
+
+  @Override
+  public Stream<String> listChildren(final String prefix) {
+    return delegate.listChildren(prefix);
+  }
+
+  @Override
+  public void createContainer() {
+    delegate.createContainer();
+  }
+
+  @Override
+  public void deleteContainer() {
+    delegate.deleteContainer();
+  }
+
+  @Override
+  public boolean containerExists() {
+    return delegate.containerExists();
+  }
+
+  @Override
+  public void close() {
+    // reads still in flight are interrupted, their callers fail
+    executor.shutdownNow();
+    registry.removeMatching((metricName, metric) -> metricName.startsWith(metricsPrefix + "."));
+    delegate.close();
+  }
+
+  @Override
+  public String getContainerName() {
+    return delegate.getContainerName();
+  }
+
+  @Override
+  public <T extends AzureClient> Optional<T> unwrap(final Class<T> type) {
+    return type.isInstance(this) ? Optional.of(type.cast(this)) : delegate.unwrap(type);
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.sonatype.nexus.blobstore.api.BlobStore;
+import org.sonatype.nexus.blobstore.api.BlobStoreManager;
+import org.sonatype.nexus.scheduling.TaskSupport;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.sonatype.nexus.blobstore.azure.internal.ImportIntoAzureBlobStoreTaskDescriptor.BLOB_STORE_NAME_FIELD_ID;
+import static org.sonatype.nexus.blobstore.azure.internal.ImportIntoAzureBlobStoreTaskDescriptor.CONCURRENCY_FIELD_ID;
+import static org.sonatype.nexus.blobstore.azure.internal.ImportIntoAzureBlobStoreTaskDescriptor.DEFAULT_CONCURRENCY;
+import static org.sonatype.nexus.blobstore.azure.internal.ImportIntoAzureBlobStoreTaskDescriptor.RESTART_FIELD_ID;
+import static org.sonatype.nexus.blobstore.azure.internal.ImportIntoAzureBlobStoreTaskDescriptor.SOURCE_BLOB_STORE_NAME_FIELD_ID;
+
+/**
+ * Task that imports the blobs of another blob store into an {@link AzureBlobStore}.
+ *
+ * @see AzureBlobStoreImporter
+ */
+@Named
+public class ImportIntoAzureBlobStoreTask
+    extends TaskSupport
+{
+  private final BlobStoreManager blobStoreManager;
+
+  @Inject
+  public ImportIntoAzureBlobStoreTask(final BlobStoreManager blobStoreManager) {
+    this.blobStoreManager = checkNotNull(blobStoreManager);
+  }
+
+  @Override
+  protected Object execute() throws Exception {
+    String sourceName = getConfiguration().getString(SOURCE_BLOB_STORE_NAME_FIELD_ID);
+    String targetName = getConfiguration().getString(BLOB_STORE_NAME_FIELD_ID);
+    BlobStore source = blobStoreManager.get(sourceName);
+    BlobStore target = blobStoreManager.get(targetName);
+    if (source == null) {
+      log.warn("Blob store {} not found, nothing imported", sourceName);
+      return null;
+    }
+    if (!(target instanceof AzureBlobStore)) {
+      log.warn("Blob store {} is not an Azure blob store, nothing imported", targetName);
+      return null;
+    }
+    AzureBlobStoreImporter importer = new AzureBlobStoreImporter(source, (AzureBlobStore) target,
+        getConfiguration().getInteger(CONCURRENCY_FIELD_ID, DEFAULT_CONCURRENCY));
+    long failed = importer.run(getConfiguration().getBoolean(RESTART_FIELD_ID, false), this::isCanceled);
+    if (failed > 0) {
+      throw new IllegalStateException(failed + " blobs could not be imported from " + sourceName +
+          ", run the task again to retry them");
+    }
+    return importer.getImported();
+  }
+
+  @Override
+  public String getMessage() {
+    return "Importing blobs of " + getConfiguration().getString(SOURCE_BLOB_STORE_NAME_FIELD_ID) + " into " +
+        getConfiguration().getString(BLOB_STORE_NAME_FIELD_ID) + " blob store";
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.sonatype.nexus.formfields.CheckboxFormField;
+import org.sonatype.nexus.formfields.ComboboxFormField;
+import org.sonatype.nexus.formfields.FormField;
+import org.sonatype.nexus.formfields.NumberTextFormField;
+import org.sonatype.nexus.scheduling.TaskDescriptorSupport;
+
+/**
+ * {@link ImportIntoAzureBlobStoreTask} descriptor.
+ */
+@Named
+@Singleton
+public class ImportIntoAzureBlobStoreTaskDescriptor
+    extends TaskDescriptorSupport
+{
+  public static final String TYPE_ID = "blobstore.azure.import";
+
+  public static final String SOURCE_BLOB_STORE_NAME_FIELD_ID = "sourceBlobstoreName";
+
+  public static final String BLOB_STORE_NAME_FIELD_ID = "blobstoreName";
+
+  public static final String CONCURRENCY_FIELD_ID = "concurrency";
+
+  public static final String RESTART_FIELD_ID = "restart";
+
+  public static final int DEFAULT_CONCURRENCY = 32;
+
+  public ImportIntoAzureBlobStoreTaskDescriptor() {
+    super(TYPE_ID,
+        ImportIntoAzureBlobStoreTask.class,
+        "Admin - Import blobs into Azure blob store",
+        VISIBLE,
+        EXPOSED,
+        new ComboboxFormField<String>(
+            SOURCE_BLOB_STORE_NAME_FIELD_ID,
+            "Source blob store",
+            "Select the blob store to copy the blobs of",
+            FormField.MANDATORY
+        ).withStoreApi("coreui_Blobstore.read").withIdMapping("name"),
+        new ComboboxFormField<String>(
+            BLOB_STORE_NAME_FIELD_ID,
+            "Azure blob store",
+            "Select the Azure blob store to copy the blobs into",
+            FormField.MANDATORY
+        ).withStoreApi("coreui_Blobstore.read").withIdMapping("name"),
+        new NumberTextFormField(
+            CONCURRENCY_FIELD_ID,
+            "Concurrent blobs",
+            "Number of blobs imported at once",
+            FormField.OPTIONAL
+        ).withMinimumValue(1).withInitialValue(DEFAULT_CONCURRENCY),
+        new CheckboxFormField(
+            RESTART_FIELD_ID,
+            "Start over",
+            "Ignore the progress of an earlier run; blobs imported already are still skipped",
+            FormField.OPTIONAL
+        ).withInitialValue(false)
+    );
+  }
+}
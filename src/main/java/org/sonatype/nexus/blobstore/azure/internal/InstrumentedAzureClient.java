@@ -0,0 +1,357 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.annotation.Nullable;
+
+import org.sonatype.nexus.blobstore.StreamMetrics;
+import org.sonatype.nexus.blobstore.azure.internal.AzureClientMetrics.Operation;
+import org.sonatype.nexus.blobstore.azure.internal.AzureClientMetrics.OperationMetrics;
+
+import com.codahale.metrics.Meter;
+import com.google.common.annotations.VisibleForTesting;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * {@link AzureClient} decorator recording latency, bytes transferred and errors of every operation in
+ * {@link AzureClientMetrics}.
+ *
+ * Every operation is timed by {@link #timed}. Transfers are only wrapped to count their bytes; {@link #get(String)}
+ * measures the time to open the stream and listings measure the time until they are exhausted.
+ */
+public class InstrumentedAzureClient
+    implements AzureClient
+{
+  private final AzureClient delegate;
+
+  private final AzureClientMetrics metrics;
+
+  public InstrumentedAzureClient(final AzureClient delegate, final AzureClientMetrics metrics) {
+    this.delegate = checkNotNull(delegate);
+    this.metrics = checkNotNull(metrics);
+  }
+
+  @VisibleForTesting
+  AzureClient getDelegate() {
+    return delegate;
+  }
+
+  @Override
+  public void create(final String path, final InputStream data) {
+    timed(Operation.CREATE, operation -> {
+      delegate.create(path, new MeteredInputStream(data, operation.getBytes()));
+      return null;
+    });
+  }
+
+  @Override
+  public StreamMetrics createMeasured(final String path, final InputStream data) {
+    return timed(Operation.CREATE,
+        operation -> delegate.createMeasured(path, new MeteredInputStream(data, operation.getBytes())));
+  }
+
+  @Override
+  public void create(final String path, final Path file, final long size) throws IOException {
+    timed(Operation.CREATE, operation -> {
+      delegate.create(path, file, size);
+      operation.getBytes().mark(size);
+      return null;
+    });
+  }
+
+  @Override
+  public InputStream get(final String path) throws IOException {
+    return timed(Operation.GET, operation -> new MeteredInputStream(delegate.get(path), operation.getBytes()));
+  }
+
+  @Override
+  public InputStream get(final String path, final long offset, final long length) throws IOException {
+    return timed(Operation.GET,
+        operation -> new MeteredInputStream(delegate.get(path, offset, length), operation.getBytes()));
+  }
+
+  @Override
+  public Versioned getVersioned(final String path) throws IOException {
+    return timed(Operation.GET, operation -> {
+      Versioned versioned = delegate.getVersioned(path);
+      if (versioned != null) {
+        operation.getBytes().mark(versioned.getContent().length);
+      }
+      return versioned;
+    });
+  }
+
+  @Override
+  public String createIfMatch(final String path, final byte[] data, @Nullable final String eTag) {
+    return timed(Operation.CREATE, operation -> {
+      String stored = delegate.createIfMatch(path, data, eTag);
+      operation.getBytes().mark(data.length);
+      return stored;
+    });
+  }
+
+  @Override
+  public long append(final String path, final byte[] data, final int length) {
+    return timed(Operation.APPEND, operation -> {
+      long offset = delegate.append(path, data, length);
+      operation.getBytes().mark(length);
+      return offset;
+    });
+  }
+
+  @Override
+  public boolean exists(final String path) {
+    return timed(Operation.EXISTS, operation -> delegate.exists(path));
+  }
+
+  @Override
+  public String touch(final String path) {
+    return timed(Operation.TOUCH, operation -> delegate.touch(path));
+  }
+
+  @Override
+  public boolean deleteIfMatch(final String path, final String eTag) {
+    return timed(Operation.DELETE, operation -> delegate.deleteIfMatch(path, eTag));
+  }
+
+  @Override
+  public void delete(final String path) {
+    timed(Operation.DELETE, operation -> {
+      delegate.delete(path);
+      return null;
+    });
+  }
+
+  @Override
+  public void copy(final String sourcePath, final String destination) {
+    timed(Operation.COPY, operation -> {
+      delegate.copy(sourcePath, destination);
+      return null;
+    });
+  }
+
+  @Override
+  public void copy(final String sourcePath, final String destination, final long size) {
+    timed(Operation.COPY, operation -> {
+      delegate.copy(sourcePath, destination, size);
+      return null;
+    });
+  }
+
+  @Override
+  public Stream<String> listFiles(final String contentPrefix) {
+    return metered(Operation.LIST_FILES, () -> delegate.listFiles(contentPrefix));
+  }
+
+  @Override
+  public Stream<String> listFiles(final String contentPrefix, final Predicate<String> blobSuffixFilter) {
+    return metered(Operation.LIST_FILES, () -> delegate.listFiles(contentPrefix, blobSuffixFilter));
+  }
+
+  @Override
+  public Stream<Entry<String, Long>> listFileSizes(final String contentPrefix) {
+    return metered(Operation.LIST_FILE_SIZES, () -> delegate.listFileSizes(contentPrefix));
+  }
+
+  @Override
+  public Stream<String> listChildren(final String prefix) {
+    return metered(Operation.LIST_CHILDREN, () -> delegate.listChildren(prefix));
+  }
+
+  @Override
+  public void createContainer() {
+    timed(Operation.CREATE_CONTAINER, operation -> {
+      delegate.createContainer();
+      return null;
+    });
+  }
+
+  @Override
+  public void deleteContainer() {
+    timed(Operation.DELETE_CONTAINER, operation -> {
+      delegate.deleteContainer();
+      return null;
+    });
+  }
+
+  @Override
+  public boolean containerExists() {
+    return timed(Operation.CONTAINER_EXISTS, operation -> delegate.containerExists());
+  }
+
+  @Override
+  public void close() {
+    metrics.remove();
+    delegate.close();
+  }
+
+  @Override
+  public String getContainerName() {
+    return delegate.getContainerName();
+  }
+
+  @Override
+  public <T extends AzureClient> Optional<T> unwrap(final Class<T> type) {
+    return type.isInstance(this) ? Optional.of(type.cast(this)) : delegate.unwrap(type);
+  }
+
+  /**
+   * Performs the call, recording its latency and, should it fail, an error of the operation.
+   */
+  private <T, E extends Exception> T timed(final Operation type, final Call<T, E> call) throws E {
+    OperationMetrics operation = metrics.get(type);
+    long start = System.nanoTime();
+    try {
+      return call.call(operation);
+    }
+    catch (Exception e) {
+      operation.getErrors().mark();
+      throw e;
+    }
+    finally {
+      operation.getLatency().update(System.nanoTime() - start, NANOSECONDS);
+    }
+  }
+
+  private <T> Stream<T> metered(final Operation type, final Supplier<Stream<T>> listing) {
+    OperationMetrics operation = metrics.get(type);
+    long start = System.nanoTime();
+    try {
+      Stream<T> stream = listing.get();
+      return StreamSupport.stream(new MeteredSpliterator<>(stream.spliterator(), operation, start), false)
+          .onClose(stream::close);
+    }
+    catch (RuntimeException e) {
+      operation.getErrors().mark();
+      operation.getLatency().update(System.nanoTime() - start, NANOSECONDS);
+      throw e;
+    }
+  }
+
+  /**
+   * A call to the delegate, given the metrics of its operation to count the bytes it transfers.
+   */
+  @FunctionalInterface
+  private interface Call<T, E extends Exception>
+  {
+    T call(OperationMetrics operation) throws E;
+  }
+
+  /**
+   * Counts the bytes read through it.
+   */
+  private static class MeteredInputStream
+      extends FilterInputStream
+  {
+    private final Meter bytes;
+
+    MeteredInputStream(final InputStream in, final Meter bytes) {
+      super(in);
+      this.bytes = bytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        bytes.mark();
+      }
+      return b;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        bytes.mark(n);
+      }
+      return n;
+    }
+  }
+
+  /**
+   * Records the time until the listing is exhausted, and any error raised while fetching its pages.
+   */
+  private static class MeteredSpliterator<T>
+      implements Spliterator<T>
+  {
+    private final Spliterator<T> delegate;
+
+    private final OperationMetrics operation;
+
+    private final long start;
+
+    private boolean done;
+
+    MeteredSpliterator(final Spliterator<T> delegate, final OperationMetrics operation, final long start) {
+      this.delegate = delegate;
+      this.operation = operation;
+      this.start = start;
+    }
+
+    @Override
+    public boolean tryAdvance(final Consumer<? super T> action) {
+      try {
+        boolean advanced = delegate.tryAdvance(action);
+        if (!advanced) {
+          finish();
+        }
+        return advanced;
+      }
+      catch (RuntimeException e) {
+        if (!done) {
+          operation.getErrors().mark();
+          finish();
+        }
+        throw e;
+      }
+    }
+
+    private void finish() {
+      if (!done) {
+        done = true;
+        operation.getLatency().update(System.nanoTime() - start, NANOSECONDS);
+      }
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+      return null;
+    }
+
+    @Override
+    public long estimateSize() {
+      return delegate.estimateSize();
+    }
+
+    @Override
+    public int characteristics() {
+      return delegate.characteristics() & ~(SIZED | SUBSIZED);
+    }
+  }
+}
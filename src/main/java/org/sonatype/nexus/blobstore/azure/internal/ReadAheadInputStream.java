@@ -0,0 +1,149 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Reads the next chunk of a blocking stream on an {@link AzureIoExecutor} while the current one is consumed, so the
+ * download of a range overlaps with the caller writing out the previous one. Two chunk buffers are used in turn.
+ */
+class ReadAheadInputStream
+    extends InputStream
+{
+  private final InputStream in;
+
+  private final AzureIoExecutor executor;
+
+  private final byte[][] buffers;
+
+  private int currentBuffer;
+
+  private int position;
+
+  private int limit;
+
+  private Future<Integer> next;
+
+  private boolean eof;
+
+  ReadAheadInputStream(final InputStream in, final AzureIoExecutor executor, final int chunkSize) {
+    checkArgument(chunkSize > 0, "Chunk size must be > 0");
+    this.in = checkNotNull(in);
+    this.executor = checkNotNull(executor);
+    this.buffers = new byte[][]{new byte[chunkSize], new byte[chunkSize]};
+    this.currentBuffer = 1;
+    this.next = fill(0);
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!ensureAvailable()) {
+      return -1;
+    }
+    return buffers[currentBuffer][position++] & 0xFF;
+  }
+
+  @Override
+  public int read(final byte[] b, final int off, final int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!ensureAvailable()) {
+      return -1;
+    }
+    int n = Math.min(len, limit - position);
+    System.arraycopy(buffers[currentBuffer], position, b, off, n);
+    position += n;
+    return n;
+  }
+
+  @Override
+  public int available() {
+    return limit - position;
+  }
+
+  @Override
+  public void close() throws IOException {
+    eof = true;
+    try {
+      // never close the stream underneath a read in progress
+      awaitNext();
+    }
+    catch (IOException e) {
+      // the content is no longer needed
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  private boolean ensureAvailable() throws IOException {
+    if (position < limit) {
+      return true;
+    }
+    if (eof) {
+      return false;
+    }
+    int filled = awaitNext();
+    if (filled <= 0) {
+      eof = true;
+      return false;
+    }
+    currentBuffer = 1 - currentBuffer;
+    position = 0;
+    limit = filled;
+    next = fill(1 - currentBuffer);
+    return true;
+  }
+
+  private int awaitNext() throws IOException {
+    if (next == null) {
+      return -1;
+    }
+    try {
+      return next.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
+    catch (ExecutionException e) {
+      throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+    }
+    finally {
+      next = null;
+    }
+  }
+
+  /**
+   * Starts filling the buffer from the stream, up to its length or the end of the stream.
+   */
+  private Future<Integer> fill(final int bufferIndex) {
+    byte[] buffer = buffers[bufferIndex];
+    return executor.submit(() -> {
+      int total = 0;
+      int n;
+      while (total < buffer.length && (n = in.read(buffer, total, buffer.length - total)) != -1) {
+        total += n;
+      }
+      return total;
+    });
+  }
+}
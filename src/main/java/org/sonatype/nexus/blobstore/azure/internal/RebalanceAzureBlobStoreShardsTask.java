@@ -0,0 +1,60 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.sonatype.nexus.blobstore.api.BlobStore;
+import org.sonatype.nexus.blobstore.api.BlobStoreManager;
+import org.sonatype.nexus.scheduling.TaskSupport;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.sonatype.nexus.blobstore.azure.internal.RebalanceAzureBlobStoreShardsTaskDescriptor.BLOB_STORE_NAME_FIELD_ID;
+
+/**
+ * Task that moves the content of a sharded {@link AzureBlobStore} to the shards it belongs on after shards were added.
+ *
+ * @see AzureBlobStore#rebalanceShards(java.util.function.BooleanSupplier)
+ */
+@Named
+public class RebalanceAzureBlobStoreShardsTask
+    extends TaskSupport
+{
+  private final BlobStoreManager blobStoreManager;
+
+  @Inject
+  public RebalanceAzureBlobStoreShardsTask(final BlobStoreManager blobStoreManager) {
+    this.blobStoreManager = checkNotNull(blobStoreManager);
+  }
+
+  @Override
+  protected Object execute() throws Exception {
+    String blobStoreName = getBlobStoreField();
+    BlobStore blobStore = blobStoreManager.get(blobStoreName);
+    if (!(blobStore instanceof AzureBlobStore)) {
+      log.warn("Blob store {} is not an Azure blob store, shards not rebalanced", blobStoreName);
+      return null;
+    }
+    return ((AzureBlobStore) blobStore).rebalanceShards(this::isCanceled);
+  }
+
+  @Override
+  public String getMessage() {
+    return "Rebalancing shards of " + getBlobStoreField() + " blob store";
+  }
+
+  private String getBlobStoreField() {
+    return getConfiguration().getString(BLOB_STORE_NAME_FIELD_ID);
+  }
+}
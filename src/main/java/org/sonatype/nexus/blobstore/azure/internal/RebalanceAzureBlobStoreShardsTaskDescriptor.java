@@ -0,0 +1,48 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.sonatype.nexus.formfields.ComboboxFormField;
+import org.sonatype.nexus.formfields.FormField;
+import org.sonatype.nexus.scheduling.TaskDescriptorSupport;
+
+/**
+ * {@link RebalanceAzureBlobStoreShardsTask} descriptor.
+ */
+@Named
+@Singleton
+public class RebalanceAzureBlobStoreShardsTaskDescriptor
+    extends TaskDescriptorSupport
+{
+  public static final String TYPE_ID = "blobstore.azure.rebalance-shards";
+
+  public static final String BLOB_STORE_NAME_FIELD_ID = "blobstoreName";
+
+  public RebalanceAzureBlobStoreShardsTaskDescriptor() {
+    super(TYPE_ID,
+        RebalanceAzureBlobStoreShardsTask.class,
+        "Admin - Rebalance Azure blob store shards",
+        VISIBLE,
+        EXPOSED,
+        new ComboboxFormField<String>(
+            BLOB_STORE_NAME_FIELD_ID,
+            "Blob store",
+            "Select the sharded Azure blob store to move content to its current shards",
+            FormField.MANDATORY
+        ).withStoreApi("coreui_Blobstore.read").withIdMapping("name")
+    );
+  }
+}
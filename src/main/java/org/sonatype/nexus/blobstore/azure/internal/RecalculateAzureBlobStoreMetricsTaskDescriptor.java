@@ -0,0 +1,57 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.sonatype.nexus.formfields.CheckboxFormField;
+import org.sonatype.nexus.formfields.ComboboxFormField;
+import org.sonatype.nexus.formfields.FormField;
+import org.sonatype.nexus.scheduling.TaskDescriptorSupport;
+
+/**
+ * {@link RecalculateAzureBlobStoreMetricsTask} descriptor.
+ */
+@Named
+@Singleton
+public class RecalculateAzureBlobStoreMetricsTaskDescriptor
+    extends TaskDescriptorSupport
+{
+  public static final String TYPE_ID = "blobstore.azure.recalculate-metrics";
+
+  public static final String BLOB_STORE_NAME_FIELD_ID = "blobstoreName";
+
+  public static final String EXCLUDE_SOFT_DELETED_FIELD_ID = "excludeSoftDeleted";
+
+  public RecalculateAzureBlobStoreMetricsTaskDescriptor() {
+    super(TYPE_ID,
+        RecalculateAzureBlobStoreMetricsTask.class,
+        "Admin - Recalculate Azure blob store metrics",
+        VISIBLE,
+        EXPOSED,
+        new ComboboxFormField<String>(
+            BLOB_STORE_NAME_FIELD_ID,
+            "Blob store",
+            "Select the Azure blob store to recalculate the blob count and total size of",
+            FormField.MANDATORY
+        ).withStoreApi("coreui_Blobstore.read").withIdMapping("name"),
+        new CheckboxFormField(
+            EXCLUDE_SOFT_DELETED_FIELD_ID,
+            "Exclude soft-deleted blobs",
+            "Leave blobs which are awaiting compaction out of the totals",
+            FormField.OPTIONAL
+        ).withInitialValue(true)
+    );
+  }
+}
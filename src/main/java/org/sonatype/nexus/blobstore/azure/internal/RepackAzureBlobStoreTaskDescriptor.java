@@ -0,0 +1,59 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.sonatype.nexus.formfields.ComboboxFormField;
+import org.sonatype.nexus.formfields.FormField;
+import org.sonatype.nexus.formfields.NumberTextFormField;
+import org.sonatype.nexus.scheduling.TaskDescriptorSupport;
+
+/**
+ * {@link RepackAzureBlobStoreTask} descriptor.
+ */
+@Named
+@Singleton
+public class RepackAzureBlobStoreTaskDescriptor
+    extends TaskDescriptorSupport
+{
+  public static final String TYPE_ID = "blobstore.azure.repack";
+
+  public static final String BLOB_STORE_NAME_FIELD_ID = "blobstoreName";
+
+  public static final String MIN_RECLAIMABLE_PERCENT_FIELD_ID = "minReclaimablePercent";
+
+  public static final int DEFAULT_MIN_RECLAIMABLE_PERCENT = 50;
+
+  public RepackAzureBlobStoreTaskDescriptor() {
+    super(TYPE_ID,
+        RepackAzureBlobStoreTask.class,
+        "Admin - Repack Azure blob store",
+        VISIBLE,
+        EXPOSED,
+        new ComboboxFormField<String>(
+            BLOB_STORE_NAME_FIELD_ID,
+            "Blob store",
+            "Select the Azure blob store whose packs of small blobs to compact",
+            FormField.MANDATORY
+        ).withStoreApi("coreui_Blobstore.read").withIdMapping("name"),
+        new NumberTextFormField(
+            MIN_RECLAIMABLE_PERCENT_FIELD_ID,
+            "Minimum reclaimable percent",
+            "Only rewrite packs where at least this share of the space belongs to deleted blobs",
+            FormField.OPTIONAL
+        ).withMinimumValue(1).withMaximumValue(100).withInitialValue(DEFAULT_MIN_RECLAIMABLE_PERCENT)
+    );
+  }
+}
@@ -0,0 +1,346 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import javax.annotation.Nullable;
+
+import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.blobstore.StreamMetrics;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureBlobStore.BLOB_ATTRIBUTE_SUFFIX;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureBlobStore.BLOB_CONTENT_SUFFIX;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureBlobStore.CONTENT_PREFIX;
+
+/**
+ * {@link AzureClient} spreading the content of one blob store over several containers, possibly in different
+ * storage accounts.
+ *
+ * A blob's content and attribute files are placed on the shard selected by a hash of their path without the suffix,
+ * which is derived from the {@code BlobId}, so reads need no lookup. Everything outside of {@code content/}
+ * (metadata and metrics files) stays on the first shard. Listings fan out over all shards.
+ *
+ * While shards are being added, {@code previousShardCount} gives the placement the content may still have: a blob
+ * missing from its shard is then looked up where the previous placement put it, until {@link #rebalance} has moved
+ * it.
+ */
+public class ShardedAzureClient
+    extends ComponentSupport
+    implements AzureClient
+{
+  private static final HashFunction HASH = Hashing.murmur3_32();
+
+  private static final String SHARDED_PREFIX = CONTENT_PREFIX + "/";
+
+  private final List<AzureClient> shards;
+
+  private final int previousShardCount;
+
+  /**
+   * @param previousShardCount the number of shards before the last one was added, or 0 when content is in place
+   */
+  public ShardedAzureClient(final List<AzureClient> shards, final int previousShardCount) {
+    checkArgument(!shards.isEmpty(), "At least one shard is required");
+    checkArgument(previousShardCount >= 0 && previousShardCount <= shards.size(),
+        "Previous shard count must be between 0 and %s", shards.size());
+    this.shards = ImmutableList.copyOf(shards);
+    this.previousShardCount = previousShardCount == shards.size() ? 0 : previousShardCount;
+  }
+
+  @VisibleForTesting
+  List<AzureClient> getShards() {
+    return shards;
+  }
+
+  @VisibleForTesting
+  static int shardIndex(final String path, final int shardCount) {
+    if (shardCount == 1 || !path.startsWith(SHARDED_PREFIX)) {
+      return 0;
+    }
+    String key = path;
+    if (key.endsWith(BLOB_CONTENT_SUFFIX)) {
+      key = key.substring(0, key.length() - BLOB_CONTENT_SUFFIX.length());
+    }
+    else if (key.endsWith(BLOB_ATTRIBUTE_SUFFIX)) {
+      key = key.substring(0, key.length() - BLOB_ATTRIBUTE_SUFFIX.length());
+    }
+    return Math.floorMod(HASH.hashString(key, UTF_8).asInt(), shardCount);
+  }
+
+  private AzureClient shardFor(final String path) {
+    return shards.get(shardIndex(path, shards.size()));
+  }
+
+  /**
+   * Returns the shard the previous placement put the path on, if that differs from the current one.
+   */
+  private AzureClient previousShardFor(final String path) {
+    if (previousShardCount == 0) {
+      return null;
+    }
+    AzureClient previous = shards.get(shardIndex(path, previousShardCount));
+    return previous == shardFor(path) ? null : previous;
+  }
+
+  @Override
+  public void create(final String path, final InputStream data) {
+    shardFor(path).create(path, data);
+  }
+
+  @Override
+  public StreamMetrics createMeasured(final String path, final InputStream data) {
+    return shardFor(path).createMeasured(path, data);
+  }
+
+  @Override
+  public void create(final String path, final Path file, final long size) throws IOException {
+    shardFor(path).create(path, file, size);
+  }
+
+  @Override
+  public InputStream get(final String path) throws IOException {
+    try {
+      return shardFor(path).get(path);
+    }
+    catch (IOException | RuntimeException e) {
+      AzureClient previous = previousShardFor(path);
+      if (previous == null || !AzureErrors.isNotFound(e)) {
+        throw e;
+      }
+      return previous.get(path);
+    }
+  }
+
+  @Override
+  public InputStream get(final String path, final long offset, final long length) throws IOException {
+    try {
+      return shardFor(path).get(path, offset, length);
+    }
+    catch (IOException | RuntimeException e) {
+      AzureClient previous = previousShardFor(path);
+      if (previous == null || !AzureErrors.isNotFound(e)) {
+        throw e;
+      }
+      return previous.get(path, offset, length);
+    }
+  }
+
+  @Override
+  public long append(final String path, final byte[] data, final int length) {
+    return shardFor(path).append(path, data, length);
+  }
+
+  @Override
+  public Versioned getVersioned(final String path) throws IOException {
+    Versioned versioned = shardFor(path).getVersioned(path);
+    AzureClient previous = previousShardFor(path);
+    return versioned != null || previous == null ? versioned : previous.getVersioned(path);
+  }
+
+  /**
+   * Writes the version to the shard it was read from: a version read from the previous shard stays there until it
+   * is rebalanced, and a new blob must not exist on either.
+   */
+  @Override
+  public String createIfMatch(final String path, final byte[] data, @Nullable final String eTag) {
+    AzureClient previous = previousShardFor(path);
+    if (previous == null) {
+      return shardFor(path).createIfMatch(path, data, eTag);
+    }
+    if (eTag == null) {
+      return previous.exists(path) ? null : shardFor(path).createIfMatch(path, data, null);
+    }
+    String stored = shardFor(path).createIfMatch(path, data, eTag);
+    return stored != null ? stored : previous.createIfMatch(path, data, eTag);
+  }
+
+  @Override
+  public boolean exists(final String path) {
+    if (shardFor(path).exists(path)) {
+      return true;
+    }
+    AzureClient previous = previousShardFor(path);
+    return previous != null && previous.exists(path);
+  }
+
+  /**
+   * Touches the blob on the shard it is found on, the current one first.
+   */
+  @Override
+  public String touch(final String path) {
+    String eTag = shardFor(path).touch(path);
+    AzureClient previous = previousShardFor(path);
+    return eTag != null || previous == null ? eTag : previous.touch(path);
+  }
+
+  /**
+   * Deletes the blob on the shard it has the ETag on; the ETag of a blob on one shard never matches on the other.
+   */
+  @Override
+  public boolean deleteIfMatch(final String path, final String eTag) {
+    if (shardFor(path).deleteIfMatch(path, eTag)) {
+      return true;
+    }
+    AzureClient previous = previousShardFor(path);
+    return previous != null && previous.deleteIfMatch(path, eTag);
+  }
+
+  @Override
+  public void delete(final String path) {
+    AzureClient previous = previousShardFor(path);
+    try {
+      shardFor(path).delete(path);
+    }
+    catch (RuntimeException e) {
+      if (previous == null || !AzureErrors.isNotFound(e)) {
+        throw e;
+      }
+    }
+    if (previous != null && previous.exists(path)) {
+      previous.delete(path);
+    }
+  }
+
+  @Override
+  public void copy(final String sourcePath, final String destination) {
+    AzureClient source = sourceShardFor(sourcePath);
+    AzureClient target = shardFor(destination);
+    if (source == target) {
+      source.copy(sourcePath, destination);
+    }
+    else {
+      transfer(source, target, sourcePath, destination);
+    }
+  }
+
+  @Override
+  public void copy(final String sourcePath, final String destination, final long size) {
+    AzureClient source = sourceShardFor(sourcePath);
+    AzureClient target = shardFor(destination);
+    if (source == target) {
+      source.copy(sourcePath, destination, size);
+    }
+    else {
+      transfer(source, target, sourcePath, destination);
+    }
+  }
+
+  private AzureClient sourceShardFor(final String sourcePath) {
+    AzureClient source = shardFor(sourcePath);
+    AzureClient previous = previousShardFor(sourcePath);
+    return previous != null && !source.exists(sourcePath) ? previous : source;
+  }
+
+  private static void transfer(final AzureClient source,
+                               final AzureClient target,
+                               final String sourcePath,
+                               final String destination)
+  {
+    try (InputStream in = source.get(sourcePath)) {
+      target.create(destination, in);
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public Stream<String> listFiles(final String contentPrefix) {
+    return shards.stream().flatMap(shard -> shard.listFiles(contentPrefix));
+  }
+
+  @Override
+  public Stream<String> listFiles(final String contentPrefix, final Predicate<String> blobSuffixFilter) {
+    return shards.stream().flatMap(shard -> shard.listFiles(contentPrefix, blobSuffixFilter));
+  }
+
+  @Override
+  public Stream<Entry<String, Long>> listFileSizes(final String contentPrefix) {
+    return shards.stream().flatMap(shard -> shard.listFileSizes(contentPrefix));
+  }
+
+  @Override
+  public Stream<String> listChildren(final String prefix) {
+    return shards.stream().flatMap(shard -> shard.listChildren(prefix)).distinct();
+  }
+
+  @Override
+  public void createContainer() {
+    shards.forEach(AzureClient::createContainer);
+  }
+
+  @Override
+  public void deleteContainer() {
+    shards.forEach(AzureClient::deleteContainer);
+  }
+
+  @Override
+  public boolean containerExists() {
+    return shards.stream().allMatch(AzureClient::containerExists);
+  }
+
+  @Override
+  public void close() {
+    shards.forEach(AzureClient::close);
+  }
+
+  @Override
+  public String getContainerName() {
+    return shards.get(0).getContainerName();
+  }
+
+  /**
+   * Moves every content file which is not on the shard of the current placement there, copying before deleting so
+   * that the file remains readable throughout.
+   *
+   * @return the number of files moved
+   */
+  public long rebalance(final BooleanSupplier cancelled) {
+    long moved = 0;
+    for (int i = 0; i < shards.size(); i++) {
+      AzureClient source = shards.get(i);
+      try (Stream<String> files = source.listFiles(SHARDED_PREFIX)) {
+        for (String path : (Iterable<String>) files::iterator) {
+          if (cancelled.getAsBoolean()) {
+            return moved;
+          }
+          int target = shardIndex(path, shards.size());
+          if (target != i) {
+            log.debug("Moving {} from shard {} to shard {}", path, i, target);
+            if (!shards.get(target).exists(path)) {
+              transfer(source, shards.get(target), path, path);
+            }
+            source.delete(path);
+            moved++;
+          }
+        }
+      }
+    }
+    return moved;
+  }
+}
@@ -1,81 +1,331 @@
 package org.sonatype.nexus.blobstore.azure.internal;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.InvalidKeyException;
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map.Entry;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Predicate;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
+import javax.annotation.Nullable;
+
 import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.blobstore.azure.internal.AzureOperationTrace.Step;
 
+import com.codahale.metrics.Meter;
+import com.microsoft.azure.storage.AccessCondition;
 import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobContainerPublicAccessType;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
 import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.CloudAppendBlob;
 import com.microsoft.azure.storage.blob.CloudBlob;
 import com.microsoft.azure.storage.blob.CloudBlobClient;
 import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.CloudBlobDirectory;
 import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.azure.storage.blob.CopyState;
+import com.microsoft.azure.storage.blob.CopyStatus;
+import com.microsoft.azure.storage.blob.DeleteSnapshotsOption;
+import com.microsoft.azure.storage.blob.ListBlobItem;
+import com.microsoft.azure.storage.blob.SharedAccessBlobPermissions;
+import com.microsoft.azure.storage.blob.SharedAccessBlobPolicy;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureTransactionAccounting.TransactionClass.LIST;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureTransactionAccounting.TransactionClass.OTHER;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureTransactionAccounting.TransactionClass.READ;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureTransactionAccounting.TransactionClass.WRITE;
 
 public class SyncAzureClient
     extends ComponentSupport
     implements AzureClient
 {
-  private final CloudBlobClient serviceClient;
+  /**
+   * The container reference, built once: blob references are derived from it without re-parsing its URI.
+   */
+  private final CloudBlobContainer container;
 
   private final int chunkSize;
 
   private final String containerName;
 
+  private final AzureTransactionAccounting accounting;
+
+  private final AzureIoExecutor ioExecutor;
+
+  private final AzureRequestPolicy requestPolicy;
+
+  private final AzureBufferPool bufferPool;
+
+  /**
+   * Largest block Put Block From URL accepts.
+   */
+  private static final long COPY_BLOCK_SIZE = 100L * 1024 * 1024;
+
+  private static final long COPY_POLL_INITIAL_MILLIS = 50;
+
+  private static final long COPY_POLL_MAX_MILLIS = 2000;
+
+  private static final long COPY_SAS_VALIDITY_MINUTES = 60;
+
+  /**
+   * Number of results the service returns per page of a blob listing.
+   */
+  private static final int LIST_PAGE_SIZE = 5000;
+
+  private static final int HTTP_CONFLICT = 409;
+
+  /**
+   * Most blocks of one streamed upload held in memory at a time, read or in flight, which bounds the heap an upload
+   * takes to this many chunks whatever the parallelism of the executor.
+   */
+  private static final int MAX_BLOCKS_IN_FLIGHT = 4;
+
   public SyncAzureClient(final CloudBlobClient serviceClient, final int chunkSize, final String containerName) {
-    this.serviceClient = checkNotNull(serviceClient);
+    this(serviceClient, chunkSize, containerName, new AzureTransactionAccounting(), new AzureIoExecutor(),
+        AzureRequestPolicy.defaults(new Meter()));
+  }
+
+  /**
+   * @param ioExecutor runs the blocking SDK calls; when it offers parallelism blocks are uploaded concurrently and
+   *                   downloads read ahead by one range
+   * @param requestPolicy retries and timeouts of the requests
+   */
+  public SyncAzureClient(final CloudBlobClient serviceClient,
+                         final int chunkSize,
+                         final String containerName,
+                         final AzureTransactionAccounting accounting,
+                         final AzureIoExecutor ioExecutor,
+                         final AzureRequestPolicy requestPolicy)
+  {
     this.containerName = checkNotNull(containerName);
+    try {
+      this.container = checkNotNull(serviceClient).getContainerReference(containerName);
+    }
+    catch (URISyntaxException | StorageException e) {
+      throw new RuntimeException(e);
+    }
     checkArgument(chunkSize > 0, "Chunk size must be > 0");
     this.chunkSize = chunkSize;
+    this.bufferPool = new AzureBufferPool(chunkSize, AzureBufferPool.DEFAULT_RETAINED);
+    this.accounting = checkNotNull(accounting);
+    this.ioExecutor = checkNotNull(ioExecutor);
+    this.requestPolicy = checkNotNull(requestPolicy);
   }
 
   @Override
   public void create(final String path, final InputStream data) {
     log.debug("Creating blob {}", path);
+    CloudBlockBlob blob = getBlockBlob(path);
+    BlobRequestOptions options = requestPolicy.forPath(path);
+    // one buffer per block in flight, handed back as soon as its upload completes
+    int blocksInFlight = Math.min(MAX_BLOCKS_IN_FLIGHT, ioExecutor.getParallelism());
+    BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<>(blocksInFlight);
+    List<Future<?>> uploads = new ArrayList<>();
+    List<BlockEntry> blockList = new ArrayList<>();
+    AtomicLong uploadNanos = new AtomicLong();
+    int allocated = 0;
+    long totalBytes = 0;
     try {
-      CloudBlockBlob blob = getCloudBlobContainer().getBlockBlobReference(path);
-      List<BlockEntry> blockList = new ArrayList<>();
-      int totalRead = 0;
-      int bytesRead;
-      byte[] buffer = new byte[chunkSize];
-      while ((bytesRead = data.read(buffer, totalRead, buffer.length - totalRead)) != -1) {
-        totalRead += bytesRead;
-        if (totalRead == buffer.length) { // entire buffer was filled so upload block
-          blockList.add(uploadBlock(blob, totalRead, buffer));
-          totalRead = 0; // reset totalRead so buffer will be reused
+      while (true) {
+        byte[] buffer = buffers.poll();
+        if (buffer == null) {
+          buffer = allocated++ < blocksInFlight ? bufferPool.acquire() : buffers.take();
+        }
+        // a failed block fails the upload before any more content is read
+        checkCompleted(uploads);
+        int length = readChunk(data, buffer);
+        if (length < buffer.length && blockList.isEmpty()) {
+          // the whole content fits into one chunk, which a single Put Blob stores
+          putBlob(blob, buffer, length, options);
+          buffers.offer(buffer);
+          return;
+        }
+        if (length == 0) {
+          buffers.offer(buffer);
+          break;
         }
+        String base64BlockId = createBase64BlockId();
+        blockList.add(new BlockEntry(base64BlockId));
+        totalBytes += length;
+        uploads.add(ioExecutor.submit(uploadBlock(blob, base64BlockId, buffer, length, options, buffers, uploadNanos)));
       }
-      if (totalRead > 0) { // write the last block if it exists
-        blockList.add(uploadBlock(blob, totalRead, buffer));
+      for (Future<?> upload : uploads) {
+        AzureIoExecutor.await(upload);
       }
+      AzureOperationTrace trace = AzureOperationTrace.current();
+      trace.add(Step.BLOCK_UPLOAD, uploadNanos.get());
+      trace.addBlocks(blockList.size());
+      trace.addBytes(totalBytes);
+      accounting.recordTransactions(WRITE, blockList.size());
+      accounting.recordBytesIn(totalBytes);
+
       log.debug("Blocks committed for {} -> {}", path, blockList.size());
-      blob.commitBlockList(blockList);
+      long start = System.nanoTime();
+      ioExecutor.call(() -> {
+        blob.commitBlockList(blockList, null, options, requestPolicy.newOperationContext());
+        return null;
+      });
+      trace.add(Step.BLOCK_COMMIT, System.nanoTime() - start);
+      accounting.recordTransaction(WRITE);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
     }
-    catch (URISyntaxException | StorageException | IOException e) {
+    catch (IOException e) {
       throw new RuntimeException(e);
     }
+    finally {
+      uploads.forEach(upload -> upload.cancel(false));
+      // buffers of uploads which did not complete are left to the garbage collector
+      buffers.forEach(bufferPool::release);
+    }
   }
 
-  private BlockEntry uploadBlock(final CloudBlockBlob blob, final int length, final byte[] data)
-      throws StorageException, IOException
+  /**
+   * Rethrows the failure of a block upload which has completed, and forgets those which succeeded.
+   */
+  private static void checkCompleted(final List<Future<?>> uploads) {
+    for (Iterator<Future<?>> i = uploads.iterator(); i.hasNext(); ) {
+      Future<?> upload = i.next();
+      if (upload.isDone()) {
+        AzureIoExecutor.await(upload);
+        i.remove();
+      }
+    }
+  }
+
+  private void putBlob(final CloudBlockBlob blob,
+                       final byte[] data,
+                       final int length,
+                       final BlobRequestOptions options)
   {
-    String base64BlockId = createBase64BlockId();
-    ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(data, 0, length);
-    blob.uploadBlock(base64BlockId, byteArrayInputStream, length);
-    return new BlockEntry(base64BlockId);
+    long start = System.nanoTime();
+    ioExecutor.call(() -> {
+      blob.uploadFromByteArray(data, 0, length, null, options, requestPolicy.newOperationContext());
+      return null;
+    });
+    AzureOperationTrace trace = AzureOperationTrace.current();
+    trace.add(Step.BLOCK_UPLOAD, System.nanoTime() - start);
+    trace.addBytes(length);
+    accounting.recordTransaction(WRITE);
+    accounting.recordBytesIn(length);
+  }
+
+  /**
+   * Uploads the file in blocks of {@code chunkSize}, each read from its own memory-mapped region of the file, so
+   * blocks are staged concurrently when the executor offers parallelism and their content never passes the heap.
+   */
+  @Override
+  public void create(final String path, final Path file, final long size) throws IOException {
+    log.debug("Creating blob {} from {}", path, file);
+    CloudBlockBlob blob = getBlockBlob(path);
+    BlobRequestOptions options = requestPolicy.forPath(path);
+    List<Future<?>> uploads = new ArrayList<>();
+    List<BlockEntry> blockList = new ArrayList<>();
+    AtomicLong uploadNanos = new AtomicLong();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      for (long offset = 0; offset < size; offset += chunkSize) {
+        String base64BlockId = createBase64BlockId();
+        blockList.add(new BlockEntry(base64BlockId));
+        int length = (int) Math.min(chunkSize, size - offset);
+        MappedByteBuffer region = channel.map(MapMode.READ_ONLY, offset, length);
+        uploads.add(ioExecutor.submit(() -> {
+          long start = System.nanoTime();
+          try {
+            blob.uploadBlock(base64BlockId, new ByteBufferInputStream(region), length, null, options,
+                requestPolicy.newOperationContext());
+            return null;
+          }
+          finally {
+            uploadNanos.addAndGet(System.nanoTime() - start);
+          }
+        }));
+      }
+      for (Future<?> upload : uploads) {
+        AzureIoExecutor.await(upload);
+      }
+      AzureOperationTrace trace = AzureOperationTrace.current();
+      trace.add(Step.BLOCK_UPLOAD, uploadNanos.get());
+      trace.addBlocks(blockList.size());
+      trace.addBytes(size);
+      accounting.recordTransactions(WRITE, blockList.size());
+      accounting.recordBytesIn(size);
+
+      long start = System.nanoTime();
+      ioExecutor.call(() -> {
+        blob.commitBlockList(blockList, null, options, requestPolicy.newOperationContext());
+        return null;
+      });
+      trace.add(Step.BLOCK_COMMIT, System.nanoTime() - start);
+      accounting.recordTransaction(WRITE);
+    }
+    finally {
+      uploads.forEach(upload -> upload.cancel(false));
+    }
+  }
+
+  private Callable<Void> uploadBlock(final CloudBlockBlob blob,
+                                     final String base64BlockId,
+                                     final byte[] data,
+                                     final int length,
+                                     final BlobRequestOptions options,
+                                     final BlockingQueue<byte[]> buffers,
+                                     final AtomicLong uploadNanos)
+  {
+    return () -> {
+      long start = System.nanoTime();
+      try {
+        blob.uploadBlock(base64BlockId, new ByteArrayInputStream(data, 0, length), length, null, options,
+            requestPolicy.newOperationContext());
+        return null;
+      }
+      finally {
+        uploadNanos.addAndGet(System.nanoTime() - start);
+        buffers.offer(data);
+      }
+    };
+  }
+
+  /**
+   * Fills the buffer from the stream, short only at the end of the stream.
+   */
+  private static int readChunk(final InputStream data, final byte[] buffer) throws IOException {
+    int totalRead = 0;
+    int bytesRead;
+    while (totalRead < buffer.length && (bytesRead = data.read(buffer, totalRead, buffer.length - totalRead)) != -1) {
+      totalRead += bytesRead;
+    }
+    return totalRead;
   }
 
   private static String createBase64BlockId() {
@@ -89,57 +339,298 @@ public class SyncAzureClient
   @Override
   public InputStream get(final String path) {
     log.debug("Getting blob {}", path);
+    CloudBlockBlob blob = getBlockBlob(path);
+    // opening the stream fetches the blob properties, content is then read in ranges
+    InputStream content = ioExecutor.call(
+        () -> blob.openInputStream(null, requestPolicy.forPath(path), requestPolicy.newOperationContext()));
+    accounting.recordTransaction(READ);
+    int readSize = blob.getStreamMinimumReadSizeInBytes();
+    if (ioExecutor.getParallelism() > 1) {
+      content = new ReadAheadInputStream(content, ioExecutor, readSize);
+    }
+    return accounting.meterDownload(content, readSize);
+  }
+
+  @Override
+  public InputStream get(final String path, final long offset, final long length) {
+    log.debug("Getting {} bytes of blob {} at {}", length, path, offset);
+    CloudAppendBlob blob = getAppendBlob(path);
+    byte[] content = new byte[Math.toIntExact(length)];
+    ioExecutor.call(() -> blob.downloadRangeToByteArray(offset, length, content, 0, null, requestPolicy.forPath(path),
+        requestPolicy.newOperationContext()));
+    // one ranged read, counted as the content is consumed
+    return accounting.meterDownload(new ByteArrayInputStream(content), Math.max(1, length));
+  }
+
+  @Override
+  public Versioned getVersioned(final String path) {
+    log.debug("Getting blob {} with its ETag", path);
+    CloudBlockBlob blob = getBlockBlob(path);
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
     try {
-      CloudBlockBlob blob = getCloudBlobContainer().getBlockBlobReference(path);
-      return blob.openInputStream();
+      // the download fills in the properties of the version it read
+      ioExecutor.call(() -> {
+        blob.download(content, null, requestPolicy.forPath(path), requestPolicy.newOperationContext());
+        return null;
+      });
     }
-    catch (StorageException | URISyntaxException e) {
-      throw new RuntimeException(e);
+    catch (RuntimeException e) {
+      if (!AzureErrors.isNotFound(e)) {
+        throw e;
+      }
+      return null;
+    }
+    finally {
+      accounting.recordTransaction(READ);
+    }
+    accounting.recordBytesOut(content.size());
+    return new Versioned(content.toByteArray(), blob.getProperties().getEtag());
+  }
+
+  @Override
+  public String createIfMatch(final String path, final byte[] data, @Nullable final String eTag) {
+    log.debug("Creating blob {} if it matches {}", path, eTag);
+    CloudBlockBlob blob = getBlockBlob(path);
+    AccessCondition condition = eTag != null
+        ? AccessCondition.generateIfMatchCondition(eTag)
+        : AccessCondition.generateIfNotExistsCondition();
+    try {
+      ioExecutor.call(() -> {
+        blob.uploadFromByteArray(data, 0, data.length, condition, requestPolicy.forPath(path),
+            requestPolicy.newOperationContext());
+        return null;
+      });
+    }
+    catch (RuntimeException e) {
+      if (!AzureErrors.isConditionNotMet(e)) {
+        throw e;
+      }
+      log.debug("Blob {} changed since {}", path, eTag);
+      return null;
     }
+    finally {
+      accounting.recordTransaction(WRITE);
+    }
+    accounting.recordBytesIn(data.length);
+    return blob.getProperties().getEtag();
+  }
+
+  @Override
+  public long append(final String path, final byte[] data, final int length) {
+    log.debug("Appending {} bytes to blob {}", length, path);
+    CloudAppendBlob blob = getAppendBlob(path);
+    BlobRequestOptions options = requestPolicy.forPath(path);
+    Callable<Long> appendBlock = () -> blob.appendBlock(new ByteArrayInputStream(data, 0, length), length, null,
+        options, requestPolicy.newOperationContext());
+    long offset;
+    try {
+      offset = ioExecutor.call(appendBlock);
+    }
+    catch (RuntimeException e) {
+      if (!AzureErrors.isNotFound(e)) {
+        throw e;
+      }
+      ioExecutor.call(() -> {
+        try {
+          blob.createOrReplace(AccessCondition.generateIfNotExistsCondition(), options,
+              requestPolicy.newOperationContext());
+        }
+        catch (StorageException created) {
+          // another writer created it first
+          if (created.getHttpStatusCode() != HTTP_CONFLICT) {
+            throw created;
+          }
+        }
+        return null;
+      });
+      accounting.recordTransaction(WRITE);
+      offset = ioExecutor.call(appendBlock);
+    }
+    accounting.recordTransaction(WRITE);
+    accounting.recordBytesIn(length);
+    return offset;
   }
 
   @Override
   public boolean exists(final String path) {
+    CloudBlockBlob blob = getBlockBlob(path);
+    boolean exists = ioExecutor.call(
+        () -> blob.exists(null, requestPolicy.forMetadata(), requestPolicy.newOperationContext()));
+    accounting.recordTransaction(READ);
+    log.debug("{} exists? -> {}", path, exists);
+    return exists;
+  }
+
+  @Override
+  public String touch(final String path) {
+    log.debug("Touching blob {}", path);
+    CloudBlockBlob blob = getBlockBlob(path);
     try {
-      CloudBlockBlob blob = getCloudBlobContainer().getBlockBlobReference(path);
-      boolean exists = blob.exists();
-      log.debug("{} exists? -> {}", path, exists);
-      return exists;
+      // storing the metadata again, none, fills the new ETag into the properties of the blob
+      ioExecutor.call(() -> {
+        blob.uploadMetadata(null, requestPolicy.forMetadata(), requestPolicy.newOperationContext());
+        return null;
+      });
     }
-    catch (URISyntaxException | StorageException e) {
-      throw new RuntimeException(e);
+    catch (RuntimeException e) {
+      if (!AzureErrors.isNotFound(e)) {
+        throw e;
+      }
+      return null;
+    }
+    finally {
+      accounting.recordTransaction(WRITE);
     }
+    return blob.getProperties().getEtag();
   }
 
   @Override
-  public void delete(final String path) {
-    log.debug("Deleting blob {}", path);
+  public boolean deleteIfMatch(final String path, final String eTag) {
+    log.debug("Deleting blob {} if it matches {}", path, eTag);
+    CloudBlockBlob blob = getBlockBlob(path);
     try {
-      CloudBlockBlob blob = getCloudBlobContainer().getBlockBlobReference(path);
-      blob.delete();
+      ioExecutor.call(() -> {
+        blob.delete(DeleteSnapshotsOption.NONE, AccessCondition.generateIfMatchCondition(eTag),
+            requestPolicy.forMetadata(), requestPolicy.newOperationContext());
+        return null;
+      });
+      return true;
     }
-    catch (URISyntaxException | StorageException e) {
-      throw new RuntimeException(e);
+    catch (RuntimeException e) {
+      if (!AzureErrors.isConditionNotMet(e)) {
+        throw e;
+      }
+      log.debug("Blob {} changed since {}", path, eTag);
+      return false;
+    }
+    finally {
+      accounting.recordTransaction(OTHER);
     }
   }
 
+  @Override
+  public void delete(final String path) {
+    log.debug("Deleting blob {}", path);
+    CloudBlockBlob blob = getBlockBlob(path);
+    ioExecutor.call(() -> {
+      blob.delete(DeleteSnapshotsOption.NONE, null, requestPolicy.forMetadata(), requestPolicy.newOperationContext());
+      return null;
+    });
+    accounting.recordTransaction(OTHER);
+  }
+
+  /**
+   * Starts a server side copy and polls its state with backoff until the service completed it, as copies are not
+   * guaranteed to complete synchronously even within one storage account.
+   */
   @Override
   public void copy(final String sourcePath, final String destination) {
     log.debug("Copying blob {} => {}", sourcePath, destination);
+    CloudBlockBlob src = getBlockBlob(sourcePath);
+    CloudBlockBlob dest = getBlockBlob(destination);
+    ioExecutor.call(
+        () -> dest.startCopy(src, null, null, requestPolicy.forMetadata(), requestPolicy.newOperationContext()));
+    accounting.recordTransaction(WRITE);
+    awaitCopy(dest);
+  }
+
+  private void awaitCopy(final CloudBlockBlob dest) {
+    long backoffMillis = COPY_POLL_INITIAL_MILLIS;
+    CopyState state = dest.getCopyState();
+    while (state != null && state.getStatus() == CopyStatus.PENDING) {
+      try {
+        Thread.sleep(backoffMillis);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted while waiting for copy to " + dest.getName(), e);
+      }
+      backoffMillis = Math.min(backoffMillis * 2, COPY_POLL_MAX_MILLIS);
+      ioExecutor.call(() -> {
+        dest.downloadAttributes(null, requestPolicy.forMetadata(), requestPolicy.newOperationContext());
+        return null;
+      });
+      accounting.recordTransaction(READ);
+      state = dest.getCopyState();
+    }
+    if (state != null && state.getStatus() != CopyStatus.SUCCESS) {
+      throw new RuntimeException(
+          "Copy to " + dest.getName() + " " + state.getStatus() + ": " + state.getStatusDescription());
+    }
+  }
+
+  /**
+   * Copies with Put Block From URL, which completes synchronously: the source is staged as blocks of at most
+   * {@value #COPY_BLOCK_SIZE} bytes, concurrently when the executor offers parallelism, and then committed.
+   */
+  @Override
+  public void copy(final String sourcePath, final String destination, final long size) {
+    log.debug("Copying blob {} => {} ({} bytes)", sourcePath, destination, size);
+    CloudBlockBlob dest = getBlockBlob(destination);
+    URI source = readableUri(getBlockBlob(sourcePath));
+    BlobRequestOptions options = requestPolicy.forContent();
+    List<Future<?>> copies = new ArrayList<>();
+    List<BlockEntry> blockList = new ArrayList<>();
+    AtomicLong copyNanos = new AtomicLong();
     try {
-      CloudBlockBlob src = getCloudBlobContainer().getBlockBlobReference(sourcePath);
-      CloudBlockBlob dest = getCloudBlobContainer().getBlockBlobReference(destination);
-      dest.startCopy(src);
-      // TODO: Do we need to block until copy is complete?
+      for (long offset = 0; offset < size; offset += COPY_BLOCK_SIZE) {
+        String base64BlockId = createBase64BlockId();
+        blockList.add(new BlockEntry(base64BlockId));
+        long blockOffset = offset;
+        long length = Math.min(COPY_BLOCK_SIZE, size - offset);
+        copies.add(ioExecutor.submit(() -> {
+          long start = System.nanoTime();
+          try {
+            dest.createBlockFromURI(base64BlockId, source, blockOffset, length, null, null, options,
+                requestPolicy.newOperationContext());
+            return null;
+          }
+          finally {
+            copyNanos.addAndGet(System.nanoTime() - start);
+          }
+        }));
+      }
+      for (Future<?> copy : copies) {
+        AzureIoExecutor.await(copy);
+      }
+      AzureOperationTrace trace = AzureOperationTrace.current();
+      trace.add(Step.BLOCK_UPLOAD, copyNanos.get());
+      trace.addBlocks(blockList.size());
+      accounting.recordTransactions(WRITE, blockList.size());
+
+      long start = System.nanoTime();
+      ioExecutor.call(() -> {
+        dest.commitBlockList(blockList, null, options, requestPolicy.newOperationContext());
+        return null;
+      });
+      trace.add(Step.BLOCK_COMMIT, System.nanoTime() - start);
+      accounting.recordTransaction(WRITE);
     }
-    catch (URISyntaxException | StorageException e) {
+    finally {
+      copies.forEach(copy -> copy.cancel(false));
+    }
+  }
+
+  /**
+   * Returns the URI of the blob with a short lived read-only SAS, which Put Block From URL requires of the source
+   * even within the same storage account.
+   */
+  private static URI readableUri(final CloudBlockBlob blob) {
+    SharedAccessBlobPolicy policy = new SharedAccessBlobPolicy();
+    policy.setPermissions(EnumSet.of(SharedAccessBlobPermissions.READ));
+    policy.setSharedAccessExpiryTime(
+        new Date(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(COPY_SAS_VALIDITY_MINUTES)));
+    try {
+      return new URI(blob.getUri() + "?" + blob.generateSharedAccessSignature(policy, null));
+    }
+    catch (InvalidKeyException | StorageException | URISyntaxException e) {
       throw new RuntimeException(e);
     }
   }
 
   @Override
   public Stream<String> listFiles(final String contentPrefix) {
-    return StreamSupport.stream(getCloudBlobContainer().listBlobs(contentPrefix, true).spliterator(), false)
+    return accountedListing(listBlobs(contentPrefix, true))
         .map(o -> (CloudBlockBlob) o)
         .map(CloudBlob::getName);
   }
@@ -150,48 +641,87 @@ public class SyncAzureClient
         .filter(blobSuffixFilter);
   }
 
+  @Override
+  public Stream<Entry<String, Long>> listFileSizes(final String contentPrefix) {
+    return accountedListing(listBlobs(contentPrefix, true))
+        .map(o -> (CloudBlob) o)
+        .<Entry<String, Long>>map(
+            blob -> new SimpleImmutableEntry<>(blob.getName(), blob.getProperties().getLength()));
+  }
+
+  @Override
+  public Stream<String> listChildren(final String prefix) {
+    return accountedListing(listBlobs(prefix, false))
+        .map(o -> o instanceof CloudBlobDirectory ? ((CloudBlobDirectory) o).getPrefix() : ((CloudBlob) o).getName());
+  }
+
+  private Iterable<ListBlobItem> listBlobs(final String prefix, final boolean flat) {
+    return container.listBlobs(prefix, flat, EnumSet.noneOf(BlobListingDetails.class),
+        requestPolicy.forMetadata(), requestPolicy.newOperationContext());
+  }
+
+  /**
+   * Streams a listing, counting one list transaction for the first page and each further page of results.
+   */
+  private Stream<ListBlobItem> accountedListing(final Iterable<ListBlobItem> listing) {
+    accounting.recordTransaction(LIST);
+    AtomicLong items = new AtomicLong();
+    return StreamSupport.stream(listing.spliterator(), false)
+        .peek(item -> {
+          if (items.incrementAndGet() % LIST_PAGE_SIZE == 0) {
+            accounting.recordTransaction(LIST);
+          }
+        });
+  }
+
   @Override
   public void createContainer() {
-    CloudBlobContainer container = getCloudBlobContainer();
-    try {
-      container.createIfNotExists();
-    }
-    catch (StorageException e) {
-      throw new RuntimeException(e);
-    }
+    ioExecutor.call(() -> container.createIfNotExists(BlobContainerPublicAccessType.OFF, requestPolicy.forMetadata(),
+        requestPolicy.newOperationContext()));
+    accounting.recordTransaction(LIST);
   }
 
   @Override
   public void deleteContainer() {
-    CloudBlobContainer container = getCloudBlobContainer();
-    try {
-      container.deleteIfExists();
-    }
-    catch (StorageException e) {
-      throw new RuntimeException(e);
-    }
+    ioExecutor.call(
+        () -> container.deleteIfExists(null, requestPolicy.forMetadata(), requestPolicy.newOperationContext()));
+    accounting.recordTransaction(OTHER);
   }
 
   @Override
   public boolean containerExists() {
-    CloudBlobContainer container = getCloudBlobContainer();
+    boolean exists = ioExecutor.call(
+        () -> container.exists(null, requestPolicy.forMetadata(), requestPolicy.newOperationContext()));
+    accounting.recordTransaction(OTHER);
+    return exists;
+  }
+
+  /**
+   * Returns a reference to the blob, appended to the cached container URI.
+   */
+  private CloudBlockBlob getBlockBlob(final String path) {
     try {
-      return container.exists();
+      return container.getBlockBlobReference(path);
     }
-    catch (StorageException e) {
+    catch (URISyntaxException | StorageException e) {
       throw new RuntimeException(e);
     }
   }
 
-  private CloudBlobContainer getCloudBlobContainer() {
+  private CloudAppendBlob getAppendBlob(final String path) {
     try {
-      return serviceClient.getContainerReference(getContainerName());
+      return container.getAppendBlobReference(path);
     }
     catch (URISyntaxException | StorageException e) {
       throw new RuntimeException(e);
     }
   }
 
+  @Override
+  public void close() {
+    ioExecutor.close();
+  }
+
   @Override
   public String getContainerName() {
     return containerName;
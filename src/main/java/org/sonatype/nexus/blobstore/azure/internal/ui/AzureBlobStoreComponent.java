@@ -0,0 +1,105 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal.ui;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.sonatype.nexus.blobstore.api.BlobStore;
+import org.sonatype.nexus.blobstore.api.BlobStoreManager;
+import org.sonatype.nexus.blobstore.azure.internal.AzureBlobStore;
+import org.sonatype.nexus.blobstore.azure.internal.AzureTransactionAccounting;
+import org.sonatype.nexus.blobstore.azure.internal.AzureTransactionAccounting.Usage;
+import org.sonatype.nexus.extdirect.DirectComponentSupport;
+
+import com.codahale.metrics.annotation.ExceptionMetered;
+import com.codahale.metrics.annotation.Timed;
+import com.softwarementors.extjs.djn.config.annotations.DirectAction;
+import com.softwarementors.extjs.djn.config.annotations.DirectMethod;
+import org.apache.shiro.authz.annotation.RequiresAuthentication;
+import org.apache.shiro.authz.annotation.RequiresPermissions;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureTransactionAccounting.TransactionClass.LIST;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureTransactionAccounting.TransactionClass.OTHER;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureTransactionAccounting.TransactionClass.READ;
+import static org.sonatype.nexus.blobstore.azure.internal.AzureTransactionAccounting.TransactionClass.WRITE;
+
+/**
+ * Azure blob store {@link DirectComponentSupport}.
+ */
+@Named
+@Singleton
+@DirectAction(action = "azure_AzureBlobStore")
+public class AzureBlobStoreComponent
+    extends DirectComponentSupport
+{
+  private final BlobStoreManager blobStoreManager;
+
+  @Inject
+  public AzureBlobStoreComponent(final BlobStoreManager blobStoreManager) {
+    this.blobStoreManager = checkNotNull(blobStoreManager);
+  }
+
+  /**
+   * Returns the Azure transaction usage of the blob store, the total first followed by each repository.
+   */
+  @DirectMethod
+  @Timed
+  @ExceptionMetered
+  @RequiresAuthentication
+  @RequiresPermissions("nexus:blobstores:read")
+  public List<AzureTransactionUsageXO> readTransactionUsage(final String name) {
+    List<AzureTransactionUsageXO> usage = new ArrayList<>();
+    BlobStore blobStore = blobStoreManager.get(name);
+    if (blobStore instanceof AzureBlobStore) {
+      AzureTransactionAccounting accounting = ((AzureBlobStore) blobStore).getTransactionAccounting();
+      usage.add(asTransactionUsageXO(null, accounting.getTotal()));
+      accounting.getRepositories().forEach((repository, repositoryUsage) ->
+          usage.add(asTransactionUsageXO(repository, repositoryUsage)));
+    }
+    return usage;
+  }
+
+  /**
+   * Returns the recorded slow operations of the blob store, oldest first.
+   */
+  @DirectMethod
+  @Timed
+  @ExceptionMetered
+  @RequiresAuthentication
+  @RequiresPermissions("nexus:blobstores:read")
+  public List<String> readSlowOperations(final String name) {
+    BlobStore blobStore = blobStoreManager.get(name);
+    if (blobStore instanceof AzureBlobStore) {
+      return ((AzureBlobStore) blobStore).getSlowOperations();
+    }
+    return new ArrayList<>();
+  }
+
+  private static AzureTransactionUsageXO asTransactionUsageXO(final String repository, final Usage usage) {
+    AzureTransactionUsageXO xo = new AzureTransactionUsageXO();
+    xo.setRepository(repository);
+    xo.setWriteTransactions(usage.getTransactions(WRITE));
+    xo.setListTransactions(usage.getTransactions(LIST));
+    xo.setReadTransactions(usage.getTransactions(READ));
+    xo.setOtherTransactions(usage.getTransactions(OTHER));
+    xo.setBytesIn(usage.getBytesIn());
+    xo.setBytesOut(usage.getBytesOut());
+    return xo;
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal.ui;
+
+/**
+ * Azure transaction usage exchange object, for the blob store as a whole or a single repository.
+ */
+public class AzureTransactionUsageXO
+{
+  private String repository;
+
+  private long writeTransactions;
+
+  private long listTransactions;
+
+  private long readTransactions;
+
+  private long otherTransactions;
+
+  private long bytesIn;
+
+  private long bytesOut;
+
+  public String getRepository() {
+    return repository;
+  }
+
+  public void setRepository(final String repository) {
+    this.repository = repository;
+  }
+
+  public long getWriteTransactions() {
+    return writeTransactions;
+  }
+
+  public void setWriteTransactions(final long writeTransactions) {
+    this.writeTransactions = writeTransactions;
+  }
+
+  public long getListTransactions() {
+    return listTransactions;
+  }
+
+  public void setListTransactions(final long listTransactions) {
+    this.listTransactions = listTransactions;
+  }
+
+  public long getReadTransactions() {
+    return readTransactions;
+  }
+
+  public void setReadTransactions(final long readTransactions) {
+    this.readTransactions = readTransactions;
+  }
+
+  public long getOtherTransactions() {
+    return otherTransactions;
+  }
+
+  public void setOtherTransactions(final long otherTransactions) {
+    this.otherTransactions = otherTransactions;
+  }
+
+  public long getBytesIn() {
+    return bytesIn;
+  }
+
+  public void setBytesIn(final long bytesIn) {
+    this.bytesIn = bytesIn;
+  }
+
+  public long getBytesOut() {
+    return bytesOut;
+  }
+
+  public void setBytesOut(final long bytesOut) {
+    this.bytesOut = bytesOut;
+  }
+}
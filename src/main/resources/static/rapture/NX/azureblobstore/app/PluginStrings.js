@@ -31,7 +31,36 @@ Ext.define('NX.azureblobstore.app.PluginStrings', {
     AzureBlobstore_AccountKey_HelpText: 'Account key found under Access keys for the storage account.',
 
     AzureBlobstore_ContainerName_FieldLabel: 'Container Name',
-    AzureBlobstore_ContainerName_HelpText: 'The name of an existing container to be used for storage.'
+    AzureBlobstore_ContainerName_HelpText: 'The name of an existing container to be used for storage.',
+
+    AzureBlobstore_ClientType_FieldLabel: 'Client Type',
+    AzureBlobstore_ClientType_HelpText: 'The Azure storage client used to transfer blobs. Changes apply on restart.',
+    AzureBlobstore_ClientType_Sync: 'Blocking (azure-storage 8)',
+    AzureBlobstore_ClientType_Async: 'Non-blocking (azure-storage-blob 12)',
+
+    AzureBlobstore_ExecutionMode_FieldLabel: 'Execution Mode',
+    AzureBlobstore_ExecutionMode_HelpText: 'Where the blocking client runs its Azure calls. Changes apply on restart.',
+    AzureBlobstore_ExecutionMode_Caller: 'Request thread',
+    AzureBlobstore_ExecutionMode_Virtual: 'Virtual threads (platform threads when unavailable)',
+    AzureBlobstore_ExecutionMode_Platform: 'Bounded platform thread pool',
+    AzureBlobstore_IoThreads_FieldLabel: 'Concurrent Azure Calls',
+    AzureBlobstore_IoThreads_HelpText: 'Maximum number of Azure calls running at once outside of the request thread.',
+
+    AzureBlobstore_LocationMode_FieldLabel: 'Read Location',
+    AzureBlobstore_LocationMode_HelpText: 'Where blobs are read from. Writes always go to the primary endpoint. ' +
+        'Changes apply on restart.',
+    AzureBlobstore_LocationMode_Primary: 'Primary endpoint',
+    AzureBlobstore_LocationMode_Nearest: 'Faster of primary and read-access secondary endpoint',
+
+    AzureBlobstore_TransactionUsage_Title: 'Azure Transactions Since Startup',
+    AzureBlobstore_TransactionUsage_Repository: 'Repository',
+    AzureBlobstore_TransactionUsage_Total: 'All repositories',
+    AzureBlobstore_TransactionUsage_Write: 'Write',
+    AzureBlobstore_TransactionUsage_List: 'List',
+    AzureBlobstore_TransactionUsage_Read: 'Read',
+    AzureBlobstore_TransactionUsage_Other: 'Other',
+    AzureBlobstore_TransactionUsage_BytesIn: 'Bytes In',
+    AzureBlobstore_TransactionUsage_BytesOut: 'Bytes Out'
   }
 
 }, function(obj) {
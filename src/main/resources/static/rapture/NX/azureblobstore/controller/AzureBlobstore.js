@@ -20,5 +20,58 @@ Ext.define('NX.azureblobstore.controller.AzureBlobstore', {
 
   views: [
     'NX.azureblobstore.view.BlobstoreSettings'
-  ]
+  ],
+
+  /**
+   * @override
+   */
+  init: function() {
+    var me = this;
+
+    me.listen({
+      component: {
+        'nx-blobstore-settings-azure': {
+          afterrender: me.onSettingsRendered
+        }
+      }
+    });
+
+    me.callParent();
+  },
+
+  /**
+   * @private
+   * Shows the transaction usage of an existing blob store once its name is known.
+   */
+  onSettingsRendered: function(panel) {
+    var me = this,
+        form = panel.up('form'),
+        nameField = form && form.getForm().findField('name');
+
+    if (!nameField) {
+      return;
+    }
+    if (nameField.getValue()) {
+      me.loadTransactionUsage(panel, nameField.getValue());
+    }
+    else {
+      nameField.on('change', function(field, value) {
+        me.loadTransactionUsage(panel, value);
+      }, me, {single: true});
+    }
+  },
+
+  /**
+   * @private
+   */
+  loadTransactionUsage: function(panel, name) {
+    var usage = panel.down('#transactionUsage');
+
+    NX.direct.azure_AzureBlobStore.readTransactionUsage(name, function(response) {
+      if (Ext.isObject(response) && response.success && response.data.length && !usage.isDestroyed) {
+        usage.down('grid').getStore().loadData(response.data);
+        usage.show();
+      }
+    });
+  }
 });
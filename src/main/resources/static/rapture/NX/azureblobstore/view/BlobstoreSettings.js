@@ -45,6 +45,94 @@ Ext.define('NX.azureblobstore.view.BlobstoreSettings', {
       fieldLabel: NX.I18n.get('AzureBlobstore_ContainerName_FieldLabel'),
       helpText: NX.I18n.get('AzureBlobstore_ContainerName_HelpText'),
       allowBlank: true
+    },
+    {
+      xtype: 'combo',
+      name: 'property_clientType',
+      fieldLabel: NX.I18n.get('AzureBlobstore_ClientType_FieldLabel'),
+      helpText: NX.I18n.get('AzureBlobstore_ClientType_HelpText'),
+      editable: false,
+      store: [
+        ['sync', NX.I18n.get('AzureBlobstore_ClientType_Sync')],
+        ['async', NX.I18n.get('AzureBlobstore_ClientType_Async')]
+      ],
+      queryMode: 'local',
+      value: 'sync'
+    },
+    {
+      xtype: 'combo',
+      name: 'property_executionMode',
+      fieldLabel: NX.I18n.get('AzureBlobstore_ExecutionMode_FieldLabel'),
+      helpText: NX.I18n.get('AzureBlobstore_ExecutionMode_HelpText'),
+      editable: false,
+      store: [
+        ['caller', NX.I18n.get('AzureBlobstore_ExecutionMode_Caller')],
+        ['virtual', NX.I18n.get('AzureBlobstore_ExecutionMode_Virtual')],
+        ['platform', NX.I18n.get('AzureBlobstore_ExecutionMode_Platform')]
+      ],
+      queryMode: 'local',
+      value: 'caller'
+    },
+    {
+      xtype: 'numberfield',
+      name: 'property_ioThreads',
+      fieldLabel: NX.I18n.get('AzureBlobstore_IoThreads_FieldLabel'),
+      helpText: NX.I18n.get('AzureBlobstore_IoThreads_HelpText'),
+      minValue: 1,
+      allowDecimals: false,
+      value: 64
+    },
+    {
+      xtype: 'combo',
+      name: 'property_locationMode',
+      fieldLabel: NX.I18n.get('AzureBlobstore_LocationMode_FieldLabel'),
+      helpText: NX.I18n.get('AzureBlobstore_LocationMode_HelpText'),
+      editable: false,
+      store: [
+        ['primary', NX.I18n.get('AzureBlobstore_LocationMode_Primary')],
+        ['nearest', NX.I18n.get('AzureBlobstore_LocationMode_Nearest')]
+      ],
+      queryMode: 'local',
+      value: 'primary'
+    },
+    {
+      xtype: 'fieldset',
+      itemId: 'transactionUsage',
+      title: NX.I18n.get('AzureBlobstore_TransactionUsage_Title'),
+      hidden: true,
+      items: [
+        {
+          xtype: 'grid',
+          store: {
+            fields: ['repository', 'writeTransactions', 'listTransactions', 'readTransactions', 'otherTransactions',
+              'bytesIn', 'bytesOut']
+          },
+          columns: [
+            {
+              text: NX.I18n.get('AzureBlobstore_TransactionUsage_Repository'),
+              dataIndex: 'repository',
+              flex: 1,
+              renderer: function(value) {
+                return value ? Ext.htmlEncode(value) : NX.I18n.get('AzureBlobstore_TransactionUsage_Total');
+              }
+            },
+            {text: NX.I18n.get('AzureBlobstore_TransactionUsage_Write'), dataIndex: 'writeTransactions'},
+            {text: NX.I18n.get('AzureBlobstore_TransactionUsage_List'), dataIndex: 'listTransactions'},
+            {text: NX.I18n.get('AzureBlobstore_TransactionUsage_Read'), dataIndex: 'readTransactions'},
+            {text: NX.I18n.get('AzureBlobstore_TransactionUsage_Other'), dataIndex: 'otherTransactions'},
+            {
+              text: NX.I18n.get('AzureBlobstore_TransactionUsage_BytesIn'),
+              dataIndex: 'bytesIn',
+              renderer: Ext.util.Format.fileSize
+            },
+            {
+              text: NX.I18n.get('AzureBlobstore_TransactionUsage_BytesOut'),
+              dataIndex: 'bytesOut',
+              renderer: Ext.util.Format.fileSize
+            }
+          ]
+        }
+      ]
     }
   ],
 
@@ -0,0 +1,93 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal
+
+import com.codahale.metrics.MetricRegistry
+import com.microsoft.azure.storage.StorageException
+import spock.lang.Specification
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS
+
+/**
+ * Unit tests for {@link AdaptiveConcurrencyLimiter}.
+ */
+class AdaptiveConcurrencyLimiterTest
+    extends Specification
+{
+  def registry = new MetricRegistry()
+
+  def 'throttled responses halve the limit and successes grow it back'() {
+    given:
+      def underTest = new AdaptiveConcurrencyLimiter('default', 8, 0, 0, MILLISECONDS, registry)
+      def busy = new RuntimeException(new StorageException('ServerBusy', 'busy', 503, null, null))
+    when: 'a request is throttled'
+      underTest.release(underTest.acquire(), false, busy)
+    then: 'the limit is halved'
+      underTest.limit == 4
+      registry.meters['org.sonatype.nexus.blobstore.azure.internal.AzureClient.default.limiter.throttled'].count == 1
+    when: 'a round of requests succeeds'
+      5.times { underTest.release(underTest.acquire(), false, null) }
+    then: 'the limit grows by one'
+      underTest.limit == 5
+  }
+
+  def 'other failures do not change the limit'() {
+    given:
+      def underTest = new AdaptiveConcurrencyLimiter('default', 8, 0, 0, MILLISECONDS, registry)
+      def notFound = new RuntimeException(new StorageException('BlobNotFound', 'not found', 404, null, null))
+    when:
+      underTest.release(underTest.acquire(), false, notFound)
+    then:
+      underTest.limit == 8
+  }
+
+  def 'callers over the limit are rejected when the queue is full'() {
+    given:
+      def underTest = new AdaptiveConcurrencyLimiter('default', 1, 0, 0, MILLISECONDS, registry)
+      underTest.acquire()
+    when:
+      underTest.acquire()
+    then:
+      thrown(AdaptiveConcurrencyLimiter.LimitExceededException)
+      underTest.rejections == 1
+      registry.gauges['org.sonatype.nexus.blobstore.azure.internal.AzureClient.default.limiter.inFlight'].value == 1
+  }
+
+  def 'queued callers proceed once a slot is released'() {
+    given:
+      def underTest = new AdaptiveConcurrencyLimiter('default', 1, 1, 5000, MILLISECONDS, registry)
+      def start = underTest.acquire()
+    when:
+      def waiter = Thread.start { underTest.acquire() }
+      while (underTest.queued == 0) {
+        sleep(1)
+      }
+      underTest.release(start, false, null)
+      waiter.join(5000)
+    then:
+      !waiter.alive
+      underTest.inFlight == 1
+      underTest.rejections == 0
+  }
+
+  def 'removing the metrics unregisters the limiter gauges'() {
+    given:
+      def underTest = new AdaptiveConcurrencyLimiter('default', 8, 0, 0, MILLISECONDS, registry)
+    expect:
+      registry.names.any { it.contains('.default.limiter.') }
+    when:
+      underTest.removeMetrics()
+    then:
+      registry.names.every { !it.contains('.default.limiter.') }
+  }
+}
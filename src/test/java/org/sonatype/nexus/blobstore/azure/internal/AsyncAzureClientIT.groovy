@@ -0,0 +1,18 @@
+package org.sonatype.nexus.blobstore.azure.internal
+
+/**
+ * Runs the {@link SyncAzureClientIT} scenarios against the {@link AsyncAzureClient}.
+ */
+class AsyncAzureClientIT
+    extends SyncAzureClientIT
+{
+  @Override
+  protected String clientType() {
+    return AzureBlobStore.ASYNC_CLIENT_TYPE
+  }
+
+  @Override
+  protected Class<? extends AzureClient> clientClass() {
+    return AsyncAzureClient
+  }
+}
@@ -24,17 +24,57 @@ class AzureBlobAttributesTest
       def azureClient = Mock(AzureClient)
       def subject = new AzureBlobAttributes(azureClient, 'key')
     when: 'the object does not exist'
-      1 * azureClient.exists('key') >> false
+      1 * azureClient.getVersioned('key') >> null
     then: 'the attributes are not loaded'
       !subject.load()
     when: 'the object does exist'
-      1 * azureClient.exists('key') >> true
-      1 * azureClient.get('key') >> new ByteArrayInputStream(content.bytes)
-    then: 'the attributes are loaded'
+      1 * azureClient.getVersioned('key') >> new AzureClient.Versioned(content.bytes, 'etag')
+    then: 'the attributes are loaded in a single request'
       subject.load()
+      0 * azureClient.exists(_)
     when: 'the attributes are stored'
       subject.store()
     then: 'the attributes are written to the backing attributes file'
       1 * azureClient.create('key', _ as InputStream)
   }
+
+  def "the shared content key of a deduplicated blob is read and written"() {
+    given: 'attributes pointing at shared content'
+      def content = '''creationTime=10000000\nsize=100000000\nsha1=asdf\ncontentKey=asdf'''
+      def azureClient = Mock(AzureClient)
+      def subject = new AzureBlobAttributes(azureClient, 'key')
+      def stored = new ByteArrayOutputStream()
+    when: 'the attributes are loaded'
+      azureClient.getVersioned('key') >> new AzureClient.Versioned(content.bytes, 'etag')
+      subject.load()
+    then: 'the content key is known'
+      subject.contentKey == 'asdf'
+    when: 'the blob gets content of its own'
+      subject.contentKey = null
+      subject.store()
+    then: 'the content key is no longer written'
+      1 * azureClient.create('key', _ as InputStream) >> { args -> stored << args[1] }
+      !new String(stored.toByteArray()).contains(AzureBlobAttributes.CONTENT_KEY_ATTRIBUTE)
+  }
+
+  def "attributes are stored over the version loaded unless it changed"() {
+    given: 'loaded attributes'
+      def content = '''creationTime=10000000\nsize=100000000\nsha1=asdf'''
+      def azureClient = Mock(AzureClient)
+      def subject = new AzureBlobAttributes(azureClient, 'key')
+      azureClient.getVersioned('key') >> new AzureClient.Versioned(content.bytes, 'etag-1')
+      subject.load()
+    when: 'they are stored over the version loaded'
+      def stored = subject.storeIfMatch(subject.ETag)
+    then: 'the write is conditional on its ETag and the new ETag is remembered'
+      1 * azureClient.createIfMatch('key', _ as byte[], 'etag-1') >> 'etag-2'
+      stored
+      subject.ETag == 'etag-2'
+    when: 'another node changed them meanwhile'
+      stored = subject.storeIfMatch('etag-1')
+    then: 'nothing is stored'
+      1 * azureClient.createIfMatch('key', _ as byte[], 'etag-1') >> null
+      !stored
+      subject.ETag == 'etag-2'
+  }
 }
@@ -0,0 +1,87 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import static org.sonatype.nexus.blobstore.azure.internal.AzureBlobCompressor.LZ4_CODEC
+
+class AzureBlobCompressorTest
+    extends Specification
+{
+  AzureBlobCompressor subject = new AzureBlobCompressor()
+
+  def "compressed content reads back as it was"() {
+    given: 'text spanning several blocks'
+      def content = ('<dependency><groupId>org.example</groupId></dependency>\n' * 10000).bytes
+    when: 'it is compressed'
+      def compressed = subject.compress(new ByteArrayInputStream(content))
+      def stored = compressed.bytes
+    then: 'it shrinks and its stored size is counted'
+      stored.length < content.length / 5
+      compressed.storedSize == stored.length
+      compressed.codec == LZ4_CODEC
+    and: 'it decompresses to the original'
+      AzureBlobCompressor.decompress(LZ4_CODEC, new ByteArrayInputStream(stored)).bytes == content
+  }
+
+  def "empty content round trips"() {
+    when: 'nothing is compressed'
+      def stored = subject.compress(new ByteArrayInputStream(new byte[0])).bytes
+    then: 'it decompresses to nothing'
+      AzureBlobCompressor.decompress(LZ4_CODEC, new ByteArrayInputStream(stored)).bytes.length == 0
+  }
+
+  def "content stored as is is read as is"() {
+    given: 'a stream'
+      def stream = new ByteArrayInputStream('abc'.bytes)
+    expect: 'no codec leaves it untouched'
+      AzureBlobCompressor.decompress(null, stream).is(stream)
+  }
+
+  def "an unknown codec is refused"() {
+    when: 'content of an unknown codec is read'
+      AzureBlobCompressor.decompress('zstd', new ByteArrayInputStream(new byte[0]))
+    then: 'it fails'
+      thrown(IOException)
+  }
+
+  @Unroll
+  def "content of type #contentType is compressed: #expected"() {
+    given: 'a sample of random bytes, which do not compress'
+      def sample = new byte[4096]
+      new Random(1).nextBytes(sample)
+    expect: 'the content type decides where it is known'
+      (subject.select(contentType, sample, sample.length) == LZ4_CODEC) == expected
+    where:
+      contentType                        || expected
+      'application/json'                 || true
+      'text/xml; charset=UTF-8'          || true
+      'application/vnd.npm.install+json' || true
+      'application/java-archive'         || false
+      'image/png'                        || false
+      'application/octet-stream'         || false
+      null                               || false
+  }
+
+  def "content of no telling type is compressed when the sample compresses"() {
+    given: 'a repetitive sample'
+      def sample = ('a' * 4096).bytes
+    expect: 'it is compressed'
+      subject.select('application/octet-stream', sample, sample.length) == LZ4_CODEC
+      subject.select(null, sample, sample.length) == LZ4_CODEC
+    and: 'empty content is not'
+      subject.select(null, sample, 0) == null
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal
+
+import java.util.Map.Entry
+
+import org.sonatype.nexus.blobstore.api.BlobId
+
+import spock.lang.Specification
+
+import static java.nio.charset.StandardCharsets.UTF_8
+
+class AzureBlobPackerTest
+    extends Specification
+{
+  AzureClient azureClient = Mock()
+
+  AzureBlobPacker subject = new AzureBlobPacker(azureClient)
+
+  def "content is appended to the current pack and indexed"() {
+    given: 'appended index lines are captured'
+      def index = new StringBuilder()
+      azureClient.append({ it.endsWith('.index') }, _, _) >> { args ->
+        index << new String(args[1] as byte[], 0, args[2] as int, UTF_8)
+        return 0L
+      }
+    when: 'two blobs are packed'
+      def first = subject.append(new BlobId('a'), 'hello'.bytes)
+      def second = subject.append(new BlobId('b'), 'world!'.bytes)
+    then: 'both land in the same pack, one after the other'
+      1 * azureClient.append({ it.endsWith('.pack') }, 'hello'.bytes, 5) >> 0L
+      1 * azureClient.append({ it.endsWith('.pack') }, 'world!'.bytes, 6) >> 5L
+      first.packKey == second.packKey
+      first.offset == 0
+      second.offset == 5
+      index.toString() == '+ 0 5 a\n+ 5 6 b\n'
+  }
+
+  def "a failed append is reported and the next blob starts a new pack"() {
+    when: 'the append fails'
+      subject.append(new BlobId('a'), 'hello'.bytes)
+    then: 'the failure is thrown'
+      1 * azureClient.append({ it.endsWith('.pack') }, _, _) >> { throw new IllegalStateException('full') }
+      thrown(IOException)
+    when: 'the next blob is packed'
+      def location = subject.append(new BlobId('b'), 'world'.bytes)
+    then: 'it goes into another pack'
+      1 * azureClient.append({ it.endsWith('.pack') }, _, _) >> 0L
+      location.offset == 0
+  }
+
+  def "usage counts the live entries of each pack"() {
+    given: 'a pack with three entries, one of them released'
+      def key = '1000-pack'
+      def index = '+ 0 5 a\n+ 5 6 b\n+ 11 4 c\n- 5 b\n'.getBytes(UTF_8)
+      azureClient.listFileSizes(AzureBlobPacker.PACKS_PREFIX) >> [
+          entry(AzureBlobPacker.packPath(key), 15L),
+          entry(AzureBlobPacker.indexPath(key), index.length as long)
+      ].stream()
+      azureClient.get(AzureBlobPacker.indexPath(key), 0, index.length) >> new ByteArrayInputStream(index)
+    when: 'the usage is read'
+      def usage = subject.usage()
+    then: 'the released entry is reclaimable'
+      usage.size() == 1
+      usage[0].key == key
+      usage[0].created == 1000
+      usage[0].liveEntries*.blobId*.asUniqueString() == ['a', 'c']
+      usage[0].reclaimableBytes == 6
+      subject.isSealed(usage[0])
+  }
+
+  def "releasing an entry appends to the index"() {
+    when: 'an entry is released'
+      subject.release('1000-pack', 5, new BlobId('b'))
+    then: 'a removal line is appended'
+      1 * azureClient.append(AzureBlobPacker.indexPath('1000-pack'), '- 5 b\n'.getBytes(UTF_8), 6)
+  }
+
+  private static Entry<String, Long> entry(final String key, final long value) {
+    new AbstractMap.SimpleEntry<String, Long>(key, value)
+  }
+}
@@ -12,6 +12,8 @@
  */
 package org.sonatype.nexus.blobstore.azure.internal
 
+import java.nio.file.Files
+
 import org.sonatype.nexus.blobstore.BlobIdLocationResolver
 import org.sonatype.nexus.blobstore.DefaultBlobIdLocationResolver
 import org.sonatype.nexus.blobstore.api.BlobId
@@ -19,10 +21,12 @@ import org.sonatype.nexus.blobstore.api.BlobStoreConfiguration
 import org.sonatype.nexus.blobstore.azure.internal.AzureBlobStore.AzureAttributesLocation
 import org.sonatype.nexus.blobstore.azure.internal.db.OrientDeletedBlobEntityAdapter
 import org.sonatype.nexus.blobstore.azure.internal.db.OrientDeletedBlobIndex
+import org.sonatype.nexus.common.app.ApplicationDirectories
 import org.sonatype.nexus.common.log.DryRunPrefix
 import org.sonatype.nexus.orient.testsupport.DatabaseInstanceRule
 import org.sonatype.nexus.repository.internal.blobstore.orient.OrientBlobStoreConfiguration
 
+import com.codahale.metrics.MetricRegistry
 import org.junit.Rule
 import spock.lang.Specification
 
@@ -58,9 +62,13 @@ class AzureBlobStoreIT
         database.instanceProvider)
     deletedBlobIndex.start()
 
-    def factory = new AzureStorageClientFactory(20)
+    def factory = new AzureStorageClientFactory(20, 4, 10, new MetricRegistry())
     azureClient = factory.create(configuration)
-    azureBlobStore = new AzureBlobStore(factory, resolver, storeMetrics, dryRunPrefix, deletedBlobIndex)
+    ApplicationDirectories applicationDirectories = Mock(ApplicationDirectories) {
+      getTemporaryDirectory() >> Files.createTempDirectory('azure-it').toFile()
+    }
+    azureBlobStore = new AzureBlobStore(factory, resolver, storeMetrics, dryRunPrefix, deletedBlobIndex,
+        applicationDirectories)
     this.azureBlobStore.init(configuration)
     this.azureBlobStore.start()
   }
@@ -0,0 +1,109 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal
+
+import org.sonatype.nexus.blobstore.api.Blob
+import org.sonatype.nexus.blobstore.api.BlobId
+import org.sonatype.nexus.blobstore.api.BlobMetrics
+import org.sonatype.nexus.blobstore.api.BlobStore
+import org.sonatype.nexus.blobstore.api.BlobStoreConfiguration
+import org.sonatype.nexus.blobstore.api.BlobStoreMetrics
+
+import org.joda.time.DateTime
+import spock.lang.Specification
+
+/**
+ * Unit tests for {@link AzureBlobStoreImporter}.
+ */
+class AzureBlobStoreImporterTest
+    extends Specification
+{
+  def source = Mock(BlobStore)
+
+  def target = Mock(AzureBlobStore)
+
+  def checkpoint = Mock(AzurePropertiesFile)
+
+  def underTest = new AzureBlobStoreImporter(source, target, 2)
+
+  def setup() {
+    source.getBlobStoreConfiguration() >> Mock(BlobStoreConfiguration) { getName() >> 'file' }
+    target.getBlobStoreConfiguration() >> Mock(BlobStoreConfiguration) { getName() >> 'azure' }
+    source.getMetrics() >> Mock(BlobStoreMetrics) { getBlobCount() >> 3 }
+    target.importCheckpoint('file') >> checkpoint
+  }
+
+  def 'live blobs are imported unless stored already'() {
+    given:
+      def present = blob('present', 'sha-present')
+      def missing = blob('missing', 'sha-missing')
+      source.getBlobIdStream() >> [present.id, new BlobId('deleted'), missing.id].stream()
+      source.get(present.id) >> present
+      source.get(missing.id) >> missing
+      target.contains(present.id, 'sha-present') >> true
+      target.contains(missing.id, 'sha-missing') >> false
+    when:
+      def failed = underTest.run(false, { false })
+    then:
+      1 * target.importBlob(missing.id, missing.headers, missing.metrics, _)
+      0 * target.importBlob(present.id, _, _, _)
+      failed == 0
+      underTest.imported == 1
+      underTest.skipped == 2
+    and: 'the finished import leaves no checkpoint behind'
+      1 * checkpoint.remove()
+  }
+
+  def 'a resumed import skips the blobs before the checkpoint'() {
+    given:
+      def first = blob('first', 'sha-first')
+      def second = blob('second', 'sha-second')
+      source.getBlobIdStream() >> [first.id, second.id].stream()
+      source.get(second.id) >> second
+      checkpoint.exists() >> true
+      checkpoint.getProperty(AzureBlobStoreImporter.POSITION_PROPERTY, '0') >> '1'
+    when:
+      underTest.run(false, { false })
+    then:
+      0 * source.get(first.id)
+      1 * target.importBlob(second.id, _, _, _)
+  }
+
+  def 'a failed blob is counted and keeps the checkpoint before it'() {
+    given: 'a blob which fails to import between two which do not'
+      def first = blob('first', 'sha-first')
+      def broken = blob('broken', 'sha-broken')
+      def last = blob('last', 'sha-last')
+      source.getBlobIdStream() >> [first.id, broken.id, last.id].stream()
+      [first, broken, last].each { source.get(it.id) >> it }
+      target.importBlob(broken.id, _, _, _) >> { throw new IllegalStateException('boom') }
+    when:
+      def failed = underTest.run(false, { false })
+    then: 'the checkpoint stops at the failed blob, so a resumed import retries it'
+      failed == 1
+      underTest.imported == 2
+      1 * checkpoint.setProperty(AzureBlobStoreImporter.POSITION_PROPERTY, '1')
+      0 * checkpoint.setProperty(AzureBlobStoreImporter.POSITION_PROPERTY, _)
+      1 * checkpoint.store()
+      0 * checkpoint.remove()
+  }
+
+  private Blob blob(final String id, final String sha1) {
+    Mock(Blob) {
+      getId() >> new BlobId(id)
+      getHeaders() >> [(BlobStore.BLOB_NAME_HEADER): id]
+      getMetrics() >> new BlobMetrics(new DateTime(), sha1, 4)
+      getInputStream() >> new ByteArrayInputStream('data'.bytes)
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal
+
+import java.util.stream.Stream
+
+import org.sonatype.nexus.blobstore.api.BlobStore
+import org.sonatype.nexus.blobstore.quota.BlobStoreQuotaService
+import org.sonatype.nexus.common.node.NodeAccess
+import org.sonatype.nexus.scheduling.PeriodicJobService
+import org.sonatype.nexus.scheduling.PeriodicJobService.PeriodicJob
+
+import spock.lang.Specification
+
+/**
+ * Unit tests for {@link AzureBlobStoreMetricsStore}.
+ */
+class AzureBlobStoreMetricsStoreTest
+    extends Specification
+{
+  def nodeAccess = Mock(NodeAccess) {
+    getId() >> 'node1'
+  }
+
+  def jobService = Mock(PeriodicJobService) {
+    schedule(_, _) >> Mock(PeriodicJob)
+  }
+
+  def azureClient = Mock(AzureClient)
+
+  def underTest = new AzureBlobStoreMetricsStore(nodeAccess, jobService, Mock(BlobStoreQuotaService), 60, 10)
+
+  def setup() {
+    underTest.setAzureClient(azureClient)
+    underTest.setBlobStore(Mock(BlobStore))
+  }
+
+  def 'metrics of all nodes are aggregated'() {
+    given: 'another node has written its metrics'
+      azureClient.listChildren('') >> { Stream.of('content/', 'node1-metrics.properties', 'node2-metrics.properties') }
+      azureClient.get('node2-metrics.properties') >> {
+        new ByteArrayInputStream('generation=0\nblobCount=3\ntotalSize=30'.bytes)
+      }
+    when: 'the metrics store is started without a local metrics file'
+      underTest.start()
+    then: 'the local metrics file is initialized at zero'
+      1 * azureClient.exists('node1-metrics.properties') >> false
+      1 * azureClient.create('node1-metrics.properties', { InputStream data ->
+        def lines = data.readLines()
+        lines.contains('blobCount=0') && lines.contains('totalSize=0')
+      })
+    when: 'blobs are added locally'
+      underTest.recordAddition(10)
+      underTest.recordAddition(5)
+      underTest.recordDeletion(5)
+      def metrics = underTest.getMetrics()
+    then: 'the local counters and the other node are combined without listing again'
+      0 * azureClient.listChildren(_)
+      metrics.blobCount == 4
+      metrics.totalSize == 40
+  }
+
+  def 'restarted local counters are written out under the generation of the recalculation'() {
+    given: 'another node has recalculated the metrics'
+      azureClient.listChildren('') >> { Stream.of('node1-metrics.properties', 'node2-metrics.properties') }
+      azureClient.exists('node1-metrics.properties') >> false
+      azureClient.get('node2-metrics.properties') >> {
+        new ByteArrayInputStream('generation=100\nblobCount=3\ntotalSize=30'.bytes)
+      }
+    when: 'the metrics store is started, which restarts the local counters at zero'
+      underTest.start()
+    and: 'the unchanged counters are flushed'
+      underTest.flush(false)
+    then: 'the local metrics file is written out with the new generation'
+      1 * azureClient.create('node1-metrics.properties', { InputStream data ->
+        def lines = data.readLines()
+        lines.contains('generation=100') && lines.contains('blobCount=0')
+      })
+  }
+
+  def 'recalculated metrics replace the tracked values'() {
+    given: 'no other node'
+      azureClient.listChildren('') >> { Stream.of('node1-metrics.properties') }
+      azureClient.exists('node1-metrics.properties') >> false
+    when: 'the metrics store is started, a blob is added and the metrics are then replaced'
+      underTest.start()
+      underTest.recordAddition(10)
+      underTest.replace(5, 500)
+    then: 'the replaced values are written out immediately with a new generation'
+      1 * azureClient.create('node1-metrics.properties', { InputStream data ->
+        def lines = data.readLines()
+        lines.contains('blobCount=5') && lines.contains('totalSize=500') && !lines.contains('generation=0')
+      })
+    and: 'the replaced values are reported'
+      underTest.getMetrics().blobCount == 5
+      underTest.getMetrics().totalSize == 500
+  }
+}
@@ -0,0 +1,270 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.stream.Stream
+
+import org.sonatype.nexus.blobstore.DefaultBlobIdLocationResolver
+import org.sonatype.nexus.blobstore.api.BlobId
+import org.sonatype.nexus.blobstore.api.BlobStore
+import org.sonatype.nexus.blobstore.api.BlobStoreUsageChecker
+import org.sonatype.nexus.common.app.ApplicationDirectories
+import org.sonatype.nexus.common.log.DryRunPrefix
+import org.sonatype.nexus.repository.internal.blobstore.orient.OrientBlobStoreConfiguration
+
+import com.google.common.hash.Hashing
+import spock.lang.Specification
+
+import static org.sonatype.nexus.blobstore.DefaultBlobIdLocationResolver.DIRECT_PATH_BLOB_ID_PREFIX
+
+/**
+ * Unit tests for {@link AzureBlobStore} against a mocked {@link AzureClient}, covering the shared content and the
+ * conditional writes which have to hold up against other nodes.
+ */
+class AzureBlobStoreTest
+    extends Specification
+{
+  static final byte[] DATA = 'data'.bytes
+
+  static final String CONTENT_KEY = Hashing.sha1().hashBytes(DATA).toString()
+
+  static final String SHARED_PATH = AzureBlobStore.sharedContentPath(CONTENT_KEY)
+
+  static final String REFERENCES = AzureBlobStore.referencePrefix(CONTENT_KEY)
+
+  def azureClient = Mock(AzureClient)
+
+  def storeMetrics = Mock(AzureBlobStoreMetricsStore)
+
+  def deletedBlobIndex = Mock(DeletedBlobIndex)
+
+  AzureBlobStore underTest
+
+  def setup() {
+    def configuration = new OrientBlobStoreConfiguration(
+        name: 'azure',
+        type: AzureBlobStore.TYPE,
+        attributes: [(AzureBlobStore.CONFIG_KEY): [(AzureBlobStore.DEDUPLICATE_KEY): 'true']]
+    )
+    def factory = Mock(AzureStorageClientFactory) {
+      create(_, _) >> azureClient
+    }
+    def applicationDirectories = Mock(ApplicationDirectories) {
+      getTemporaryDirectory() >> Files.createTempDirectory('azure-test').toFile()
+    }
+    underTest = new AzureBlobStore(factory, new DefaultBlobIdLocationResolver(), storeMetrics,
+        new DryRunPrefix('dr'), deletedBlobIndex, applicationDirectories)
+    underTest.init(configuration)
+    underTest.start()
+  }
+
+  def 'a blob shares stored content once its reference is recorded'() {
+    when:
+      underTest.create(file(), headers(), DATA.length, Hashing.sha1().hashBytes(DATA))
+    then: 'the reference goes first'
+      1 * azureClient.create({ it.startsWith(REFERENCES) }, _ as InputStream)
+    then: 'the content is touched, so that a release on another node no longer deletes it'
+      1 * azureClient.touch(SHARED_PATH) >> 'etag'
+      0 * azureClient.create(SHARED_PATH, _, _)
+  }
+
+  def 'content deleted by a release on another node is uploaded again'() {
+    given:
+      def file = file()
+    when:
+      underTest.create(file, headers(), DATA.length, Hashing.sha1().hashBytes(DATA))
+    then:
+      1 * azureClient.create({ it.startsWith(REFERENCES) }, _ as InputStream)
+    then:
+      1 * azureClient.touch(SHARED_PATH) >> null
+      1 * azureClient.create(SHARED_PATH, file, DATA.length)
+  }
+
+  def 'streamed content is hashed before it is uploaded straight to its shared path'() {
+    when:
+      underTest.create(new ByteArrayInputStream(DATA), headers())
+    then:
+      1 * azureClient.create({ it.startsWith(REFERENCES) }, _ as InputStream)
+    then:
+      1 * azureClient.touch(SHARED_PATH) >> null
+      1 * azureClient.create(SHARED_PATH, _ as Path, DATA.length)
+      0 * azureClient.create({ it != SHARED_PATH }, _ as Path, _)
+      0 * azureClient.copy(*_)
+  }
+
+  def 'streamed content which is stored already is not uploaded'() {
+    when:
+      underTest.create(new ByteArrayInputStream(DATA), headers())
+    then:
+      1 * azureClient.touch(SHARED_PATH) >> 'etag'
+      0 * azureClient.create(_, _ as Path, _)
+      0 * azureClient.create({ !it.startsWith(REFERENCES) }, _ as InputStream)
+  }
+
+  def 'releasing the last reference deletes the content at the version touched'() {
+    when:
+      def deleted = underTest.releaseReference(new BlobId('blob'), CONTENT_KEY)
+    then:
+      1 * azureClient.delete(REFERENCES + 'blob.ref')
+    then:
+      1 * azureClient.touch(SHARED_PATH) >> 'etag'
+      1 * azureClient.listFiles(REFERENCES) >> Stream.empty()
+    then:
+      1 * azureClient.deleteIfMatch(SHARED_PATH, 'etag') >> true
+      deleted
+  }
+
+  def 'releasing a reference keeps content which is still referenced'() {
+    when:
+      def deleted = underTest.releaseReference(new BlobId('blob'), CONTENT_KEY)
+    then:
+      1 * azureClient.touch(SHARED_PATH) >> 'etag'
+      1 * azureClient.listFiles(REFERENCES) >> Stream.of(REFERENCES + 'other.ref')
+      0 * azureClient.deleteIfMatch(*_)
+      !deleted
+  }
+
+  def 'a reference added on another node while the references are listed keeps the content'() {
+    when:
+      def deleted = underTest.releaseReference(new BlobId('blob'), CONTENT_KEY)
+    then: 'the other node touched the content after it was listed without references'
+      2 * azureClient.touch(SHARED_PATH) >>> ['etag-1', 'etag-2']
+      2 * azureClient.listFiles(REFERENCES) >>> [Stream.empty(), Stream.of(REFERENCES + 'other.ref')]
+      1 * azureClient.deleteIfMatch(SHARED_PATH, 'etag-1') >> false
+      0 * azureClient.deleteIfMatch(*_)
+      !deleted
+  }
+
+  def 'releasing a reference to content deleted already does not delete it again'() {
+    when:
+      def deleted = underTest.releaseReference(new BlobId('blob'), CONTENT_KEY)
+    then:
+      1 * azureClient.touch(SHARED_PATH) >> null
+      0 * azureClient.listFiles(REFERENCES)
+      0 * azureClient.deleteIfMatch(*_)
+      !deleted
+  }
+
+  def 'a soft delete is retried on the attributes another node changed meanwhile'() {
+    given:
+      def blobId = new BlobId('blob')
+      def path = underTest.attributePath(blobId)
+      def stored = null
+    when:
+      def deleted = underTest.delete(blobId, 'testing')
+    then: 'the first conditional write loses to another node, and the current attributes are marked deleted'
+      2 * azureClient.getVersioned(path) >>> [versioned('etag-1'), versioned('etag-2')]
+      1 * azureClient.createIfMatch(path, _ as byte[], 'etag-1') >> null
+      1 * azureClient.createIfMatch(path, _ as byte[], 'etag-2') >> { args -> stored = new String(args[1]); 'etag-3' }
+      deleted
+      stored.contains('deleted=true')
+  }
+
+  def 'an undelete is applied again to the attributes another node changed meanwhile'() {
+    given: 'soft deleted attributes, which another node changes before they are stored'
+      def blobId = new BlobId('blob')
+      def path = underTest.attributePath(blobId)
+      azureClient.getVersioned(path) >>> [versioned('etag-1', true), versioned('etag-2', true)]
+      def attributes = underTest.getBlobAttributes(blobId)
+      def checker = Mock(BlobStoreUsageChecker) { test(*_) >> true }
+      def stored = null
+    when:
+      def undeleted = underTest.undelete(checker, blobId, attributes, false)
+    then:
+      1 * azureClient.createIfMatch(path, _ as byte[], 'etag-1') >> null
+      1 * azureClient.createIfMatch(path, _ as byte[], 'etag-2') >> { args -> stored = new String(args[1]); 'etag-3' }
+      undeleted
+      !stored.contains('deleted=true')
+  }
+
+  def 'the attributes of an overwritten direct path blob are read once'() {
+    given:
+      def blobId = new BlobId(DIRECT_PATH_BLOB_ID_PREFIX + 'health/check')
+      def path = underTest.attributePath(blobId)
+      azureClient.touch(SHARED_PATH) >> 'etag'
+    when:
+      underTest.create(file(), directPathHeaders(), DATA.length, Hashing.sha1().hashBytes(DATA))
+    then: 'the version read before the write is the one the new attributes are stored over'
+      1 * azureClient.getVersioned(path) >> versioned('etag-1')
+      1 * azureClient.createIfMatch(path, _ as byte[], 'etag-1') >> 'etag-2'
+      0 * azureClient.createIfMatch(*_)
+  }
+
+  def 'the attributes of a direct path blob replaced on another node are stored over the current version'() {
+    given:
+      def blobId = new BlobId(DIRECT_PATH_BLOB_ID_PREFIX + 'health/check')
+      def path = underTest.attributePath(blobId)
+      azureClient.touch(SHARED_PATH) >> 'etag'
+    when:
+      underTest.create(file(), directPathHeaders(), DATA.length, Hashing.sha1().hashBytes(DATA))
+    then: 'the version read before the write is replaced meanwhile, so the current one is read again'
+      2 * azureClient.getVersioned(path) >>> [versioned('etag-1'), versioned('etag-2')]
+      1 * azureClient.createIfMatch(path, _ as byte[], 'etag-1') >> null
+      1 * azureClient.createIfMatch(path, _ as byte[], 'etag-2') >> 'etag-3'
+  }
+
+  def 'recalculated metrics count every blob and the content stored for blobs which are not soft deleted'() {
+    given: 'blobs with content of their own, and deduplicated ones sharing content'
+      def (own, shared, softDeleted, softDeletedOwn) = ['own', 'shared', 'soft-deleted', 'soft-deleted-own'].collect {
+        new BlobId(it)
+      }
+      def otherKey = Hashing.sha1().hashBytes('other'.bytes).toString()
+      deletedBlobIndex.browse() >> Stream.of(softDeleted, softDeletedOwn)
+      azureClient.listChildren('content/') >> Stream.of('content/vol-01/', 'content/sha1/')
+      azureClient.listFileSizes('content/vol-01/') >> Stream.of(
+          entry(underTest.attributePath(own), 100), entry(underTest.contentPath(own), 10),
+          entry(underTest.attributePath(shared), 100),
+          entry(underTest.attributePath(softDeleted), 100),
+          entry(underTest.attributePath(softDeletedOwn), 100), entry(underTest.contentPath(softDeletedOwn), 7))
+      azureClient.listFileSizes('content/sha1/') >> Stream.of(
+          entry(SHARED_PATH, DATA.length),
+          entry(REFERENCES + shared.asUniqueString() + '.ref', 0),
+          entry(REFERENCES + softDeleted.asUniqueString() + '.ref', 0),
+          entry(AzureBlobStore.sharedContentPath(otherKey), 5),
+          entry(AzureBlobStore.referencePrefix(otherKey) + softDeleted.asUniqueString() + '.ref', 0))
+      azureClient.listFileSizes('packs/') >> Stream.empty()
+    when:
+      underTest.recalculateMetrics(true)
+    then: 'shared content is sized once, and not at all when only soft deleted blobs refer to it'
+      1 * storeMetrics.replace(2, 10 + DATA.length)
+  }
+
+  private static Map.Entry<String, Long> entry(final String path, final long size) {
+    new AbstractMap.SimpleImmutableEntry<>(path, size)
+  }
+
+  private static Map<String, String> headers() {
+    [(BlobStore.BLOB_NAME_HEADER): 'blob', (BlobStore.CREATED_BY_HEADER): 'test']
+  }
+
+  private static Map<String, String> directPathHeaders() {
+    headers() + [(BlobStore.DIRECT_PATH_BLOB_HEADER): 'true']
+  }
+
+  private static AzureClient.Versioned versioned(final String eTag, final boolean deleted = false) {
+    def properties = "@BlobStore.blob-name=blob\n@BlobStore.created-by=test\ncreationTime=10000000\nsize=4\n" +
+        "sha1=${CONTENT_KEY}\ncontentKey=${CONTENT_KEY}"
+    if (deleted) {
+      properties += '\ndeleted=true\ndeletedReason=testing'
+    }
+    new AzureClient.Versioned(properties.bytes, eTag)
+  }
+
+  private static file() {
+    def file = Files.createTempFile('azure-test', '.bytes')
+    file.toFile().deleteOnExit()
+    Files.write(file, DATA)
+  }
+}
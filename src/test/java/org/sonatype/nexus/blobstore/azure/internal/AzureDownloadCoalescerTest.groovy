@@ -0,0 +1,141 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal
+
+import java.nio.file.Files
+import java.util.concurrent.atomic.AtomicInteger
+
+import org.sonatype.nexus.blobstore.api.BlobId
+
+import spock.lang.Specification
+
+/**
+ * Unit tests for {@link AzureDownloadCoalescer}.
+ */
+class AzureDownloadCoalescerTest
+    extends Specification
+{
+  def directory = Files.createTempDirectory('azure-downloads')
+
+  def underTest = new AzureDownloadCoalescer(directory, 1024 * 1024)
+
+  def blobId = new BlobId('shared')
+
+  def content = ('0123456789' * 100_000).bytes
+
+  def opened = new AtomicInteger()
+
+  def setup() {
+    underTest.clear()
+  }
+
+  def cleanup() {
+    underTest.clear()
+    Files.delete(directory)
+  }
+
+  def 'concurrent readers share one download'() {
+    when: 'two readers open the blob before either has read it'
+      def first = underTest.open(blobId, 1, content.length, opener())
+      def second = underTest.open(blobId, 1, content.length, opener())
+    then: 'the content is opened once'
+      opened.get() == 1
+      underTest.usedBytes == content.length
+    and: 'both read all of it'
+      second.bytes == content
+      first.bytes == content
+    when: 'both are closed'
+      first.close()
+      second.close()
+    then: 'the download ends'
+      underTest.usedBytes == 0
+      Files.list(directory).count() == 0
+    when: 'the blob is read again'
+      underTest.open(blobId, 1, content.length, opener()).close()
+    then: 'a new download starts'
+      opened.get() == 2
+  }
+
+  def 'readers after an invalidation start a new download'() {
+    given: 'a download in flight'
+      def first = underTest.open(blobId, 1, content.length, opener())
+    when: 'the blob is overwritten and read again'
+      underTest.invalidate(blobId)
+      def second = underTest.open(blobId, 1, content.length, opener())
+    then: 'the content is opened again'
+      opened.get() == 2
+    and: 'the first reader still reads its download'
+      first.bytes == content
+    cleanup:
+      first?.close()
+      second?.close()
+  }
+
+  def 'readers of a later generation start a new download'() {
+    given: 'a download started for the blob before it was overwritten, small enough for two to fit'
+      def small = ('0123456789' * 10_000).bytes
+      def opener = { opened.incrementAndGet(); new ByteArrayInputStream(small) } as AzureDownloadCoalescer.ContentOpener
+      def first = underTest.open(blobId, 1, small.length, opener)
+    when: 'it is read at the later generation and then again at the earlier one'
+      def second = underTest.open(blobId, 2, small.length, opener)
+      def third = underTest.open(blobId, 1, small.length, opener)
+    then: 'the later download replaces the earlier one, and is attached to by a reader lagging behind'
+      opened.get() == 2
+      underTest.usedBytes == 2 * small.length
+      first.bytes == small
+      second.bytes == small
+      third.bytes == small
+    cleanup:
+      first?.close()
+      second?.close()
+      third?.close()
+  }
+
+  def 'a blob which does not fit is read on its own'() {
+    given: 'a blob larger than the room for downloads'
+      def large = new byte[2 * 1024 * 1024]
+    when: 'it is read'
+      def reader = underTest.open(blobId, 1, large.length,
+          { opened.incrementAndGet(); new ByteArrayInputStream(large) })
+    then: 'it is read from Azure directly'
+      reader instanceof ByteArrayInputStream
+      underTest.usedBytes == 0
+  }
+
+  def 'a failed download fails its readers'() {
+    given: 'content which fails half way'
+      def failing = new InputStream() {
+        int count
+
+        @Override
+        int read() {
+          if (count++ >= 1000) {
+            throw new IOException('connection reset')
+          }
+          return 120
+        }
+      }
+    when: 'it is read'
+      def reader = underTest.open(blobId, 1, 2000, { failing })
+      reader.bytes
+    then: 'the failure is reported'
+      thrown(IOException)
+  }
+
+  private AzureDownloadCoalescer.ContentOpener opener() {
+    return {
+      opened.incrementAndGet()
+      new ByteArrayInputStream(content)
+    } as AzureDownloadCoalescer.ContentOpener
+  }
+}
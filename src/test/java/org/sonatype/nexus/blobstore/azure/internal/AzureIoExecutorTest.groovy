@@ -0,0 +1,98 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal
+
+import java.util.concurrent.CountDownLatch
+
+import com.codahale.metrics.MetricRegistry
+import spock.lang.Specification
+
+import static org.sonatype.nexus.blobstore.azure.internal.AzureIoExecutor.Mode.CALLER
+import static org.sonatype.nexus.blobstore.azure.internal.AzureIoExecutor.Mode.PLATFORM
+
+/**
+ * Unit tests for {@link AzureIoExecutor} and {@link ReadAheadInputStream}.
+ */
+class AzureIoExecutorTest
+    extends Specification
+{
+  def registry = new MetricRegistry()
+
+  def 'calls run on the caller in caller mode'() {
+    given:
+      def underTest = new AzureIoExecutor('default', CALLER, 8, registry)
+    expect:
+      underTest.call({ Thread.currentThread() }) == Thread.currentThread()
+      underTest.parallelism == 1
+      registry.gauges['org.sonatype.nexus.blobstore.azure.internal.AzureClient.default.io.mode'].value == 'CALLER'
+  }
+
+  def 'single calls run on the caller in every mode'() {
+    given:
+      def underTest = new AzureIoExecutor('default', PLATFORM, 8, registry)
+    expect: 'submitted calls run on the pool'
+      AzureIoExecutor.await(underTest.submit({ Thread.currentThread() })) != Thread.currentThread()
+    and: 'a call which the caller waits for anyway does not'
+      underTest.call({ Thread.currentThread() }) == Thread.currentThread()
+    cleanup:
+      underTest?.close()
+  }
+
+  def 'calls in progress are counted as in flight'() {
+    given:
+      def underTest = new AzureIoExecutor('default', PLATFORM, 2, registry)
+      def release = new CountDownLatch(1)
+    when:
+      def future = underTest.submit({ release.await(); 'done' })
+    then:
+      underTest.inFlight == 1
+      registry.counters['org.sonatype.nexus.blobstore.azure.internal.AzureClient.default.io.inFlight'].count == 1
+    when:
+      release.countDown()
+    then:
+      AzureIoExecutor.await(future) == 'done'
+      underTest.inFlight == 0
+  }
+
+  def 'checked exceptions are rethrown wrapped'() {
+    given:
+      def underTest = new AzureIoExecutor('default', PLATFORM, 2, registry)
+    when:
+      underTest.call({ throw new IOException('boom') })
+    then:
+      def e = thrown(RuntimeException)
+      e.cause instanceof IOException
+  }
+
+  def 'calls in flight complete once the executor is closed'() {
+    given:
+      def underTest = new AzureIoExecutor('default', PLATFORM, 2, registry)
+      def release = new CountDownLatch(1)
+      def future = underTest.submit({ release.await(); 'done' })
+    when:
+      underTest.close()
+      release.countDown()
+    then:
+      AzureIoExecutor.await(future) == 'done'
+  }
+
+  def 'read ahead returns the complete content'() {
+    given:
+      def content = (0..<1000).collect { it as byte } as byte[]
+      def executor = new AzureIoExecutor('default', PLATFORM, 2, registry)
+    when:
+      def read = new ReadAheadInputStream(new ByteArrayInputStream(content), executor, 64).bytes
+    then:
+      read == content
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal
+
+import com.codahale.metrics.Meter
+import com.microsoft.azure.storage.RetryExponentialRetry
+import com.microsoft.azure.storage.RetryingEvent
+import spock.lang.Specification
+
+/**
+ * Unit tests for {@link AzureRequestPolicy}.
+ */
+class AzureRequestPolicyTest
+    extends Specification
+{
+  def retries = new Meter()
+
+  def underTest = new AzureRequestPolicy(5, 200, 10, 30, 60, 600, retries)
+
+  def 'metadata and content requests have their own timeouts'() {
+    expect:
+      underTest.forMetadata().timeoutIntervalInMs == 10_000
+      underTest.forMetadata().maximumExecutionTimeInMs == 30_000
+      underTest.forContent().timeoutIntervalInMs == 60_000
+      underTest.forContent().maximumExecutionTimeInMs == 600_000
+      underTest.forContent().retryPolicyFactory instanceof RetryExponentialRetry
+  }
+
+  def 'attribute files are transferred as metadata'() {
+    expect:
+      underTest.forPath('content/vol-01/chap-01/blob.properties').is(underTest.forMetadata())
+      underTest.forPath('content/vol-01/chap-01/blob.bytes').is(underTest.forContent())
+  }
+
+  def 'retries are counted'() {
+    given:
+      def context = underTest.newOperationContext()
+    when:
+      context.retryingEventHandler.fireEvent(new RetryingEvent(context, null, null, null))
+    then:
+      retries.count == 1
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal
+
+import java.util.concurrent.TimeUnit
+
+import spock.lang.Specification
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS
+import static org.sonatype.nexus.blobstore.azure.internal.AzureOperationTrace.Step.BLOCK_UPLOAD
+import static org.sonatype.nexus.blobstore.azure.internal.AzureOperationTrace.Step.LOCK_WAIT
+
+/**
+ * Unit tests for {@link AzureSlowOperationRecorder}.
+ */
+class AzureSlowOperationRecorderTest
+    extends Specification
+{
+  def 'slow operations are recorded with their steps'() {
+    given: 'a recorder which considers every operation slow'
+      def underTest = new AzureSlowOperationRecorder('default', 0, MILLISECONDS, 10)
+    when: 'an operation with a nested operation is traced'
+      def trace = underTest.begin('create', 'blob-1')
+      trace.add(LOCK_WAIT, 5_000_000L)
+      def nested = underTest.begin('get', 'blob-2')
+      AzureOperationTrace.current().add(BLOCK_UPLOAD, 7_000_000L)
+      AzureOperationTrace.current().addBytes(100)
+      AzureOperationTrace.current().addBlock()
+      AzureOperationTrace.current().addRetry()
+      underTest.end(nested)
+      underTest.end(trace)
+    then: 'only the outer operation is recorded, including the steps of the nested one'
+      underTest.slowOperations.size() == 1
+      def line = underTest.slowOperations[0]
+      line.startsWith('blobStore=default operation=create subject=blob-1 ')
+      line.contains(' lock_waitMs=5 ')
+      line.contains(' block_uploadMs=7 ')
+      line.endsWith(' bytes=100 blocks=1 retries=1')
+  }
+
+  def 'fast operations are not recorded'() {
+    given:
+      def underTest = new AzureSlowOperationRecorder('default', 1, TimeUnit.HOURS, 10)
+    when:
+      underTest.end(underTest.begin('get', 'blob-1'))
+    then:
+      underTest.slowOperations.empty
+  }
+
+  def 'only the most recent operations are kept'() {
+    given:
+      def underTest = new AzureSlowOperationRecorder('default', 0, MILLISECONDS, 2)
+    when:
+      ['a', 'b', 'c'].each { underTest.end(underTest.begin('get', it)) }
+    then:
+      underTest.slowOperations.collect { it.split(' ')[2] } == ['subject=b', 'subject=c']
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal
+
+import java.nio.file.Files
+
+import org.sonatype.nexus.blobstore.api.BlobId
+
+import spock.lang.Specification
+
+/**
+ * Unit tests for {@link AzureTemporaryBlobSpool}.
+ */
+class AzureTemporaryBlobSpoolTest
+    extends Specification
+{
+  def directory = Files.createTempDirectory('azure-spool')
+
+  def underTest = new AzureTemporaryBlobSpool(directory, 100 * 1024)
+
+  def setup() {
+    underTest.clear()
+  }
+
+  def cleanup() {
+    underTest.clear()
+    Files.delete(directory)
+  }
+
+  def 'a blob which fits is spooled until it is removed'() {
+    given:
+      def blobId = new BlobId('small')
+      def content = 'x' * 1000
+    when:
+      def overflow = underTest.spool(blobId, new ByteArrayInputStream(content.bytes))
+    then:
+      overflow == null
+      underTest.open(blobId).text == content
+      underTest.usedBytes == 1000
+    when:
+      underTest.remove(blobId, 1000)
+    then:
+      !Files.exists(underTest.path(blobId))
+      underTest.usedBytes == 0
+  }
+
+  def 'a blob which does not fit is handed back in full'() {
+    given:
+      def blobId = new BlobId('large')
+      byte[] content = (0..<300 * 1024).collect { (byte) it } as byte[]
+    when:
+      def overflow = underTest.spool(blobId, new ByteArrayInputStream(content))
+    then:
+      overflow != null
+    when:
+      byte[] replayed = overflow.bytes
+      overflow.close()
+    then: 'the content is intact and the room it took is released'
+      replayed == content
+      !Files.exists(underTest.path(blobId))
+      underTest.usedBytes == 0
+  }
+
+  def 'clearing drops blobs left behind'() {
+    given:
+      underTest.spool(new BlobId('left'), new ByteArrayInputStream('left'.bytes))
+    when:
+      underTest.clear()
+    then:
+      !Files.list(directory).findAny().present
+      underTest.usedBytes == 0
+  }
+}
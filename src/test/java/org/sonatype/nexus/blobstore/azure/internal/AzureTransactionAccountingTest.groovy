@@ -0,0 +1,56 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal
+
+import spock.lang.Specification
+
+import static org.sonatype.nexus.blobstore.azure.internal.AzureTransactionAccounting.TransactionClass.READ
+import static org.sonatype.nexus.blobstore.azure.internal.AzureTransactionAccounting.TransactionClass.WRITE
+
+/**
+ * Unit tests for {@link AzureTransactionAccounting}.
+ */
+class AzureTransactionAccountingTest
+    extends Specification
+{
+  def underTest = new AzureTransactionAccounting()
+
+  def 'transactions are attributed to the repository in scope'() {
+    when: 'transactions are recorded inside and outside of a repository scope'
+      def scope = underTest.attributeTo('maven-central')
+      underTest.recordTransaction(WRITE)
+      underTest.recordBytesIn(100)
+      scope.close()
+      underTest.recordTransaction(WRITE)
+    then: 'the total includes both and the repository only its own'
+      underTest.total.getTransactions(WRITE) == 2
+      underTest.total.bytesIn == 100
+      underTest.repositories['maven-central'].getTransactions(WRITE) == 1
+      underTest.repositories['maven-central'].bytesIn == 100
+      underTest.repositories.size() == 1
+  }
+
+  def 'downloads count one read per range'() {
+    given: 'a download opened for a repository'
+      def scope = underTest.attributeTo('npm-proxy')
+      def download = underTest.meterDownload(new ByteArrayInputStream(new byte[10]), 4)
+      scope.close()
+    when: 'it is read after the scope was closed'
+      download.bytes
+    then: 'egress and ranged reads are still attributed to the repository'
+      underTest.total.bytesOut == 10
+      underTest.total.getTransactions(READ) == 3
+      underTest.repositories['npm-proxy'].bytesOut == 10
+      underTest.repositories['npm-proxy'].getTransactions(READ) == 3
+  }
+}
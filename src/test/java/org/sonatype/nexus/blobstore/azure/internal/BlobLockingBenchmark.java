@@ -0,0 +1,178 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal;
+
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import org.sonatype.nexus.blobstore.BlobSupport;
+import org.sonatype.nexus.blobstore.api.BlobId;
+import org.sonatype.nexus.blobstore.api.BlobMetrics;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Striped;
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import static com.google.common.cache.CacheLoader.from;
+
+/**
+ * Cost of the locking {@link AzureBlobStore} does around get and create under contention, before (a weakly
+ * referenced blob per id, locked through the blob) and after (a bounded blob cache and a striped lock table). A get
+ * finds fresh attributes and takes no lock in either; a create locks and refreshes the blob. No request is sent.
+ *
+ * Run {@link #main(String[])} from the test classpath; {@code blobs} is the number of distinct ids the threads touch,
+ * and the GC profiler reports {@code gc.alloc.rate.norm}, the bytes allocated per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class BlobLockingBenchmark
+{
+  private static final Map<String, String> HEADERS = ImmutableMap.of("BlobStore.blob-name", "benchmark");
+
+  private static final BlobMetrics METRICS =
+      new BlobMetrics(new DateTime(), "da39a3ee5e6b4b0d3255bfef95601890afd80709", 0);
+
+  @Param({"100", "100000"})
+  public int blobs;
+
+  private BlobId[] blobIds;
+
+  private LoadingCache<BlobId, BenchmarkBlob> weakBlobs;
+
+  private LoadingCache<BlobId, BenchmarkBlob> boundedBlobs;
+
+  private final Striped<Lock> blobLocks = Striped.lock(1024);
+
+  @Setup
+  public void setup() {
+    blobIds = new BlobId[blobs];
+    for (int i = 0; i < blobs; i++) {
+      blobIds[i] = new BlobId("blob-" + i);
+    }
+    weakBlobs = CacheBuilder.newBuilder().weakValues().build(from(BenchmarkBlob::new));
+    boundedBlobs = CacheBuilder.newBuilder().maximumSize(10_000).build(from(BenchmarkBlob::new));
+  }
+
+  @Benchmark
+  public BenchmarkBlob getWeakPerBlob() {
+    BenchmarkBlob blob = weakBlobs.getUnchecked(nextBlobId());
+    if (blob.isStale()) {
+      Lock lock = blob.lock();
+      try {
+        blob.refresh(HEADERS, METRICS);
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+    return blob;
+  }
+
+  @Benchmark
+  public BenchmarkBlob getStriped() {
+    BlobId blobId = nextBlobId();
+    BenchmarkBlob blob = boundedBlobs.getUnchecked(blobId);
+    if (blob.isStale()) {
+      Lock lock = lockStripe(blobId);
+      try {
+        blob.refresh(HEADERS, METRICS);
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+    return blob;
+  }
+
+  @Benchmark
+  public BenchmarkBlob createWeakPerBlob() {
+    BenchmarkBlob blob = weakBlobs.getUnchecked(nextBlobId());
+    Lock lock = blob.lock();
+    try {
+      blob.refresh(HEADERS, METRICS);
+    }
+    finally {
+      lock.unlock();
+    }
+    return blob;
+  }
+
+  @Benchmark
+  public BenchmarkBlob createStriped() {
+    BlobId blobId = nextBlobId();
+    BenchmarkBlob blob = boundedBlobs.getUnchecked(blobId);
+    Lock lock = lockStripe(blobId);
+    try {
+      blob.refresh(HEADERS, METRICS);
+    }
+    finally {
+      lock.unlock();
+    }
+    return blob;
+  }
+
+  private BlobId nextBlobId() {
+    return blobIds[ThreadLocalRandom.current().nextInt(blobs)];
+  }
+
+  private Lock lockStripe(final BlobId blobId) {
+    Lock lock = blobLocks.get(blobId);
+    lock.lock();
+    return lock;
+  }
+
+  public static class BenchmarkBlob
+      extends BlobSupport
+  {
+    BenchmarkBlob(final BlobId blobId) {
+      super(blobId);
+    }
+
+    @Override
+    protected InputStream doGetInputStream() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  public static void main(final String[] args) throws Exception {
+    new Runner(new OptionsBuilder()
+        .include(BlobLockingBenchmark.class.getSimpleName())
+        .addProfiler(GCProfiler.class)
+        .build()).run();
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal;
+
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.blob.CloudBlobClient;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Cost of resolving the blob reference every {@link SyncAzureClient} operation starts with, before (container
+ * reference built per call) and after (container reference cached by the client). No request is sent.
+ *
+ * Run {@link #main(String[])} from the test classpath; the GC profiler reports {@code gc.alloc.rate.norm}, the bytes
+ * allocated per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlobReferenceBenchmark
+{
+  private static final String CONTAINER_NAME = "benchmark";
+
+  private static final String PATH = "content/vol-13/chap-37/2d3c8e4f-6f5e-4b2a-9d1c-0a7b3e5f9c21.properties";
+
+  private CloudBlobClient serviceClient;
+
+  private CloudBlobContainer container;
+
+  @Setup
+  public void setup() throws Exception {
+    String accountKey = Base64.getEncoder().encodeToString(new byte[64]);
+    serviceClient = CloudStorageAccount
+        .parse("DefaultEndpointsProtocol=https;AccountName=benchmark;AccountKey=" + accountKey)
+        .createCloudBlobClient();
+    container = serviceClient.getContainerReference(CONTAINER_NAME);
+  }
+
+  @Benchmark
+  public CloudBlockBlob containerPerCall() throws Exception {
+    return serviceClient.getContainerReference(CONTAINER_NAME).getBlockBlobReference(PATH);
+  }
+
+  @Benchmark
+  public CloudBlockBlob cachedContainer() throws Exception {
+    return container.getBlockBlobReference(PATH);
+  }
+
+  public static void main(final String[] args) throws Exception {
+    new Runner(new OptionsBuilder()
+        .include(BlobReferenceBenchmark.class.getSimpleName())
+        .addProfiler(GCProfiler.class)
+        .build()).run();
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal
+
+import com.codahale.metrics.MetricRegistry
+import com.microsoft.azure.storage.StorageException
+import spock.lang.Specification
+
+/**
+ * Unit tests for {@link GeoRoutingAzureClient}.
+ */
+class GeoRoutingAzureClientTest
+    extends Specification
+{
+  def registry = new MetricRegistry()
+
+  def primary = Mock(AzureClient)
+
+  def secondary = Mock(AzureClient)
+
+  def underTest = new GeoRoutingAzureClient(primary, secondary, 'default', registry)
+
+  def 'reads move to the secondary when it is faster'() {
+    given:
+      primary.get(_) >> {
+        sleep(20)
+        new ByteArrayInputStream('primary'.bytes)
+      }
+      secondary.get(_) >> new ByteArrayInputStream('secondary'.bytes)
+    when: 'both endpoints have been measured'
+      2.times { underTest.get('blob.bytes').text }
+    then:
+      underTest.get('blob.bytes').text == 'secondary'
+  }
+
+  def 'a read which the secondary cannot serve yet falls back to the primary'() {
+    given: 'the secondary is preferred'
+      primary.get(_) >> {
+        sleep(20)
+        new ByteArrayInputStream('primary'.bytes)
+      }
+      secondary.get('blob.bytes') >> new ByteArrayInputStream('secondary'.bytes)
+      2.times { underTest.get('blob.bytes').text }
+    and: 'a blob which is not replicated yet'
+      secondary.get('new.bytes') >> {
+        throw new IOException(new StorageException('BlobNotFound', 'not found', 404, null, null))
+      }
+    expect:
+      underTest.get('new.bytes').text == 'primary'
+      registry.meters['org.sonatype.nexus.blobstore.azure.internal.AzureClient.default.location.fallbacks'].count == 1
+  }
+
+  def 'versioned reads are routed like other reads and fall back to the primary for blobs not replicated yet'() {
+    given: 'the secondary is preferred'
+      primary.getVersioned(_) >> {
+        sleep(20)
+        new AzureClient.Versioned('primary'.bytes, 'primary-etag')
+      }
+      secondary.getVersioned('blob.properties') >> new AzureClient.Versioned('secondary'.bytes, 'etag')
+      2.times { underTest.getVersioned('blob.properties') }
+    and: 'a blob which is not replicated yet'
+      secondary.getVersioned('new.properties') >> null
+    expect:
+      underTest.getVersioned('blob.properties').getETag() == 'etag'
+      underTest.getVersioned('new.properties').getETag() == 'primary-etag'
+      registry.meters['org.sonatype.nexus.blobstore.azure.internal.AzureClient.default.location.fallbacks'].count == 1
+  }
+
+  def 'a path whose conditional write failed is read again from the primary'() {
+    when:
+      def eTag = underTest.createIfMatch('blob.properties', 'data'.bytes, 'stale-etag')
+    then:
+      1 * primary.createIfMatch('blob.properties', _, 'stale-etag') >> null
+      eTag == null
+      !underTest.preferSecondary('blob.properties')
+  }
+
+  def 'writes go to the primary and are read back from it'() {
+    given:
+      def data = new ByteArrayInputStream('data'.bytes)
+    when:
+      underTest.create('blob.properties', data)
+      underTest.delete('old.properties')
+    then:
+      1 * primary.create('blob.properties', data)
+      1 * primary.delete('old.properties')
+      0 * secondary._
+    and:
+      !underTest.preferSecondary('blob.properties')
+      !underTest.preferSecondary('old.properties')
+  }
+
+  def 'direct path blobs, which other nodes overwrite in place, are read from the primary'() {
+    given: 'the secondary is preferred'
+      primary.get(_) >> {
+        sleep(20)
+        new ByteArrayInputStream('primary'.bytes)
+      }
+      secondary.get(_) >> new ByteArrayInputStream('secondary'.bytes)
+      2.times { underTest.get('blob.bytes').text }
+    and:
+      def path = AzureBlobStore.DIRECT_PATH_PREFIX + '/health-check/repo/details.bytes'
+    expect:
+      underTest.preferSecondary('blob.bytes')
+      underTest.get(path).text == 'primary'
+  }
+
+  def 'existence checks go to the primary'() {
+    when:
+      def exists = underTest.exists('blob.properties')
+    then:
+      1 * primary.exists('blob.properties') >> true
+      0 * secondary._
+      exists
+  }
+}
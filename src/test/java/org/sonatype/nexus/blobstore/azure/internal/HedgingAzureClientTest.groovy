@@ -0,0 +1,105 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal
+
+import java.util.concurrent.atomic.AtomicInteger
+
+import com.codahale.metrics.MetricRegistry
+import spock.lang.Specification
+
+import static org.sonatype.nexus.blobstore.azure.internal.AzureTransactionAccounting.TransactionClass.READ
+
+/**
+ * Unit tests for {@link HedgingAzureClient}.
+ */
+class HedgingAzureClientTest
+    extends Specification
+{
+  def registry = new MetricRegistry()
+
+  def delegate = Mock(AzureClient)
+
+  def accounting = new AzureTransactionAccounting()
+
+  def underTest = new HedgingAzureClient(delegate, 'default', 0.95, 5.0, 4, accounting, registry)
+
+  def 'a slow attribute read is hedged once the delay is known'() {
+    given: 'enough fast reads to learn the delay and save up a hedge'
+      delegate.get('fast.properties') >> { new ByteArrayInputStream('fast'.bytes) }
+      64.times { underTest.get('fast.properties').text }
+    and: 'a read which is slow the first time only'
+      def calls = new AtomicInteger()
+      delegate.get('slow.properties') >> {
+        if (calls.getAndIncrement() == 0) {
+          sleep(5000)
+          return new ByteArrayInputStream('primary'.bytes)
+        }
+        new ByteArrayInputStream('hedge'.bytes)
+      }
+    when:
+      def content = underTest.get('slow.properties').text
+    then: 'the hedge wins'
+      content == 'hedge'
+      underTest.delayNanos < Long.MAX_VALUE
+      registry.meters['org.sonatype.nexus.blobstore.azure.internal.AzureClient.default.hedge.sent'].count == 1
+      registry.meters['org.sonatype.nexus.blobstore.azure.internal.AzureClient.default.hedge.won'].count == 1
+  }
+
+  def 'hedged reads are billed to the repository of the caller and traced in its operation'() {
+    given: 'enough fast reads to learn the delay and save up a hedge'
+      delegate.get('fast.properties') >> { new ByteArrayInputStream('fast'.bytes) }
+      64.times { underTest.get('fast.properties').text }
+    and: 'a read which is slow the first time only, recording a transaction and a retry each time'
+      def calls = new AtomicInteger()
+      delegate.get('slow.properties') >> {
+        accounting.recordTransaction(READ)
+        AzureOperationTrace.current().addRetry()
+        if (calls.getAndIncrement() == 0) {
+          sleep(5000)
+        }
+        new ByteArrayInputStream('content'.bytes)
+      }
+    and: 'an operation of a repository in progress'
+      def scope = accounting.attributeTo('maven-central')
+      def trace = AzureOperationTrace.begin('get', 'blob-1')
+    when:
+      underTest.get('slow.properties').text
+    then: 'both reads are billed to the repository, only the hedge which won is traced'
+      registry.meters['org.sonatype.nexus.blobstore.azure.internal.AzureClient.default.hedge.sent'].count == 1
+      accounting.repositories['maven-central'].getTransactions(READ) == 2
+      trace.retries == 1
+    cleanup:
+      trace?.end()
+      scope?.close()
+  }
+
+  def 'content reads are not hedged'() {
+    given:
+      def content = new ByteArrayInputStream('content'.bytes)
+    when:
+      def result = underTest.get('blob.bytes')
+    then:
+      1 * delegate.get('blob.bytes') >> content
+      result.is(content)
+  }
+
+  def 'closing unregisters the hedge metrics and closes the delegate'() {
+    expect:
+      registry.names.any { it.contains('.default.hedge.') }
+    when:
+      underTest.close()
+    then:
+      1 * delegate.close()
+      registry.names.every { !it.contains('.default.hedge.') }
+  }
+}
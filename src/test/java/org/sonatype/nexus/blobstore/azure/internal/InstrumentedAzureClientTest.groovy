@@ -0,0 +1,89 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal
+
+import java.util.stream.Stream
+
+import com.codahale.metrics.MetricRegistry
+import spock.lang.Specification
+
+import static java.util.stream.Collectors.toList
+
+/**
+ * Unit tests for {@link InstrumentedAzureClient}.
+ */
+class InstrumentedAzureClientTest
+    extends Specification
+{
+  def registry = new MetricRegistry()
+
+  def delegate = Mock(AzureClient)
+
+  def underTest = new InstrumentedAzureClient(delegate, new AzureClientMetrics(registry, 'store'))
+
+  def 'operations are timed and their bytes are counted'() {
+    given: 'a client which reads everything it is given'
+      delegate.create('path', _ as InputStream) >> { String path, InputStream data -> data.bytes }
+      delegate.get('path') >> new ByteArrayInputStream(new byte[7])
+    when: 'a blob is created and read back'
+      underTest.create('path', new ByteArrayInputStream(new byte[5]))
+      underTest.get('path').bytes
+    then: 'the bytes of both transfers are counted'
+      registry.timers['org.sonatype.nexus.blobstore.azure.internal.AzureClient.store.create.latency'].count == 1
+      registry.meters['org.sonatype.nexus.blobstore.azure.internal.AzureClient.store.create.bytes'].count == 5
+      registry.meters['org.sonatype.nexus.blobstore.azure.internal.AzureClient.store.get.bytes'].count == 7
+  }
+
+  def 'failures are counted as errors'() {
+    given: 'a failing client'
+      delegate.delete('path') >> { throw new RuntimeException('boom') }
+    when: 'a blob is deleted'
+      underTest.delete('path')
+    then: 'the failure is passed on and recorded'
+      thrown(RuntimeException)
+      registry.meters['org.sonatype.nexus.blobstore.azure.internal.AzureClient.store.delete.errors'].count == 1
+      registry.timers['org.sonatype.nexus.blobstore.azure.internal.AzureClient.store.delete.latency'].count == 1
+  }
+
+  def 'checked failures are passed on and counted as errors'() {
+    given: 'a client failing to read'
+      delegate.get('path') >> { throw new IOException('boom') }
+    when: 'a blob is read'
+      underTest.get('path')
+    then: 'the failure is passed on unwrapped and recorded'
+      thrown(IOException)
+      registry.meters['org.sonatype.nexus.blobstore.azure.internal.AzureClient.store.get.errors'].count == 1
+      registry.timers['org.sonatype.nexus.blobstore.azure.internal.AzureClient.store.get.latency'].count == 1
+  }
+
+  def 'listings are timed once exhausted'() {
+    given: 'a listing'
+      delegate.listChildren('') >> Stream.of('a', 'b')
+    when: 'the listing is consumed'
+      def children = underTest.listChildren('').collect(toList())
+    then: 'it is timed once'
+      children == ['a', 'b']
+      registry.timers['org.sonatype.nexus.blobstore.azure.internal.AzureClient.store.list_children.latency'].count == 1
+  }
+
+  def 'closing removes the metrics of this store only'() {
+    given: 'another store whose name shares the prefix'
+      new AzureClientMetrics(registry, 'store.other')
+    when:
+      underTest.close()
+    then:
+      1 * delegate.close()
+      registry.names.every { !it.contains('.store.') || it.contains('.store.other.') }
+      registry.names.any { it.contains('.store.other.') }
+  }
+}
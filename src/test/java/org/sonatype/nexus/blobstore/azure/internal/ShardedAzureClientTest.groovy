@@ -0,0 +1,144 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2019-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.azure.internal
+
+import com.microsoft.azure.storage.StorageException
+import spock.lang.Specification
+
+/**
+ * Unit tests for {@link ShardedAzureClient}.
+ */
+class ShardedAzureClientTest
+    extends Specification
+{
+  def first = Mock(AzureClient)
+
+  def second = Mock(AzureClient)
+
+  def underTest = new ShardedAzureClient([first, second], 1)
+
+  /**
+   * Returns a blob location which is placed on the second shard.
+   */
+  String secondShardLocation() {
+    (1..100).collect { "content/vol-01/chap-01/blob-$it".toString() }
+        .find { ShardedAzureClient.shardIndex(it + '.bytes', 2) == 1 }
+  }
+
+  def 'both files of a blob are placed on the same shard'() {
+    expect:
+      (1..100).every {
+        def location = "content/vol-01/chap-01/blob-$it"
+        ShardedAzureClient.shardIndex(location + '.bytes', 2) ==
+            ShardedAzureClient.shardIndex(location + '.properties', 2)
+      }
+  }
+
+  def 'files outside of the content stay on the first shard'() {
+    expect:
+      ShardedAzureClient.shardIndex('metadata.properties', 4) == 0
+      ShardedAzureClient.shardIndex('node-metrics.properties', 4) == 0
+  }
+
+  def 'writes go to the shard of the blob'() {
+    given:
+      def path = secondShardLocation() + '.bytes'
+      def data = new ByteArrayInputStream('data'.bytes)
+    when:
+      underTest.create(path, data)
+    then:
+      1 * second.create(path, data)
+      0 * first.create(_, _)
+  }
+
+  def 'a blob not yet moved is read from its previous shard'() {
+    given:
+      def path = secondShardLocation() + '.bytes'
+    when:
+      def content = underTest.get(path).text
+    then:
+      1 * second.get(path) >> {
+        throw new IOException(new StorageException('BlobNotFound', 'not found', 404, null, null))
+      }
+      1 * first.get(path) >> new ByteArrayInputStream('moved'.bytes)
+      content == 'moved'
+  }
+
+  def 'a version read from the previous shard is written back there'() {
+    given:
+      def path = secondShardLocation() + '.properties'
+      def data = 'data'.bytes
+    when:
+      def stored = underTest.createIfMatch(path, data, 'etag-1')
+    then:
+      1 * second.createIfMatch(path, data, 'etag-1') >> null
+      1 * first.createIfMatch(path, data, 'etag-1') >> 'etag-2'
+      stored == 'etag-2'
+  }
+
+  def 'a new blob is not created while it exists on the previous shard'() {
+    given:
+      def path = secondShardLocation() + '.properties'
+    when:
+      def stored = underTest.createIfMatch(path, 'data'.bytes, null)
+    then:
+      1 * first.exists(path) >> true
+      0 * second.createIfMatch(*_)
+      stored == null
+  }
+
+  def 'closing closes every shard'() {
+    when:
+      underTest.close()
+    then:
+      1 * first.close()
+      1 * second.close()
+  }
+
+  def 'other failures are not retried on the previous shard'() {
+    given:
+      def path = secondShardLocation() + '.bytes'
+    when:
+      underTest.get(path)
+    then:
+      1 * second.get(path) >> { throw new IOException(new StorageException('ServerBusy', 'busy', 503, null, null)) }
+      0 * first.get(_)
+      thrown(IOException)
+  }
+
+  def 'listings cover all shards'() {
+    given:
+      first.listFiles('content/') >> ['a.bytes'].stream()
+      second.listFiles('content/') >> ['b.bytes'].stream()
+      first.listChildren('content/') >> ['content/vol-01/'].stream()
+      second.listChildren('content/') >> ['content/vol-01/', 'content/vol-02/'].stream()
+    expect:
+      underTest.listFiles('content/').collect() == ['a.bytes', 'b.bytes']
+      underTest.listChildren('content/').collect() == ['content/vol-01/', 'content/vol-02/']
+  }
+
+  def 'rebalancing moves misplaced content to its shard'() {
+    given:
+      def path = secondShardLocation() + '.bytes'
+      first.listFiles('content/') >> [path].stream()
+      second.listFiles('content/') >> [].stream()
+    when:
+      def moved = underTest.rebalance({ false })
+    then:
+      moved == 1
+      1 * second.exists(path) >> false
+      1 * first.get(path) >> new ByteArrayInputStream('data'.bytes)
+      1 * second.create(path, _)
+      1 * first.delete(path)
+  }
+}
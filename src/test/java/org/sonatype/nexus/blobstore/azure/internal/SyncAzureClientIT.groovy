@@ -4,6 +4,8 @@ import java.nio.charset.Charset
 
 import org.sonatype.nexus.repository.internal.blobstore.orient.OrientBlobStoreConfiguration
 
+import com.codahale.metrics.MetricRegistry
+import com.google.common.hash.Hashing
 import org.apache.commons.io.IOUtils
 import spock.lang.Specification
 
@@ -20,13 +22,24 @@ class SyncAzureClientIT
             (AzureBlobStore.ACCOUNT_NAME_KEY)  : System.getProperty('nxrm.azure.accountName'),
             (AzureBlobStore.ACCOUNT_KEY_KEY)   : System.getProperty('nxrm.azure.accountKey'),
             (AzureBlobStore.CONTAINER_NAME_KEY): UUID.randomUUID().toString(),
+            (AzureBlobStore.CLIENT_TYPE)       : clientType()
         ]
     ])
-    client = new AzureStorageClientFactory(10000).create(configuration)
-    assert client instanceof SyncAzureClient
+    client = new AzureStorageClientFactory(10000, 4, 10, new MetricRegistry()).create(configuration)
+    assert client instanceof InstrumentedAzureClient
+    assert client.delegate instanceof ConcurrencyLimitedAzureClient
+    assert clientClass().isInstance(client.delegate.delegate)
     this.client.createContainer()
   }
 
+  protected String clientType() {
+    return AzureBlobStore.SYNC_CLIENT_TYPE
+  }
+
+  protected Class<? extends AzureClient> clientClass() {
+    return SyncAzureClient
+  }
+
   def cleanup() {
     client.deleteContainer()
   }
@@ -50,12 +63,35 @@ class SyncAzureClientIT
       def actual = IOUtils.toString(is, Charset.defaultCharset())
       actual == data
 
+    when: 'A blob spanning several blocks is created and retrieved'
+      def largeData = 'Hello world!' * 5000
+      client.create("${blobName}_large.bytes", new ByteArrayInputStream(largeData.getBytes()))
+
+    then: 'The blob matches the expected'
+      IOUtils.toString(client.get("${blobName}_large.bytes"), Charset.defaultCharset()) == largeData
+
+    when: 'A blob spanning several blocks is created from a file'
+      def file = File.createTempFile('azure', '.bytes')
+      file.deleteOnExit()
+      file.bytes = largeData.getBytes()
+      client.create("${blobName}_file.bytes", file.toPath(), file.length())
+
+    then: 'The blob matches the file'
+      IOUtils.toString(client.get("${blobName}_file.bytes"), Charset.defaultCharset()) == largeData
+
     when: 'The blob is copied'
       def blobNamePathCopy = "${blobName}_copy.properties"
       client.copy(blobPath, blobNamePathCopy)
 
-    then: 'The copy exists'
-      client.exists(blobNamePathCopy)
+    then: 'The copy is complete'
+      IOUtils.toString(client.get(blobNamePathCopy), Charset.defaultCharset()) == data
+
+    when: 'The blob is copied with its size known'
+      def sizedCopyPath = "${blobName}_sized_copy.bytes"
+      client.copy("${blobName}_large.bytes", sizedCopyPath, largeData.length())
+
+    then: 'The copy is complete'
+      IOUtils.toString(client.get(sizedCopyPath), Charset.defaultCharset()) == largeData
 
     when: 'The blob and its copy are deleted'
       client.delete(blobPath)
@@ -66,6 +102,32 @@ class SyncAzureClientIT
       !client.exists(blobNamePathCopy)
   }
 
+  def "It will measure the content it uploads"() {
+    given:
+      def data = 'Hello world!'
+      def largeData = data * 5000
+
+    when: 'content in a single chunk and content spanning several blocks are uploaded measured'
+      def small = client.createMeasured('small.bytes', new ByteArrayInputStream(data.bytes))
+      def large = client.createMeasured('large.bytes', new ByteArrayInputStream(largeData.bytes))
+
+    then: 'the size and SHA-1 of the content are reported'
+      small.size == data.length()
+      small.sha1 == Hashing.sha1().hashBytes(data.bytes).toString()
+      large.size == largeData.length()
+      large.sha1 == Hashing.sha1().hashBytes(largeData.bytes).toString()
+      IOUtils.toString(client.get('large.bytes'), Charset.defaultCharset()) == largeData
+  }
+
+  def "It will fail to open a range of a missing file"() {
+    when: 'a range of a blob which does not exist is opened'
+      client.get('missing.bytes', 0, 10)
+
+    then: 'the failure is raised before any content is read'
+      def e = thrown(Exception)
+      AzureErrors.isNotFound(e)
+  }
+
   def "It will detect if the container exists"() {
     when: 'the container exists'
       client.containerExists()